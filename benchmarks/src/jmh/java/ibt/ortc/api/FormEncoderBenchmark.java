@@ -0,0 +1,76 @@
+/**
+ * @fileoverview This file contains the benchmark of the encoding of the authentication bodies
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * FormEncoder with the body of an authentication of many channels, written
+ * to a stream that only counts the bytes as the connection would be
+ */
+@State(Scope.Thread)
+public class FormEncoderBenchmark {
+	@Param({ "100", "10000", "100000" })
+	public int channels;
+
+	@Param({ "false", "true" })
+	public boolean gzip;
+
+	private static final class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	private FormEncoder body;
+	private String[] names;
+
+	@Setup
+	public void setUp() {
+		names = new String[channels];
+		for (int idx = 0; idx < channels; idx++) {
+			names[idx] = String.format("company:orders:%s/\u00e9", idx);
+		}
+		body = encode();
+	}
+
+	private FormEncoder encode() {
+		FormEncoder encoder = new FormEncoder(channels + 6);
+		encoder.add("AT", "authentication-token").add("AK", "application-key")
+				.add("PK", "private-key").add("TTL", "1800")
+				.add("TP", String.valueOf(channels)).add("PVT", "0");
+		for (String name : names) {
+			encoder.add(name, "rw");
+		}
+		return encoder.setGzip(gzip);
+	}
+
+	@Benchmark
+	public long build() {
+		return encode().size();
+	}
+
+	@Benchmark
+	public long writeTo() throws IOException {
+		CountingStream out = new CountingStream();
+		body.writeTo(out);
+		return out.count;
+	}
+}
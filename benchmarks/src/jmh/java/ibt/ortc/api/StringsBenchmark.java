@@ -0,0 +1,47 @@
+/**
+ * @fileoverview This file contains the benchmark of the validation of the inputs
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The Strings validations run on every send, publish and subscribe
+ */
+@State(Scope.Thread)
+public class StringsBenchmark {
+	@Param({ "orders", "company:orders:eu-west/1.5", "invalid channel!" })
+	public String channel;
+
+	private String message;
+
+	@Setup
+	public void setUp() {
+		message = "  hello world  ";
+	}
+
+	@Benchmark
+	public boolean ortcIsValidInput() {
+		return Strings.ortcIsValidInput(channel);
+	}
+
+	@Benchmark
+	public boolean ortcIsValidChannelForNotifications() {
+		return Strings.ortcIsValidChannelForNotifications(channel);
+	}
+
+	@Benchmark
+	public boolean isNullOrEmpty() {
+		return Strings.isNullOrEmpty(message);
+	}
+
+	@Benchmark
+	public String randomString() {
+		return Strings.randomString(8);
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * @fileoverview This file contains the client of the benchmarks
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/**
+ * Client connected without a socket, the frames it would send are kept in
+ * memory and the received messages are injected by the benchmarks
+ */
+class BenchmarkClient extends OrtcClient {
+	final ArrayList<String> parts = new ArrayList<String>(128);
+	final ArrayList<String> partIdentifiers = new ArrayList<String>(128);
+	String lastMessage;
+
+	BenchmarkClient(String channel) {
+		setConnectionState(ConnectionState.Connected);
+		this.channelsPermissions = new Hashtable<String, String>(11);
+		this.channelsPermissions.put(channel, "hash");
+		this.subscribedChannels.put(channel, new ChannelSubscription(false, new OnMessage() {
+			@Override
+			public void run(OrtcClient sender, String channel, String message) {
+				lastMessage = message;
+			}
+		}, false, false, null, false, null));
+	}
+
+	/**
+	 * Delivers a received frame as the protocol implementation does
+	 */
+	void receive(String channel, String message, String messageId, int part, int totalParts) {
+		raiseOrtcEvent(EventEnum.OnReceived, channel, message, messageId, part, totalParts);
+	}
+
+	@Override
+	protected void connect() {
+	}
+
+	@Override
+	protected void disconnectIntern() {
+	}
+
+	@Override
+	protected void publish(String channel, String message, int ttl,
+			String messagePartIdentifier, String permission) {
+		send(channel, message, messagePartIdentifier, permission);
+	}
+
+	@Override
+	protected void send(String channel, String message,
+			String messagePartIdentifier, String permission) {
+		parts.add(message);
+		partIdentifiers.add(messagePartIdentifier);
+	}
+
+	@Override
+	protected void _subscribeWithOptions(String channel, String permission,
+			boolean subscribeOnReconnected, boolean withNotifications,
+			String filter, String subscriberId) {
+	}
+
+	@Override
+	protected void sendAck(String channel, String messageId, String seqId, String asAllParts) {
+	}
+
+	@Override
+	protected void subscribe(String channel, String permission,
+			boolean withNotification, boolean withFilter, String filter) {
+	}
+
+	@Override
+	protected void unsubscribe(String channel, boolean isValid,
+			boolean isWithNotification) {
+	}
+
+	@Override
+	protected void sendHeartbeat() {
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * @fileoverview This file contains the benchmark of the permission check of the channels
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The permission check of the channels, run before every send, publish and
+ * subscribe. It is measured through the public send of a short message, the
+ * validation of the input and the single frame of the message are included.
+ * A denied channel also raises its exception.
+ */
+@State(Scope.Thread)
+public class ChannelPermissionBenchmark {
+	@Param({ "1", "100" })
+	public int permissions;
+
+	@Param({ "exact", "domain", "denied" })
+	public String channel;
+
+	private BenchmarkClient client;
+	private String channelName;
+
+	@Setup
+	public void setUp() throws Exception {
+		client = new BenchmarkClient("orders");
+		for (int idx = 1; idx < permissions; idx++) {
+			client.channelsPermissions.put("channel" + idx, "hash" + idx);
+		}
+		client.channelsPermissions.put("prices:*", "hash");
+
+		if ("exact".equals(channel)) {
+			channelName = "orders";
+		} else if ("domain".equals(channel)) {
+			channelName = "prices:eur";
+		} else {
+			channelName = "trades";
+		}
+	}
+
+	@Benchmark
+	public int send() {
+		client.parts.clear();
+		client.partIdentifiers.clear();
+		client.send(channelName, "message");
+		return client.parts.size();
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * @fileoverview This file contains the benchmark of the deduplication of the received messages
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ibt.ortc.api.Strings;
+
+/**
+ * DispatchedMessages against the HashMap it replaced, for new ids (the
+ * usual case) and for duplicated ids
+ */
+@State(Scope.Thread)
+public class DispatchedMessagesBenchmark {
+	private static final int IDS = 4096;
+	private static final int DUPLICATES = 512;
+
+	private String[] ids;
+	private DispatchedMessages dispatched;
+	private LegacyDispatchedMessages legacy;
+	private int next;
+	private int nextDuplicate;
+
+	@Setup
+	public void setUp() {
+		ids = new String[IDS];
+		for (int idx = 0; idx < IDS; idx++) {
+			ids[idx] = Strings.randomString(8);
+		}
+		dispatched = new DispatchedMessages();
+		legacy = new LegacyDispatchedMessages();
+		for (int idx = 0; idx < DUPLICATES; idx++) {
+			dispatched.addIfAbsent(ids[idx]);
+			legacy.addMessageId(ids[idx]);
+		}
+		next = DUPLICATES;
+	}
+
+	// NOTE: the duplicated ids stay in both sets, the new ids are taken
+	// after them and evict each other
+	private String nextNew() {
+		String id = ids[next];
+		next = next + 1 == IDS ? DUPLICATES : next + 1;
+		return id;
+	}
+
+	private String nextDuplicate() {
+		String id = ids[nextDuplicate];
+		nextDuplicate = (nextDuplicate + 1) % DUPLICATES;
+		return id;
+	}
+
+	@Benchmark
+	public boolean addNew() {
+		return dispatched.addIfAbsent(nextNew());
+	}
+
+	@Benchmark
+	public boolean addNewLegacy() {
+		String id = nextNew();
+		boolean isDispatched = legacy.checkIfDispatched(id);
+		if (!isDispatched) {
+			legacy.addMessageId(id);
+		}
+		return isDispatched;
+	}
+
+	@Benchmark
+	public boolean checkDuplicate() {
+		return dispatched.checkIfDispatched(nextDuplicate());
+	}
+
+	@Benchmark
+	public boolean checkDuplicateLegacy() {
+		return legacy.checkIfDispatched(nextDuplicate());
+	}
+}
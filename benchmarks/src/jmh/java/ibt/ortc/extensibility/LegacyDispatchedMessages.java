@@ -0,0 +1,39 @@
+/**
+ * @fileoverview This file contains the first implementation of the dispatched messages
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.HashMap;
+
+/**
+ * The dispatched messages before the primitive set, kept as the baseline of
+ * DispatchedMessagesBenchmark
+ */
+class LegacyDispatchedMessages {
+	private static final int LIMIT = 1024;
+	private int currentIdx;
+	private String[] ids;
+	private HashMap<String, Integer> hMap;
+
+	public LegacyDispatchedMessages(){
+		this.currentIdx = 0;
+		this.ids = new String[LIMIT];
+		this.hMap = new HashMap<String, Integer>();
+	}
+
+	protected void addMessageId(String messageId){
+		currentIdx++;
+		if(currentIdx>=LIMIT)
+			currentIdx = 0;
+		if(ids[currentIdx] != null){
+			hMap.remove(ids[currentIdx]);
+		}
+		hMap.put(messageId, currentIdx);
+		ids[currentIdx] = messageId;
+	}
+
+	protected boolean checkIfDispatched(String messageId){
+		return hMap.containsKey(messageId);
+	}
+}
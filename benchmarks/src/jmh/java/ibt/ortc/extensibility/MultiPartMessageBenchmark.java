@@ -0,0 +1,74 @@
+/**
+ * @fileoverview This file contains the benchmark of the split and reassembly of the messages
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ibt.ortc.api.Strings;
+
+/**
+ * Split of a sent message in parts (OrtcClient.multiPartMessage through
+ * send) and reassembly of the received parts up to the handler
+ */
+@State(Scope.Thread)
+public class MultiPartMessageBenchmark {
+	private static final String CHANNEL = "orders";
+	// NOTE: more ids than the deduplication remembers, a reused id is not
+	// dropped as a duplicate
+	private static final int IDS = 4096;
+
+	@Param({ "100", "800", "8000", "64000" })
+	public int size;
+
+	private BenchmarkClient client;
+	private String message;
+	private String[] parts;
+	private String[] ids;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		client = new BenchmarkClient(CHANNEL);
+		StringBuilder text = new StringBuilder(size);
+		while (text.length() < size) {
+			text.append("0123456789abcdef");
+		}
+		message = text.substring(0, size);
+
+		client.send(CHANNEL, message);
+		parts = client.parts.toArray(new String[client.parts.size()]);
+		client.parts.clear();
+		client.partIdentifiers.clear();
+
+		ids = new String[IDS];
+		for (int idx = 0; idx < IDS; idx++) {
+			ids[idx] = Strings.randomString(8);
+		}
+	}
+
+	@Benchmark
+	public int split() {
+		client.send(CHANNEL, message);
+		int count = client.parts.size();
+		client.parts.clear();
+		client.partIdentifiers.clear();
+		return count;
+	}
+
+	@Benchmark
+	public String reassemble() {
+		String id = ids[next];
+		next = (next + 1) % IDS;
+		int total = parts.length;
+		for (int part = 0; part < total; part++) {
+			client.receive(CHANNEL, parts[part], id, part + 1, total);
+		}
+		return client.lastMessage;
+	}
+}
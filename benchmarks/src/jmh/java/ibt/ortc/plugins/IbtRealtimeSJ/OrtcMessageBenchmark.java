@@ -0,0 +1,65 @@
+/**
+ * @fileoverview This file contains the benchmark of the parse of the received frames
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.plugins.IbtRealtimeSJ;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * OrtcMessage.parseMessage over the frames the socket reader handles
+ */
+@State(Scope.Thread)
+public class OrtcMessageBenchmark {
+	@Param({ "text", "seqId", "filtered", "json", "part", "ack", "subscribed" })
+	public String shape;
+
+	private String frame;
+
+	@Setup
+	public void setUp() {
+		StringBuilder part = new StringBuilder(800);
+		while (part.length() < 800) {
+			part.append("0123456789abcdef");
+		}
+
+		if ("text".equals(shape)) {
+			frame = received("orders", "k3j5d9a2_1-1_hello world", null);
+		} else if ("seqId".equals(shape)) {
+			frame = received("orders", "k3j5d9a2_1-1_hello world", ",\"s\":\"1511776519123456\"");
+		} else if ("filtered".equals(shape)) {
+			frame = received("orders", "k3j5d9a2_1-1_hello world", ",\"f\":\"true\"");
+		} else if ("json".equals(shape)) {
+			frame = received("orders",
+					"k3j5d9a2_1-1_{\"id\":1234,\"side\":\"buy\",\"price\":12.5,\"text\":\"line\\nbreak\"}", null);
+		} else if ("part".equals(shape)) {
+			frame = received("orders", "k3j5d9a2_2-5_" + part.substring(0, 800), null);
+		} else if ("ack".equals(shape)) {
+			frame = operation("{\"op\":\"ortc-ack\",\"m\":\"k3j5d9a2\",\"seq\":\"1511776519123456\"}");
+		} else {
+			frame = operation("{\"op\":\"ortc-subscribed\",\"ch\":\"orders\"}");
+		}
+	}
+
+	// NOTE: the server sends the JSON escaped inside a SockJS array
+	private static String operation(String json) {
+		return String.format("a[\"%s\"]", json.replace("\\", "\\\\").replace("\"", "\\\""));
+	}
+
+	private static String received(String channel, String message, String fields) {
+		return operation(String.format("{\"ch\":\"%s\"%s,\"m\":\"%s\"}", channel,
+				fields == null ? "" : fields, JSONValue.escape(message)));
+	}
+
+	@Benchmark
+	public OrtcMessage parseMessage() throws IOException {
+		return OrtcMessage.parseMessage(frame);
+	}
+}
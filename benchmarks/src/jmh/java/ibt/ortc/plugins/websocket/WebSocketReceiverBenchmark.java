@@ -0,0 +1,102 @@
+/**
+ * @fileoverview This file contains the benchmark of the decoding of the received frames
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.plugins.websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.URI;
+
+/**
+ * WebSocketReceiver decoding a stream of unmasked server frames up to the
+ * text handed to the client, the time is reported per frame
+ */
+@State(Scope.Thread)
+public class WebSocketReceiverBenchmark {
+	private static final int FRAMES = 100;
+
+	@Param({ "1", "200", "900", "70000" })
+	public int size;
+
+	private WebSocket socket;
+	private byte[] stream;
+	private int received;
+
+	@Setup
+	public void setUp() throws Exception {
+		socket = new WebSocket(new URI("ws://localhost/websocket"));
+		socket.setEventHandler(new WebSocketEventHandler() {
+			@Override
+			public void onOpen() {
+			}
+
+			@Override
+			public void onMessage(WebSocketMessage message) {
+				received += message.getText().length();
+			}
+
+			@Override
+			public void onClose() {
+			}
+
+			@Override
+			public void onForcedClose() {
+			}
+
+			@Override
+			public void onPing() {
+			}
+
+			@Override
+			public void onPong() {
+			}
+
+			@Override
+			public void onFrameSent(int bytes) {
+			}
+
+			@Override
+			public void onException(Exception error) {
+			}
+		});
+
+		ByteArrayOutputStream frames = new ByteArrayOutputStream(FRAMES * (size + 10));
+		for (int frame = 0; frame < FRAMES; frame++) {
+			frames.write(0x81);
+			if (size < 126) {
+				frames.write(size);
+			} else if (size <= 65535) {
+				frames.write(126);
+				frames.write(size >>> 8);
+				frames.write(size & 0xff);
+			} else {
+				frames.write(127);
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					frames.write((int) ((long) size >>> shift) & 0xff);
+				}
+			}
+			for (int idx = 0; idx < size; idx++) {
+				frames.write(idx == 0 ? 'h' : 'a' + idx % 26);
+			}
+		}
+		stream = frames.toByteArray();
+	}
+
+	// NOTE: the receiver stops at the end of the stream as on a closed socket
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int decode() {
+		received = 0;
+		new WebSocketReceiver(new DataInputStream(new ByteArrayInputStream(stream)), socket).run();
+		return received;
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * @fileoverview This file contains the benchmark of the encoding of the sent frames
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.plugins.websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+
+/**
+ * The frame encoder of WebSocketSender (header, mask and copy) writing to a
+ * stream that only counts the bytes. Frames go through the public send and
+ * the benchmark waits until the sender thread wrote them, so the hand-off
+ * to that thread is included.
+ */
+@State(Scope.Thread)
+public class WebSocketSenderBenchmark {
+	private static final byte OPCODE_TEXT = 0x1;
+
+	@Param({ "16", "200", "900", "70000" })
+	public int size;
+
+	private static final class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	// NOTE: a socket that looks connected without a server
+	private static final class ConnectedWebSocket extends WebSocket {
+		ConnectedWebSocket(URI url) {
+			super(url);
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+	}
+
+	private CountingStream out;
+	private WebSocketSender sender;
+	private byte[] data;
+
+	@Setup
+	public void setUp() throws Exception {
+		WebSocket socket = new ConnectedWebSocket(new URI("ws://localhost/websocket"));
+
+		out = new CountingStream();
+		sender = new WebSocketSender(new PrintStream(out), socket);
+
+		data = new byte[size];
+		for (int idx = 0; idx < size; idx++) {
+			data[idx] = (byte) ('a' + idx % 26);
+		}
+	}
+
+	// NOTE: the frame masks the data in place, its content does not matter
+	@Benchmark
+	public long encode() throws Exception {
+		sender.send(OPCODE_TEXT, true, data);
+		while (sender.getQueueDepth() != 0) {
+			Thread.yield();
+		}
+		return out.count;
+	}
+}
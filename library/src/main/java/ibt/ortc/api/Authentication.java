@@ -3,24 +3,58 @@
  */
 package ibt.ortc.api;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.Map;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 /**
  * @author ORTC team members (ortc@ibt.pt)
  * 
  */
 public class Authentication {
+	private static volatile boolean gzipRequests = false;
+
+	// NOTE: the body is encoded while it is written to the connection, its
+	// size grows linearly with the number of channels
+	private static FormEncoder createPostBody(String authenticationToken,
+			boolean authenticationTokenIsPrivate, String applicationKey,
+			int timeToLive, String privateKey,
+			Map<String, LinkedList<ChannelPermissions>> permissions) {
+		FormEncoder postBody = new FormEncoder(permissions.size() + 6);
+		postBody.add("AT", authenticationToken).add("AK", applicationKey)
+				.add("PK", privateKey).add("TTL", String.valueOf(timeToLive))
+				.add("TP", String.valueOf(permissions.size()))
+				.add("PVT", authenticationTokenIsPrivate ? "1" : "0");
+
+		StringBuilder channelPermissionText = new StringBuilder(4);
+		for (Map.Entry<String, LinkedList<ChannelPermissions>> channelNamePerms : permissions
+				.entrySet()) {
+			channelPermissionText.setLength(0);
+			for (ChannelPermissions channelPermission : channelNamePerms.getValue()) {
+				channelPermissionText.append(channelPermission.getPermission());
+			}
+			postBody.add(channelNamePerms.getKey(), channelPermissionText.toString());
+		}
+		return postBody.setGzip(gzipRequests);
+	}
+
+	/**
+	 * Gets if the authentication requests are compressed
+	 */
+	static boolean getGzipRequests() {
+		return gzipRequests;
+	}
+
+	/**
+	 * Sets if the authentication requests are compressed with gzip
+	 */
+	static void setGzipRequests(boolean gzip) {
+		gzipRequests = gzip;
+	}
+
 	// CAUSE: Prefer throwing/catching meaningful exceptions instead of
 	// Exception
 	protected static boolean saveAuthentication(URL url,
@@ -28,35 +62,12 @@ public class Authentication {
 			String applicationKey, int timeToLive, String privateKey,
 			Map<String, LinkedList<ChannelPermissions>> permissions)
 			throws IOException {
-		String postBody = String.format(
-				"AT=%s&AK=%s&PK=%s&TTL=%s&TP=%s&PVT=%s", authenticationToken,
-				applicationKey, privateKey, timeToLive, permissions.size(),
-				(authenticationTokenIsPrivate ? "1" : "0"));
-
-		// CAUSE: Inefficient use of keySet iterator instead of entrySet
-		// iterator
-		for (Map.Entry<String, LinkedList<ChannelPermissions>> channelNamePerms : permissions
-				.entrySet()) {
-			LinkedList<ChannelPermissions> channelPermissions = channelNamePerms
-					.getValue();
-			// CAUSE: Method concatenates strings using + in a loop
-			// TODO: specify a correct capacity
-			StringBuilder channelPermissionText = new StringBuilder(16);
-			for (ChannelPermissions channelPermission : channelPermissions) {
-				channelPermissionText.append(channelPermission.getPermission());
-			}
-
-			String channelPermission = String.format("&%s=%s",
-					channelNamePerms.getKey(), channelPermissionText);
-			postBody = String.format("%s%s", postBody, channelPermission);
-		}
+		FormEncoder postBody = createPostBody(authenticationToken,
+				authenticationTokenIsPrivate, applicationKey, timeToLive,
+				privateKey, permissions);
 
-		// CAUSE: Unused assignment
-		boolean isAuthenticated;
-		isAuthenticated = "https".equals(url.getProtocol()) ? secureSaveAuthentication(
+		return "https".equals(url.getProtocol()) ? secureSaveAuthentication(
 				url, postBody) : unsecureSaveAuthentication(url, postBody);
-
-		return isAuthenticated;
 	}
 
 	protected static void saveAuthenticationAsync(URL url,
@@ -64,130 +75,85 @@ public class Authentication {
 			String applicationKey, int timeToLive, String privateKey,
 			Map<String, LinkedList<ChannelPermissions>> permissions,
 			OnRestWebserviceResponse onCompleted) throws IOException {
-		String postBody = String.format(
-				"AT=%s&AK=%s&PK=%s&TTL=%s&TP=%s&PVT=%s", authenticationToken,
-				applicationKey, privateKey, timeToLive, permissions.size(),
-				(authenticationTokenIsPrivate ? "1" : "0"));
-
-		// CAUSE: Inefficient use of keySet iterator instead of entrySet
-		// iterator
-		for (Map.Entry<String, LinkedList<ChannelPermissions>> channelNamePerms : permissions
-				.entrySet()) {
-			LinkedList<ChannelPermissions> channelPermissions = channelNamePerms
-					.getValue();
-			// CAUSE: Method concatenates strings using + in a loop
-			// TODO: specify a correct capacity
-			StringBuilder channelPermissionText = new StringBuilder(16);
-			for (ChannelPermissions channelPermission : channelPermissions) {
-				channelPermissionText.append(channelPermission.getPermission());
-			}
+		FormEncoder postBody = createPostBody(authenticationToken,
+				authenticationTokenIsPrivate, applicationKey, timeToLive,
+				privateKey, permissions);
 
-			String channelPermission = String.format("&%s=%s",
-					channelNamePerms.getKey(), channelPermissionText);
-			postBody = String.format("%s%s", postBody, channelPermission);
-		}
-
-		// CAUSE: Unused assignment
 		RestWebservice.postAsync(url, postBody, onCompleted);
 	}
 
 	// CAUSE: Prefer throwing/catching meaningful exceptions instead of
 	// Exception
-	protected static boolean unsecureSaveAuthentication(URL url, String postBody)
+	protected static boolean unsecureSaveAuthentication(URL url, FormEncoder postBody)
 			throws IOException {
-		HttpURLConnection connection = null;
-		boolean result = false;
-
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
 		try {
-			connection = (HttpURLConnection) url.openConnection();
 			connection.setRequestMethod("POST");
 			connection.setDoOutput(true);
+			RestWebservice.writeBody(connection, postBody);
+
+			boolean result = connection.getResponseCode() == 201;
+			RestWebservice.discard(result ? connection.getInputStream()
+					: connection.getErrorStream());
+			return result;
+		} catch (IOException error) {
+			connection.disconnect();
+			throw error;
+		}
+	}
 
-			OutputStreamWriter wr = null;
-			try {
-				// CAUSE: Reliance on default encoding
-				wr = new OutputStreamWriter(connection.getOutputStream(),
-						"UTF-8");
-
-				wr.write(postBody);
-
-				wr.flush();
-				// CAUSE: Method may fail to close stream on exception
-			} finally {
-				if (wr != null) {
-					wr.close();
-				}
-			}
+	// CAUSE: Prefer throwing/catching meaningful exceptions instead of
+	// Exception
+	private static boolean secureSaveAuthentication(URL url, FormEncoder postBody)
+			throws IOException {
+		int port = url.getPort() == -1 ? 443 : url.getPort();
+		// NOTE: a compressed body has no length until it is written
+		String request = String.format("POST %s HTTP/1.1\r\n", url.getPath())
+				+ "Host: " + url.getHost() + "\r\n"
+				+ "User-Agent: OrtcJavaApi\r\n" + "Connection: keep-alive\r\n"
+				+ (postBody.getGzip() ? "Transfer-Encoding: chunked\r\nContent-Encoding: gzip\r\n"
+						: "Content-Length: " + postBody.getContentLength() + "\r\n")
+				+ "Content-Type: " + FormEncoder.CONTENT_TYPE + "\r\n"
+				+ "\r\n";
 
-			BufferedReader rd = null;
+		SecureSocketPool pool = SecureSocketPool.getInstance();
+		SecureSocketPool.Connection connection = pool.acquire(url.getHost(), port);
+		try {
 			try {
-				// CAUSE: Reliance on default encoding
-				rd = new BufferedReader(new InputStreamReader(
-						connection.getInputStream(), "UTF-8"));
-				// CAUSE: Method may fail to close stream on exception
-			} finally {
-				if (rd != null) {
-					rd.close();
+				write(connection, request, postBody);
+			} catch (IOException e) {
+				// NOTE: the server may have closed an idle pooled connection.
+				// Only a failed write is retried, once the request is sent the
+				// server may have saved it and a second POST is not safe
+				if (!connection.isReused) {
+					throw e;
 				}
+				pool.release(connection, false);
+				connection = pool.acquire(url.getHost(), port);
+				write(connection, request, postBody);
 			}
-
-			result = connection.getResponseCode() == 201;
-			// CAUSE: Method may fail to close connection on exception
+			SecureSocketPool.Response response = SecureSocketPool.readResponse(connection.in);
+			pool.release(connection, response.keepAlive);
+			connection = null;
+			return response.status == 201;
 		} finally {
 			if (connection != null) {
-				connection.disconnect();
+				pool.release(connection, false);
 			}
 		}
-
-		return result;
 	}
 
-	// CAUSE: Prefer throwing/catching meaningful exceptions instead of
-	// Exception
-	private static boolean secureSaveAuthentication(URL url, String postBody)
-			throws IOException {
-		SSLSocketFactory sslsocketfactory = SecureWebConnections
-				.getFullTrustSSLFactory();
-
-		int port = url.getPort() == -1 ? 443 : url.getPort();
-
-		SSLSocket sslsocket = (SSLSocket) sslsocketfactory.createSocket(
-				url.getHost(), port);
-		String[] protocols = { "TLSv1" };
-		sslsocket.setEnabledProtocols(protocols);
-
-		OutputStream outputstream = sslsocket.getOutputStream();
-		// CAUSE: Reliance on default encoding
-		OutputStreamWriter outputstreamwriter = new OutputStreamWriter(
-				outputstream, "UTF-8");
-		BufferedWriter bufferedwriter = new BufferedWriter(outputstreamwriter);
-
-		// CAUSE: Reliance on default encoding
-		BufferedReader stdIn = new BufferedReader(new InputStreamReader(
-				sslsocket.getInputStream(), "UTF-8"));
-
-		String request = String.format("POST %s HTTP/1.1\r\n", url.getPath())
-				+ "User-Agent: OrtcJavaApi\r\n" + "Connection: keep-alive\r\n"
-				+ "Content-Length: " + postBody.length() + "\r\n"
-				+ "Content-Type: application/x-www-form-urlencoded\r\n"
-				+ "\r\n" + postBody + "\r\n\r\n";
-
-		bufferedwriter.write(request);
-		bufferedwriter.flush();
-
-		String reply = stdIn.readLine();
-		boolean isAuthenticated = false;
-		// CAUSE: Assignment expressions nested inside other expressions
-		while (!isAuthenticated && reply != null) {
-			isAuthenticated = reply.contains("HTTP/1.1 201");
-			reply = stdIn.readLine();
+	private static void write(SecureSocketPool.Connection connection,
+			String request, FormEncoder body) throws IOException {
+		connection.out.write(request.getBytes("UTF-8"));
+		if (body.getGzip()) {
+			SecureSocketPool.ChunkedOutputStream chunked = new SecureSocketPool.ChunkedOutputStream(connection.out);
+			body.writeTo(chunked);
+			chunked.finish();
+		} else {
+			body.writeTo(connection.out);
+			connection.out.flush();
 		}
-
-		outputstream.close();
-		stdIn.close();
-		sslsocket.close();
-
-		return isAuthenticated;
 	}
 
 	// CAUSE: Utility class contains only static elements and is still
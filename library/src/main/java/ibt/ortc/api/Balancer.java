@@ -52,7 +52,7 @@ public class Balancer{
 		if (!Strings.isNullOrEmpty(url) && isCluster)
         {
             try {
-				result = getServerFromBalancer(url, applicationKey);
+				result = BalancerCache.getInstance().getServer(url, applicationKey);
             // CAUSE: Prefer throwing/catching meaningful exceptions instead of Exception
             } catch (MalformedURLException ex) {
                 result = null;
@@ -73,7 +73,7 @@ public class Balancer{
 	protected static void getServerUrlAsyn(String url,Boolean isCluster,String applicationKey, final OnRestWebserviceResponse onCompleted) throws MalformedURLException{		
 		if (!Strings.isNullOrEmpty(url) && isCluster)
         {
-           getServerFromBalancerAsync(url, applicationKey, onCompleted);
+           BalancerCache.getInstance().getServerAsync(url, applicationKey, onCompleted);
         }
         else
         {
@@ -158,49 +158,53 @@ public class Balancer{
 	}
 
 	private static String unsecureRequest(URL url) throws InvalidBalancerServerException, IOException  {
-        HttpURLConnection connection = null;
-        String result = "";
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status;
+        // TODO: specify a correct capacity
+        StringBuilder lResult = new StringBuilder(16);
 
         try {
-            connection = (HttpURLConnection) url.openConnection();
             connection.setReadTimeout(1000*15);
             connection.setRequestProperty("user-agent", UserAgent);
-			connection.setUseCaches(false);
-		
-            BufferedReader rd = null;
-            try {
-                // CAUSE: Reliance on default encoding
-                rd = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-                // TODO: specify a correct capacity
-                StringBuilder lResult = new StringBuilder(16);
-
-                String line = rd.readLine();
-                // CAUSE: Assignment expressions nested inside other expressions
-                while (line != null) {
-                    // CAUSE: Method concatenates strings using + in a loop
-                    lResult.append(line);
-                    line = rd.readLine();
-		}
-
-                Matcher matcher = balancerServerPattern.matcher(lResult);
-		if (!matcher.matches()) {
-                    throw new InvalidBalancerServerException(lResult.toString());
-                }
-                result = matcher.group(1);
-            // CAUSE: Method may fail to close stream on exception
-            } finally {
-                if (rd != null) {
-                    rd.close();
+            connection.setUseCaches(false);
+
+            status = connection.getResponseCode();
+            if (status != 200) {
+                RestWebservice.discard(connection.getErrorStream());
+            } else {
+                BufferedReader rd = null;
+                try {
+                    // CAUSE: Reliance on default encoding
+                    rd = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+
+                    String line = rd.readLine();
+                    // CAUSE: Assignment expressions nested inside other expressions
+                    while (line != null) {
+                        // CAUSE: Method concatenates strings using + in a loop
+                        lResult.append(line);
+                        line = rd.readLine();
+                    }
+                // CAUSE: Method may fail to close stream on exception
+                } finally {
+                    if (rd != null) {
+                        rd.close();
+                    }
                 }
-		}
-        // CAUSE: Method may fail to close connection on exception
-        } finally {
-            if (connection != null) {
-		connection.disconnect();
             }
+        } catch (IOException error) {
+            connection.disconnect();
+            throw error;
         }
-		
-        return result;
+
+        if (status != 200) {
+            throw new IOException(String.format("Balancer returned the HTTP status %s", status));
+        }
+
+        Matcher matcher = balancerServerPattern.matcher(lResult);
+        if (!matcher.matches()) {
+            throw new InvalidBalancerServerException(lResult.toString());
+        }
+        return matcher.group(1);
 	}
 
     // CAUSE: Utility class contains only static elements and is still instantiable
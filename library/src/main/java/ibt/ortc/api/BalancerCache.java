@@ -0,0 +1,454 @@
+/**
+ * @fileoverview This file contains the cache of the servers returned by the balancer
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the Ortc servers returned by the Ortc Balancer, keyed by the
+ * balancer url and the application key.
+ *
+ * A server younger than the time to live is returned without calling the
+ * balancer, and refreshed in the background once it reaches 80% of its time
+ * to live. With stale while revalidate an expired server is still returned
+ * immediately while it is refreshed. When the balancer fails or is not
+ * reachable the cached server is used as a failover. A server the client
+ * could not connect to is always revalidated before being used again.
+ *
+ * The cache can be persisted to a properties file, so the first connection
+ * after the application restarts skips the balancer too.
+ *
+ * How to use:
+ *
+ * <pre>
+ * BalancerCache.getInstance().setPersistenceFile(new File(context.getCacheDir(), &quot;ortc-balancer&quot;));
+ * String server = BalancerCache.getInstance().getServer(balancerUrl, applicationKey);
+ * </pre>
+ */
+public class BalancerCache {
+	public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+	public static final long DEFAULT_MAX_STALE = 24 * 60 * 60 * 1000L;
+
+	private static final double REFRESH_AHEAD = 0.8;
+	private static final BalancerCache instance = new BalancerCache();
+
+	private static final class Entry {
+		final String server;
+		final long fetchedAt;
+		volatile boolean failed;
+
+		Entry(String server, long fetchedAt) {
+			this.server = server;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final ConcurrentHashMap<String, Boolean> refreshing;
+
+	private volatile long ttl;
+	private volatile long maxStale;
+	private volatile boolean staleWhileRevalidate;
+	private volatile File persistenceFile;
+
+	private final AtomicLong hits;
+	private final AtomicLong staleHits;
+	private final AtomicLong misses;
+	private final AtomicLong failovers;
+
+	/**
+	 * Gets the cache shared by the clients and the static api
+	 *
+	 * @return BalancerCache The cache instance
+	 */
+	public static BalancerCache getInstance() {
+		return instance;
+	}
+
+	private BalancerCache() {
+		this.entries = new ConcurrentHashMap<String, Entry>(16);
+		this.refreshing = new ConcurrentHashMap<String, Boolean>(16);
+		this.ttl = DEFAULT_TTL;
+		this.maxStale = DEFAULT_MAX_STALE;
+		this.staleWhileRevalidate = true;
+		this.hits = new AtomicLong(0);
+		this.staleHits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.failovers = new AtomicLong(0);
+	}
+
+	private static String keyOf(String balancerUrl, String applicationKey) {
+		return String.format("%s|%s", balancerUrl,
+				applicationKey == null ? "" : applicationKey);
+	}
+
+	// NOTE: the cached server if it can be used without calling the balancer
+	private String getUsable(String key, String balancerUrl, String applicationKey) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.failed) {
+			return null;
+		}
+
+		long age = System.currentTimeMillis() - entry.fetchedAt;
+		if (age < ttl) {
+			hits.incrementAndGet();
+			if (age > ttl * REFRESH_AHEAD) {
+				refresh(key, balancerUrl, applicationKey);
+			}
+			return entry.server;
+		}
+		if (staleWhileRevalidate && age < ttl + maxStale) {
+			staleHits.incrementAndGet();
+			refresh(key, balancerUrl, applicationKey);
+			return entry.server;
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves an Ortc Server url, from the cache when possible
+	 *
+	 * @param balancerUrl
+	 *            The Ortc Balancer url
+	 * @param applicationKey
+	 *            The application key
+	 * @return An Ortc Server url
+	 * @throws IOException
+	 *             If the balancer could not be reached and no server is cached
+	 * @throws InvalidBalancerServerException
+	 *             If the balancer has no server and no server is cached
+	 */
+	public String getServer(String balancerUrl, String applicationKey)
+			throws IOException, InvalidBalancerServerException {
+		String key = keyOf(balancerUrl, applicationKey);
+		String server = getUsable(key, balancerUrl, applicationKey);
+		if (server != null) {
+			return server;
+		}
+
+		misses.incrementAndGet();
+		Entry cached = entries.get(key);
+		try {
+			server = Balancer.getServerFromBalancer(balancerUrl, applicationKey);
+			put(key, server);
+			return server;
+		} catch (IOException e) {
+			if (cached == null) {
+				throw e;
+			}
+		} catch (InvalidBalancerServerException e) {
+			if (cached == null) {
+				throw e;
+			}
+		}
+		failovers.incrementAndGet();
+		return cached.server;
+	}
+
+	/**
+	 * Retrieves an Ortc Server url, from the cache when possible
+	 *
+	 * @param balancerUrl
+	 *            The Ortc Balancer url
+	 * @param applicationKey
+	 *            The application key
+	 * @param onCompleted
+	 *            Called with the server url or with the error if the
+	 *            balancer failed and no server is cached
+	 * @throws MalformedURLException
+	 */
+	public void getServerAsync(String balancerUrl, String applicationKey,
+			final OnRestWebserviceResponse onCompleted) throws MalformedURLException {
+		final String key = keyOf(balancerUrl, applicationKey);
+		String server = getUsable(key, balancerUrl, applicationKey);
+		if (server != null) {
+			onCompleted.run(null, server);
+			return;
+		}
+
+		misses.incrementAndGet();
+		final Entry cached = entries.get(key);
+		Balancer.getServerFromBalancerAsync(balancerUrl, applicationKey,
+				new OnRestWebserviceResponse() {
+					@Override
+					public void run(Exception error, String response) {
+						if (error == null) {
+							put(key, response);
+							onCompleted.run(null, response);
+						} else if (cached != null) {
+							failovers.incrementAndGet();
+							onCompleted.run(null, cached.server);
+						} else {
+							onCompleted.run(error, null);
+						}
+					}
+				});
+	}
+
+	private void refresh(final String key, String balancerUrl, String applicationKey) {
+		if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+		try {
+			Balancer.getServerFromBalancerAsync(balancerUrl, applicationKey,
+					new OnRestWebserviceResponse() {
+						@Override
+						public void run(Exception error, String response) {
+							if (error == null) {
+								put(key, response);
+							}
+							refreshing.remove(key);
+						}
+					});
+		} catch (MalformedURLException e) {
+			refreshing.remove(key);
+		}
+	}
+
+	private void put(String key, String server) {
+		entries.put(key, new Entry(server, System.currentTimeMillis()));
+		save();
+	}
+
+	/**
+	 * Marks a server the client could not connect to, it is revalidated with
+	 * the balancer before being used again
+	 *
+	 * @param balancerUrl
+	 *            The Ortc Balancer url
+	 * @param applicationKey
+	 *            The application key
+	 * @param server
+	 *            The server that failed
+	 */
+	public void markFailed(String balancerUrl, String applicationKey, String server) {
+		Entry entry = entries.get(keyOf(balancerUrl, applicationKey));
+		if (entry != null && server != null
+				&& Strings.treatUrl(entry.server).equals(Strings.treatUrl(server))) {
+			entry.failed = true;
+		}
+	}
+
+	/**
+	 * Removes the cached server of a balancer
+	 *
+	 * @param balancerUrl
+	 *            The Ortc Balancer url
+	 * @param applicationKey
+	 *            The application key
+	 */
+	public void invalidate(String balancerUrl, String applicationKey) {
+		entries.remove(keyOf(balancerUrl, applicationKey));
+		save();
+	}
+
+	/**
+	 * Removes every cached server
+	 */
+	public void clear() {
+		entries.clear();
+		save();
+	}
+
+	private synchronized void save() {
+		File file = persistenceFile;
+		if (file == null) {
+			return;
+		}
+		Properties properties = new Properties();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			properties.setProperty(entry.getKey(), String.format("%s %s",
+					entry.getValue().fetchedAt, entry.getValue().server));
+		}
+
+		// NOTE: written aside and renamed, a crash never leaves a partial file
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			properties.store(out, "Ortc balancer cache");
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			temp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void load(File file) {
+		if (!file.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			return;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		for (String key : properties.stringPropertyNames()) {
+			String value = properties.getProperty(key);
+			int separator = value.indexOf(' ');
+			if (separator <= 0) {
+				continue;
+			}
+			try {
+				long fetchedAt = Long.parseLong(value.substring(0, separator));
+				String server = value.substring(separator + 1);
+				Entry current = entries.get(key);
+				if (current == null || current.fetchedAt < fetchedAt) {
+					entries.put(key, new Entry(server, fetchedAt));
+				}
+			} catch (NumberFormatException e) {
+			}
+		}
+	}
+
+	/**
+	 * Gets the file the cache is persisted to
+	 *
+	 * @return File The file or null if the cache is only kept in memory
+	 */
+	public File getPersistenceFile() {
+		return persistenceFile;
+	}
+
+	/**
+	 * Sets the file the cache is persisted to and loads the servers it holds
+	 *
+	 * @param persistenceFile
+	 *            The file, null to keep the cache in memory only
+	 */
+	public void setPersistenceFile(File persistenceFile) {
+		this.persistenceFile = persistenceFile;
+		if (persistenceFile != null) {
+			load(persistenceFile);
+		}
+	}
+
+	/**
+	 * Gets how long a server is used without calling the balancer
+	 *
+	 * @return long Time to live in milliseconds
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Sets how long a server is used without calling the balancer
+	 *
+	 * @param ttl
+	 *            Time to live in milliseconds (default 10 minutes)
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Gets how long after the time to live an expired server is still used
+	 * while it is revalidated
+	 *
+	 * @return long Time in milliseconds
+	 */
+	public long getMaxStale() {
+		return maxStale;
+	}
+
+	/**
+	 * Sets how long after the time to live an expired server is still used
+	 * while it is revalidated
+	 *
+	 * @param maxStale
+	 *            Time in milliseconds (default 24 hours)
+	 */
+	public void setMaxStale(long maxStale) {
+		this.maxStale = maxStale;
+	}
+
+	/**
+	 * Gets if expired servers are used while they are revalidated
+	 *
+	 * @return boolean True if stale while revalidate is active
+	 */
+	public boolean getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	/**
+	 * Sets if expired servers are used while they are revalidated, instead
+	 * of waiting for the balancer
+	 *
+	 * @param staleWhileRevalidate
+	 *            True to use expired servers (default true)
+	 */
+	public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+		this.staleWhileRevalidate = staleWhileRevalidate;
+	}
+
+	/**
+	 * Gets the number of servers returned from the cache while fresh
+	 *
+	 * @return long Number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of expired servers returned while being revalidated
+	 *
+	 * @return long Number of stale hits
+	 */
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+
+	/**
+	 * Gets the number of requests that waited for the balancer
+	 *
+	 * @return long Number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of cached servers returned because the balancer failed
+	 *
+	 * @return long Number of failovers
+	 */
+	public long getFailovers() {
+		return failovers.get();
+	}
+}
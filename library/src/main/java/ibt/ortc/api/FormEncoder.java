@@ -0,0 +1,282 @@
+/**
+ * @fileoverview This file contains the encoder of the form request bodies
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes an application/x-www-form-urlencoded request body and streams it
+ * to the connection without building the body in memory.
+ *
+ * The exact length in bytes is computed without encoding the fields, so the
+ * body can be sent with a fixed Content-Length. A gzip body has no length
+ * before it is compressed and is sent chunked, use {@link #toByteArray()}
+ * to send it with a fixed length to a server without chunked bodies. The
+ * encoder can be written several times, for instance to retry a request.
+ *
+ * How to use:
+ *
+ * <pre>
+ * FormEncoder body = new FormEncoder(16);
+ * body.add(&quot;AT&quot;, authenticationToken).add(&quot;AK&quot;, applicationKey);
+ * connection.setFixedLengthStreamingMode((int) body.getContentLength());
+ * body.writeTo(connection.getOutputStream());
+ * </pre>
+ */
+public final class FormEncoder {
+	public static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7',
+			'8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ArrayList<String> fields;
+	private final String encodedBody;
+	private boolean gzip;
+	private long contentLength;
+
+	/**
+	 * Creates an empty body
+	 *
+	 * @param capacity
+	 *            Expected number of fields
+	 */
+	public FormEncoder(int capacity) {
+		this.fields = new ArrayList<String>(capacity * 2);
+		this.encodedBody = null;
+		this.contentLength = 0;
+	}
+
+	// NOTE: a body already encoded by the caller, sent as is
+	FormEncoder(String encodedBody) {
+		this.fields = null;
+		this.encodedBody = encodedBody == null ? "" : encodedBody;
+		this.contentLength = -1;
+	}
+
+	/**
+	 * Adds a field to the body
+	 *
+	 * @param name
+	 *            Field name
+	 * @param value
+	 *            Field value, null is sent as an empty value
+	 * @return FormEncoder This encoder
+	 */
+	public FormEncoder add(String name, String value) {
+		if (fields == null) {
+			throw new IllegalStateException("The body is already encoded");
+		}
+		String lValue = value == null ? "" : value;
+		if (!fields.isEmpty()) {
+			contentLength++;
+		}
+		contentLength += encodedLength(name) + 1 + encodedLength(lValue);
+		fields.add(name);
+		fields.add(lValue);
+		return this;
+	}
+
+	/**
+	 * Gets the number of fields
+	 *
+	 * @return int Number of fields
+	 */
+	public int size() {
+		return fields == null ? 0 : fields.size() / 2;
+	}
+
+	/**
+	 * Gets if the body is compressed with gzip
+	 *
+	 * @return boolean True if the body is compressed
+	 */
+	public boolean getGzip() {
+		return gzip;
+	}
+
+	/**
+	 * Sets if the body is compressed with gzip, the request must then be sent
+	 * with the Content-Encoding gzip header
+	 *
+	 * @param gzip
+	 *            True to compress the body (default false)
+	 * @return FormEncoder This encoder
+	 */
+	public FormEncoder setGzip(boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+
+	/**
+	 * Gets the length of the encoded body before compression
+	 *
+	 * @return long Length in bytes
+	 */
+	public long getContentLength() {
+		if (contentLength < 0) {
+			contentLength = utf8Length(encodedBody);
+		}
+		return contentLength;
+	}
+
+	/**
+	 * Writes the body, compressed when gzip is set
+	 *
+	 * @param out
+	 *            The stream of the request, it is not closed
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (gzip) {
+			GZIPOutputStream zip = new GZIPOutputStream(out, BUFFER_SIZE);
+			writeEncoded(zip);
+			zip.finish();
+		} else {
+			writeEncoded(out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Gets the body as it is sent, compressed when gzip is set
+	 *
+	 * @return byte[] The body
+	 * @throws IOException
+	 */
+	public byte[] toByteArray() throws IOException {
+		long length = getContentLength();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				gzip ? BUFFER_SIZE : (int) Math.min(length, Integer.MAX_VALUE));
+		writeTo(out);
+		return out.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		if (encodedBody != null) {
+			return encodedBody;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(contentLength, Integer.MAX_VALUE));
+		try {
+			writeEncoded(out);
+			return out.toString("US-ASCII");
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	private void writeEncoded(OutputStream out) throws IOException {
+		if (encodedBody != null) {
+			out.write(encodedBody.getBytes("UTF-8"));
+			return;
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int position = 0;
+		for (int i = 0; i < fields.size(); i += 2) {
+			if (i > 0) {
+				position = put(out, buffer, position, '&');
+			}
+			position = encode(out, buffer, position, fields.get(i));
+			position = put(out, buffer, position, '=');
+			position = encode(out, buffer, position, fields.get(i + 1));
+		}
+		out.write(buffer, 0, position);
+	}
+
+	private static int put(OutputStream out, byte[] buffer, int position, int value) throws IOException {
+		if (position == buffer.length) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+		buffer[position] = (byte) value;
+		return position + 1;
+	}
+
+	private static int encode(OutputStream out, byte[] buffer, int position, String value) throws IOException {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (isUnreserved(c)) {
+				position = put(out, buffer, position, c);
+			} else if (c == ' ') {
+				position = put(out, buffer, position, '+');
+			} else if (c < 0x80) {
+				position = putEscaped(out, buffer, position, c);
+			} else if (c < 0x800) {
+				position = putEscaped(out, buffer, position, 0xC0 | (c >> 6));
+				position = putEscaped(out, buffer, position, 0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				position = putEscaped(out, buffer, position, 0xF0 | (codePoint >> 18));
+				position = putEscaped(out, buffer, position, 0x80 | ((codePoint >> 12) & 0x3F));
+				position = putEscaped(out, buffer, position, 0x80 | ((codePoint >> 6) & 0x3F));
+				position = putEscaped(out, buffer, position, 0x80 | (codePoint & 0x3F));
+			} else if (isSurrogate(c)) {
+				// NOTE: an unpaired surrogate is sent as '?' like String.getBytes
+				position = putEscaped(out, buffer, position, '?');
+			} else {
+				position = putEscaped(out, buffer, position, 0xE0 | (c >> 12));
+				position = putEscaped(out, buffer, position, 0x80 | ((c >> 6) & 0x3F));
+				position = putEscaped(out, buffer, position, 0x80 | (c & 0x3F));
+			}
+		}
+		return position;
+	}
+
+	private static int putEscaped(OutputStream out, byte[] buffer, int position, int value) throws IOException {
+		position = put(out, buffer, position, '%');
+		position = put(out, buffer, position, HEX[(value >> 4) & 0xF]);
+		return put(out, buffer, position, HEX[value & 0xF]);
+	}
+
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '-' || c == '_' || c == '.' || c == '*';
+	}
+
+	// NOTE: same rules as encode, counted without writing
+	private static long encodedLength(String value) {
+		long length = 0;
+		int size = value.length();
+		for (int i = 0; i < size; i++) {
+			char c = value.charAt(i);
+			if (isUnreserved(c) || c == ' ') {
+				length++;
+			} else if (c < 0x80) {
+				length += 3;
+			} else if (c < 0x800) {
+				length += 6;
+			} else if (Character.isHighSurrogate(c) && i + 1 < size
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 12;
+				i++;
+			} else if (isSurrogate(c)) {
+				length += 3;
+			} else {
+				length += 9;
+			}
+		}
+		return length;
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= '\uD800' && c <= '\uDFFF';
+	}
+
+	private static long utf8Length(String value) {
+		try {
+			return value.getBytes("UTF-8").length;
+		} catch (UnsupportedEncodingException e) {
+			return value.length();
+		}
+	}
+}
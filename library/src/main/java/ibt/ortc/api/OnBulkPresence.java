@@ -0,0 +1,7 @@
+package ibt.ortc.api;
+
+import java.util.Map;
+
+public interface OnBulkPresence {
+	public void run(Map<String, Presence> presences, Map<String, Exception> errors);
+}
@@ -6,6 +6,7 @@ package ibt.ortc.api;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -286,7 +287,7 @@ public class Ortc {
 			OrtcAuthenticationNotAuthorizedException {
 		String connectionUrl = url;
 		if (isCluster) {
-			connectionUrl = Balancer.getServerFromBalancer(url, applicationKey);
+			connectionUrl = BalancerCache.getInstance().getServer(url, applicationKey);
 		}
 
 		boolean isAuthenticated = false;
@@ -367,7 +368,7 @@ public class Ortc {
 			OrtcAuthenticationNotAuthorizedException {
 		String connectionUrl = url;
 		if (isCluster) {
-			connectionUrl = Balancer.getServerFromBalancer(url, applicationKey);
+			connectionUrl = BalancerCache.getInstance().getServer(url, applicationKey);
 		}
 
 		boolean isAuthenticated = false;
@@ -502,7 +503,7 @@ public class Ortc {
 			OrtcAuthenticationNotAuthorizedException {
 		String connectionUrl = url;
 		if (isCluster) {
-			Balancer.getServerFromBalancerAsync(url, applicationKey, new OnRestWebserviceResponse() {
+			BalancerCache.getInstance().getServerAsync(url, applicationKey, new OnRestWebserviceResponse() {
 				@Override
 				public void run(Exception error, String response) {
 					if(error != null){
@@ -579,10 +580,51 @@ public class Ortc {
 	public static void presence(String url, Boolean isCluster,
 			String applicationKey, String authenticationToken, String channel,
 			OnPresence callback) {
-		Presence.getPresence(url, isCluster, applicationKey,
+		PresenceCache.getInstance().getPresence(url, isCluster, applicationKey,
 				authenticationToken, channel, callback);
 	}
 
+	/**
+	 * Gets the subscriptions of several channels at once. The server is
+	 * resolved once and the channels are requested in a single batch request
+	 * when the server supports it, otherwise one request per channel runs on
+	 * the shared REST pool. The fresh results of {@link PresenceCache} are
+	 * returned without a request.
+	 * 
+	 * <pre>
+	 * Ortc.presence(&quot;http://ortc-developers.realtime.co/server/2.1/&quot;, true,
+	 * 		&quot;APPLICATION_KEY&quot;, &quot;AUTHENTICATION_TOKEN&quot;, channels, new OnBulkPresence() {
+	 * 
+	 * 			public void run(Map&lt;String, Presence&gt; presences, Map&lt;String, Exception&gt; errors) {
+	 * 				for (Map.Entry&lt;String, Presence&gt; entry : presences.entrySet()) {
+	 * 					System.out.println(entry.getKey() + &quot; - &quot;
+	 * 							+ entry.getValue().getSubscriptions());
+	 * 				}
+	 * 			}
+	 * 		});
+	 * </pre>
+	 * 
+	 * @param url
+	 *            Server containing the presence service.
+	 * @param isCluster
+	 *            Specifies if url is cluster.
+	 * @param applicationKey
+	 *            Application key with access to presence service.
+	 * @param authenticationToken
+	 *            Authentication token with access to presence service.
+	 * @param channels
+	 *            Channels with presence data active.
+	 * @param callback
+	 *            Callback with the presence of each channel and the error of
+	 *            each channel that failed.
+	 */
+	public static void presence(String url, Boolean isCluster,
+			String applicationKey, String authenticationToken,
+			Collection<String> channels, OnBulkPresence callback) {
+		PresenceCache.getInstance().getPresence(url, isCluster, applicationKey,
+				authenticationToken, channels, callback);
+	}
+
 	/**
 	 * Enables presence for the specified channel with first 100 unique metadata
 	 * if metadata is set to true.
@@ -663,6 +705,27 @@ public class Ortc {
 				channel, callback);
 	}
 
+	/**
+	 * Gets if the authentication requests are compressed
+	 * 
+	 * @return boolean True if the body of saveAuthentication is sent with gzip
+	 */
+	public static boolean getAuthenticationGzip() {
+		return Authentication.getGzipRequests();
+	}
+
+	/**
+	 * Sets if the authentication requests are compressed with gzip, which
+	 * reduces the upload of tokens with many channel permissions. The server
+	 * must accept gzip request bodies.
+	 * 
+	 * @param gzip
+	 *            True to compress the requests (default false)
+	 */
+	public static void setAuthenticationGzip(boolean gzip) {
+		Authentication.setGzipRequests(gzip);
+	}
+
 	/**
 	 * Returns the on message event to be executed when a push notification is received and there is a Realtime Client that is not connected
 	 * @return onPushNotification
@@ -4,9 +4,15 @@ package ibt.ortc.api;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
@@ -41,28 +47,186 @@ public class Presence {
 		
 		if(!Strings.isNullOrEmpty(message))
 		{
-			JSONObject json = (JSONObject) (JSONValue.parse(message));
+			result = deserialize((JSONObject) (JSONValue.parse(message)));
+		}		
+		
+		return result;
+	}
+
+    private static Presence deserialize(JSONObject json){
+		Presence result = new Presence();
+		
+		if (json != null) {
+			result.setSubscriptions((Long) json.get("subscriptions"));
 			
-			if (json != null) {
-				result.setSubscriptions((Long) json.get("subscriptions"));
-				
-				JSONObject jsonMetadata = (JSONObject)json.get("metadata");
-				if(jsonMetadata != null){
+			JSONObject jsonMetadata = (JSONObject)json.get("metadata");
+			if(jsonMetadata != null){
+				@SuppressWarnings("unchecked")
+				Iterator<?> iter = ((Map<String, Long>) jsonMetadata).entrySet().iterator();
+				while (iter.hasNext()) {
 					@SuppressWarnings("unchecked")
-					Iterator<?> iter = ((Map<String, Long>) jsonMetadata).entrySet().iterator();
-					while (iter.hasNext()) {
-						@SuppressWarnings("unchecked")
-						Map.Entry<String, Long> entry = (Map.Entry<String, Long>) iter.next();
-						
-						result.metadata.put(entry.getKey(), entry.getValue());
-					}
+					Map.Entry<String, Long> entry = (Map.Entry<String, Long>) iter.next();
+					
+					result.metadata.put(entry.getKey(), entry.getValue());
 				}
 			}
-		}		
+		}
 		
 		return result;
 	}
 	
+	private static String presenceServerUrl(String presenceUrl){
+		return Strings.isNullOrEmpty(presenceUrl) ? presenceUrl : presenceUrl.charAt(presenceUrl.length() -1) == '/' ? presenceUrl : String.format("%s/", presenceUrl);
+	}
+
+	private static void requestPresence(String serverUrl, String applicationKey, String authenticationToken, String channel, final OnPresence callback){
+		try {
+			URL requestUrl = new URL(String.format("%spresence/%s/%s/%s", serverUrl, applicationKey, authenticationToken, channel));
+
+			RestWebservice.getAsync(requestUrl, new OnRestWebserviceResponse() {
+				@Override
+				public void run(Exception error, String response) {
+					if(error != null){
+						callback.run(error, null);
+					}else{
+						callback.run(null, Presence.deserialize(response));
+					}
+				}
+			});
+		} catch (IOException e) {
+			callback.run(e, null);
+		}
+	}
+
+	protected static void getPresence(String url, Boolean isCluster, final String applicationKey, final String authenticationToken, final Collection<String> channels, final OnBulkPresence callback){
+		final BulkPresenceRequest request = new BulkPresenceRequest(channels, callback);
+		if (request.isDone()) {
+			return;
+		}
+		try {
+			Balancer.getServerUrlAsyn(url, isCluster, applicationKey, new OnRestWebserviceResponse() {
+				@Override
+				public void run(Exception error, String presenceUrl) {
+					if(error != null){
+						request.failAll(error);
+						return;
+					}
+					final String serverUrl = presenceServerUrl(presenceUrl);
+					Long batchRetry = batchFailures.get(serverUrl);
+					if (batchRetry != null && batchRetry > System.currentTimeMillis()) {
+						requestEach(serverUrl, applicationKey, authenticationToken, request);
+						return;
+					}
+					requestBatch(serverUrl, applicationKey, authenticationToken, request);
+				}
+			});
+		} catch (MalformedURLException e) {
+			request.failAll(e);
+		}
+	}
+
+	// NOTE: a server whose batch request failed, whatever the error, has its
+	// channels requested one by one until the retry time
+	private static final long BATCH_RETRY_INTERVAL = 10 * 60 * 1000L;
+	private static final ConcurrentHashMap<String, Long> batchFailures = new ConcurrentHashMap<String, Long>(4);
+
+	private static void requestBatch(final String serverUrl, final String applicationKey, final String authenticationToken, final BulkPresenceRequest request){
+		// NOTE: one field per channel, a channel name is never split
+		FormEncoder content = new FormEncoder(request.pendingChannels().size());
+		for (String channel : request.pendingChannels()) {
+			content.add("channels", channel);
+		}
+
+		try {
+			URL requestUrl = new URL(String.format("%spresence/%s/%s", serverUrl, applicationKey, authenticationToken));
+			RestWebservice.postAsync(requestUrl, content, new OnRestWebserviceResponse() {
+				@Override
+				public void run(Exception error, String response) {
+					Object json = error == null ? JSONValue.parse(response) : null;
+					if (!(json instanceof JSONObject)) {
+						batchFailures.put(serverUrl, System.currentTimeMillis() + BATCH_RETRY_INTERVAL);
+						requestEach(serverUrl, applicationKey, authenticationToken, request);
+						return;
+					}
+					batchFailures.remove(serverUrl);
+					JSONObject presences = (JSONObject) json;
+					for (String channel : request.pendingChannels()) {
+						Object presence = presences.get(channel);
+						if (presence instanceof JSONObject) {
+							request.complete(channel, null, deserialize((JSONObject) presence));
+						} else {
+							request.complete(channel, new Exception(String.format("No presence data for the channel %s", channel)), null);
+						}
+					}
+				}
+			});
+		} catch (IOException e) {
+			requestEach(serverUrl, applicationKey, authenticationToken, request);
+		}
+	}
+
+	// NOTE: RestWebservice bounds the requests running at once against the
+	// server and reuses its kept-alive connections
+	private static void requestEach(String serverUrl, String applicationKey, String authenticationToken, final BulkPresenceRequest request){
+		for (final String channel : request.pendingChannels()) {
+			requestPresence(serverUrl, applicationKey, authenticationToken, channel, new OnPresence() {
+				@Override
+				public void run(Exception error, Presence presence) {
+					request.complete(channel, error, presence);
+				}
+			});
+		}
+	}
+
+	// NOTE: also gathers the cached and coalesced results of PresenceCache
+	static final class BulkPresenceRequest {
+		private final List<String> channels;
+		private final OnBulkPresence callback;
+		private final ConcurrentHashMap<String, Presence> presences;
+		private final ConcurrentHashMap<String, Exception> errors;
+		private final AtomicInteger remaining;
+
+		BulkPresenceRequest(Collection<String> channels, OnBulkPresence callback) {
+			this.channels = new ArrayList<String>(new LinkedHashSet<String>(channels));
+			this.callback = callback;
+			this.presences = new ConcurrentHashMap<String, Presence>(this.channels.size() * 2);
+			this.errors = new ConcurrentHashMap<String, Exception>(4);
+			this.remaining = new AtomicInteger(this.channels.size());
+			if (this.channels.isEmpty()) {
+				finish();
+			}
+		}
+
+		boolean isDone() {
+			return remaining.get() == 0;
+		}
+
+		List<String> pendingChannels() {
+			return channels;
+		}
+
+		void complete(String channel, Exception error, Presence presence) {
+			if (error != null) {
+				errors.put(channel, error);
+			} else {
+				presences.put(channel, presence);
+			}
+			if (remaining.decrementAndGet() == 0) {
+				finish();
+			}
+		}
+
+		void failAll(Exception error) {
+			for (String channel : channels) {
+				complete(channel, error, null);
+			}
+		}
+
+		private void finish() {
+			callback.run(new HashMap<String, Presence>(presences), new HashMap<String, Exception>(errors));
+		}
+	}
+
 	protected static void getPresence(String url, Boolean isCluster, final String applicationKey, final String authenticationToken, final String channel, final OnPresence callback){
 		try {
 			Balancer.getServerUrlAsyn(url, isCluster, applicationKey, new OnRestWebserviceResponse() {			
@@ -71,30 +235,7 @@ public class Presence {
 					if(error != null){
 						callback.run(error, null);
 					}else{
-						// CAUSE: Prefer String.format to +
-				        presenceUrl = Strings.isNullOrEmpty(presenceUrl) ? presenceUrl : presenceUrl.charAt(presenceUrl.length() -1) == '/' ? presenceUrl : String.format("%s/", presenceUrl);
-						
-				        // CAUSE: Prefer String.format to +
-				        presenceUrl += String.format("presence/%s/%s/%s", applicationKey, authenticationToken, channel);
-						
-						try {
-							URL requestUrl = new URL(presenceUrl);
-							
-							RestWebservice.getAsync(requestUrl, new OnRestWebserviceResponse() {
-								
-								@Override
-								public void run(Exception error, String response) {
-									if(error != null){
-										callback.run(error, null);
-									}else{
-				                        Presence result = Presence.deserialize(response);
-										callback.run(null, result);
-									}					
-								}
-							});			
-				        } catch (IOException e) {
-							callback.run(e, null);
-						}
+						requestPresence(presenceServerUrl(presenceUrl), applicationKey, authenticationToken, channel, callback);
 					}
 				}
 			});
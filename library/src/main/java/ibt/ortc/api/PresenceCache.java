@@ -0,0 +1,274 @@
+/**
+ * @fileoverview This file contains the cache of the presence results
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the presence results, keyed by application key, channel and
+ * authentication token.
+ *
+ * A result younger than the freshness window is returned without calling
+ * the presence service. Concurrent requests for the same channel share a
+ * single request, every caller receives its result. A bulk request only asks
+ * the service for the channels neither cached nor in flight, and caches the
+ * result of each channel. A client can invalidate
+ * the results of a channel when it receives the ortcClientSubscribed and
+ * ortcClientUnsubscribed announcements (see
+ * OrtcClient.setInvalidatePresenceOnAnnouncement).
+ *
+ * The returned {@link Presence} is shared by the callers and must not be
+ * modified.
+ *
+ * How to use:
+ *
+ * <pre>
+ * PresenceCache.getInstance().setFreshness(5000);
+ * </pre>
+ */
+public class PresenceCache {
+	public static final long DEFAULT_FRESHNESS = 1000;
+
+	private static final PresenceCache instance = new PresenceCache();
+
+	private static final class Entry {
+		final Presence presence;
+		final long fetchedAt;
+
+		Entry(Presence presence, long fetchedAt) {
+			this.presence = presence;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private static final class Request {
+		final List<OnPresence> callbacks = new ArrayList<OnPresence>(4);
+		boolean invalidated;
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final HashMap<String, Request> inFlight;
+
+	private volatile long freshness;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong coalesced;
+
+	/**
+	 * Gets the cache shared by the clients and the static api
+	 *
+	 * @return PresenceCache The cache instance
+	 */
+	public static PresenceCache getInstance() {
+		return instance;
+	}
+
+	private PresenceCache() {
+		this.entries = new ConcurrentHashMap<String, Entry>(16);
+		this.inFlight = new HashMap<String, Request>(16);
+		this.freshness = DEFAULT_FRESHNESS;
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.coalesced = new AtomicLong(0);
+	}
+
+	private static String channelKeyOf(String applicationKey, String channel) {
+		return String.format("%s|%s|", applicationKey, channel);
+	}
+
+	private static String keyOf(String applicationKey, String channel, String authenticationToken) {
+		return String.format("%s%s", channelKeyOf(applicationKey, channel), authenticationToken);
+	}
+
+	// NOTE: returns true if the caller has to request the channel, the
+	// callback is then the first of a new request in flight
+	private boolean lookup(String key, OnPresence callback) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() - entry.fetchedAt < freshness) {
+			hits.incrementAndGet();
+			callback.run(null, entry.presence);
+			return false;
+		}
+
+		synchronized (inFlight) {
+			Request request = inFlight.get(key);
+			if (request != null) {
+				coalesced.incrementAndGet();
+				request.callbacks.add(callback);
+				return false;
+			}
+			request = new Request();
+			request.callbacks.add(callback);
+			inFlight.put(key, request);
+		}
+		misses.incrementAndGet();
+		return true;
+	}
+
+	private void complete(String key, Exception error, Presence presence) {
+		Request request;
+		synchronized (inFlight) {
+			request = inFlight.remove(key);
+			if (error == null && !request.invalidated) {
+				entries.put(key, new Entry(presence, System.currentTimeMillis()));
+			}
+		}
+		for (OnPresence callback : request.callbacks) {
+			callback.run(error, presence);
+		}
+	}
+
+	/**
+	 * Gets the presence of a channel, from the cache when possible
+	 */
+	void getPresence(String url, Boolean isCluster, String applicationKey,
+			String authenticationToken, String channel, OnPresence callback) {
+		final String key = keyOf(applicationKey, channel, authenticationToken);
+		if (!lookup(key, callback)) {
+			return;
+		}
+
+		Presence.getPresence(url, isCluster, applicationKey, authenticationToken, channel,
+				new OnPresence() {
+					@Override
+					public void run(Exception error, Presence presence) {
+						complete(key, error, presence);
+					}
+				});
+	}
+
+	/**
+	 * Gets the presence of several channels, the cached channels are not
+	 * requested again
+	 */
+	void getPresence(String url, Boolean isCluster, final String applicationKey,
+			final String authenticationToken, Collection<String> channels, OnBulkPresence callback) {
+		final Presence.BulkPresenceRequest result = new Presence.BulkPresenceRequest(channels, callback);
+		final ArrayList<String> missing = new ArrayList<String>(result.pendingChannels().size());
+		for (final String channel : result.pendingChannels()) {
+			boolean isMissing = lookup(keyOf(applicationKey, channel, authenticationToken), new OnPresence() {
+				@Override
+				public void run(Exception error, Presence presence) {
+					result.complete(channel, error, presence);
+				}
+			});
+			if (isMissing) {
+				missing.add(channel);
+			}
+		}
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		Presence.getPresence(url, isCluster, applicationKey, authenticationToken, missing,
+				new OnBulkPresence() {
+					@Override
+					public void run(Map<String, Presence> presences, Map<String, Exception> errors) {
+						for (String channel : missing) {
+							Presence presence = presences.get(channel);
+							Exception error = errors.get(channel);
+							if (presence == null && error == null) {
+								error = new Exception(String.format("No presence data for the channel %s", channel));
+							}
+							complete(keyOf(applicationKey, channel, authenticationToken), error, presence);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Removes the cached presence of a channel, a request in flight is not
+	 * cached when it completes
+	 *
+	 * @param applicationKey
+	 *            The application key
+	 * @param channel
+	 *            The channel
+	 */
+	public void invalidate(String applicationKey, String channel) {
+		String prefix = channelKeyOf(applicationKey, channel);
+		synchronized (inFlight) {
+			Iterator<String> keys = entries.keySet().iterator();
+			while (keys.hasNext()) {
+				if (keys.next().startsWith(prefix)) {
+					keys.remove();
+				}
+			}
+			for (Map.Entry<String, Request> request : inFlight.entrySet()) {
+				if (request.getKey().startsWith(prefix)) {
+					request.getValue().invalidated = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes every cached presence
+	 */
+	public void clear() {
+		synchronized (inFlight) {
+			entries.clear();
+			for (Request request : inFlight.values()) {
+				request.invalidated = true;
+			}
+		}
+	}
+
+	/**
+	 * Gets how long a presence result is returned without calling the
+	 * presence service
+	 *
+	 * @return long Freshness window in milliseconds
+	 */
+	public long getFreshness() {
+		return freshness;
+	}
+
+	/**
+	 * Sets how long a presence result is returned without calling the
+	 * presence service, 0 only shares the concurrent requests
+	 *
+	 * @param freshness
+	 *            Freshness window in milliseconds (default 1000)
+	 */
+	public void setFreshness(long freshness) {
+		this.freshness = freshness;
+	}
+
+	/**
+	 * Gets the number of results returned from the cache
+	 *
+	 * @return long Number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of requests sent to the presence service
+	 *
+	 * @return long Number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of callers that shared a request in flight
+	 *
+	 * @return long Number of coalesced requests
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+}
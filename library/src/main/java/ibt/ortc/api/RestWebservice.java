@@ -4,30 +4,87 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.HttpsURLConnection;
 import org.apache.http.HttpException;
 
+import ibt.ortc.extensibility.ClientMetrics;
+
+/**
+ * Runs the REST requests of the api (presence, balancer and authentication)
+ * on a shared bounded pool of threads.
+ *
+ * At most {@link #getMaxRequestsPerHost()} requests run at once against the
+ * same host, the others wait in that host queue without holding a thread.
+ * A connection is only disconnected when its request fails with an I/O
+ * error. Otherwise the response, or the error response, is read to the end
+ * so the connection returns to the keep-alive pool and the next request to
+ * the same host skips the TCP and TLS handshakes. The balancer and
+ * authentication requests follow the same policy.
+ */
 public class RestWebservice {
-  
+  public static final int DEFAULT_MAX_THREADS = 4;
+  public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+
+  private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS,
+      30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ortc-rest-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static final HashMap<String, HostQueue> hosts = new HashMap<String, HostQueue>(8);
+  private static volatile int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+  private static final AtomicInteger queued = new AtomicInteger(0);
+  private static final AtomicLong completed = new AtomicLong(0);
+  private static volatile ClientMetrics metrics = ClientMetrics.NONE;
+
+  static {
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  private static final class HostQueue {
+    final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    int active;
+  }
+
   protected static void getAsync(URL url, OnRestWebserviceResponse callback) {
     requestAsync(url, "GET", null, callback);
   }
 
   protected static void postAsync(URL url, String content, OnRestWebserviceResponse callback) {
+    requestAsync(url, "POST", new FormEncoder(content), callback);
+  }
+
+  protected static void postAsync(URL url, FormEncoder content, OnRestWebserviceResponse callback) {
     requestAsync(url, "POST", content, callback);
   }
 
-  private static void requestAsync(final URL url, final String method, final String content, final OnRestWebserviceResponse callback) {
+  private static void requestAsync(final URL url, final String method, final FormEncoder content, final OnRestWebserviceResponse callback) {
     Runnable task = new Runnable() {
 
       @Override
       public void run() {
+        long start = System.currentTimeMillis();
         if (method.equals("GET")) {
           try {
             String result = "https".equals(url.getProtocol()) ? secureGetRequest(url) : unsecureGetRequest(url);
+            metrics.onRestLatency(System.currentTimeMillis() - start);
             callback.run(null, result);
           } catch (IOException error) {
             callback.run(error, null);
@@ -37,6 +94,7 @@ public class RestWebservice {
         } else if (method.equals("POST")) {
           try {
             String result = "https".equals(url.getProtocol()) ? securePostRequest(url, content) : unsecurePostRequest(url, content);
+            metrics.onRestLatency(System.currentTimeMillis() - start);
             callback.run(null, result);
           } catch (IOException error) {
             callback.run(error, null);
@@ -49,7 +107,218 @@ public class RestWebservice {
       }
     };
 
-    new Thread(task).start();
+    execute(url.getHost(), task);
+  }
+
+  private static void execute(final String host, final Runnable task) {
+    Runnable request = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          completed.incrementAndGet();
+          Runnable next = null;
+          synchronized (hosts) {
+            HostQueue queue = hosts.get(host);
+            next = queue.pending.poll();
+            if (next == null) {
+              queue.active--;
+              if (queue.active == 0) {
+                hosts.remove(host);
+              }
+            } else {
+              queued.decrementAndGet();
+            }
+          }
+          if (next != null) {
+            executor.execute(next);
+          }
+        }
+      }
+    };
+
+    synchronized (hosts) {
+      HostQueue queue = hosts.get(host);
+      if (queue == null) {
+        queue = new HostQueue();
+        hosts.put(host, queue);
+      }
+      if (queue.active >= maxRequestsPerHost) {
+        queue.pending.add(request);
+        queued.incrementAndGet();
+        return;
+      }
+      queue.active++;
+    }
+    executor.execute(request);
+  }
+
+  /**
+   * Gets the listener of the latency of the requests
+   *
+   * @return ClientMetrics The listener, {@link ClientMetrics#NONE} if none was set
+   */
+  public static ClientMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets the listener of the latency of the successful requests, shared by
+   * every client since the requests run on a shared pool. Null stops the
+   * updates.
+   *
+   * @param metrics The listener, for instance the one of the clients
+   */
+  public static void setMetrics(ClientMetrics metrics) {
+    RestWebservice.metrics = metrics == null ? ClientMetrics.NONE : metrics;
+  }
+
+  /**
+   * Gets the maximum number of threads running requests
+   *
+   * @return int Maximum number of threads
+   */
+  public static int getMaxThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  /**
+   * Sets the maximum number of threads running requests, idle threads stop
+   * after 30 seconds
+   *
+   * @param maxThreads
+   *          Maximum number of threads (default 4)
+   */
+  public static void setMaxThreads(int maxThreads) {
+    if (maxThreads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(maxThreads);
+      executor.setCorePoolSize(maxThreads);
+    } else {
+      executor.setCorePoolSize(maxThreads);
+      executor.setMaximumPoolSize(maxThreads);
+    }
+  }
+
+  /**
+   * Gets the maximum number of requests running at once against a host
+   *
+   * @return int Maximum number of requests per host
+   */
+  public static int getMaxRequestsPerHost() {
+    return maxRequestsPerHost;
+  }
+
+  /**
+   * Sets the maximum number of requests running at once against a host
+   *
+   * @param maxRequestsPerHost
+   *          Maximum number of requests per host (default 2)
+   */
+  public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+    RestWebservice.maxRequestsPerHost = maxRequestsPerHost;
+  }
+
+  /**
+   * Gets the number of requests running
+   *
+   * @return int Number of running requests
+   */
+  public static int getActiveRequests() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Gets the number of requests waiting for a thread or for their host
+   *
+   * @return int Number of waiting requests
+   */
+  public static int getQueuedRequests() {
+    return queued.get() + executor.getQueue().size();
+  }
+
+  /**
+   * Gets the number of requests completed
+   *
+   * @return long Number of completed requests
+   */
+  public static long getCompletedRequests() {
+    return completed.get();
+  }
+
+  /**
+   * Gets the number of threads in the pool
+   *
+   * @return int Number of threads
+   */
+  public static int getPoolSize() {
+    return executor.getPoolSize();
+  }
+
+  /**
+   * Gets the number of idle TLS connections kept for the authentication
+   *
+   * @return int Number of idle connections
+   */
+  public static int getIdleConnections() {
+    return SecureSocketPool.getInstance().getIdleCount();
+  }
+
+  /**
+   * Gets the number of TLS connections opened for the authentication
+   *
+   * @return long Number of connections opened
+   */
+  public static long getCreatedConnections() {
+    return SecureSocketPool.getInstance().getCreatedCount();
+  }
+
+  /**
+   * Gets the number of authentication requests sent on a kept alive TLS
+   * connection
+   *
+   * @return long Number of connections reused
+   */
+  public static long getReusedConnections() {
+    return SecureSocketPool.getInstance().getReusedCount();
+  }
+
+  /**
+   * Closes the idle connections, for instance when the network changes
+   */
+  public static void evictConnections() {
+    SecureSocketPool.getInstance().evictAll();
+  }
+
+  // NOTE: the body streams to the connection with its exact length, or
+  // chunked when compressed, instead of being buffered by HttpURLConnection
+  static void writeBody(HttpURLConnection connection, FormEncoder body) throws IOException {
+    connection.setRequestProperty("Content-Type", FormEncoder.CONTENT_TYPE);
+    if (body.getGzip()) {
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      connection.setChunkedStreamingMode(0);
+    } else {
+      connection.setFixedLengthStreamingMode((int) body.getContentLength());
+    }
+
+    OutputStream out = connection.getOutputStream();
+    try {
+      body.writeTo(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  static void discard(InputStream responseBody) throws IOException {
+    if (responseBody != null) {
+      try {
+        byte[] buffer = new byte[512];
+        while (responseBody.read(buffer) != -1) {
+        }
+      } finally {
+        responseBody.close();
+      }
+    }
   }
 
   private static String unsecureGetRequest(URL url) throws IOException, HttpException {
@@ -70,10 +339,11 @@ public class RestWebservice {
 
         result = readResponseBody(responseBody);
       }
-    } finally {
+    } catch (IOException error) {
       if (connection != null) {
         connection.disconnect();
       }
+      throw error;
     }
 
     return result;
@@ -118,17 +388,17 @@ public class RestWebservice {
           rd.close();
         }
       }
-      // CAUSE: Method may fail to close connection on exception
-    } finally {
+    } catch (IOException error) {
       if (connection != null) {
         connection.disconnect();
       }
+      throw error;
     }
 
     return result.toString();
   }
 
-  private static String unsecurePostRequest(URL url, String postBody) throws IOException, HttpException {
+  private static String unsecurePostRequest(URL url, FormEncoder postBody) throws IOException, HttpException {
     HttpURLConnection connection = null;
     StringBuilder result = new StringBuilder(16);
 
@@ -138,20 +408,7 @@ public class RestWebservice {
       connection.setDoOutput(true);
       connection.setUseCaches(false);
 
-      OutputStreamWriter wr = null;
-      try {
-        // CAUSE: Reliance on default encoding
-        wr = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-
-        wr.write(postBody);
-
-        wr.flush();
-        // CAUSE: Method may fail to close stream on exception
-      } finally {
-        if (wr != null) {
-          wr.close();
-        }
-      }
+      writeBody(connection, postBody);
 
       BufferedReader rd = null;
       try {
@@ -182,17 +439,17 @@ public class RestWebservice {
           rd.close();
         }
       }
-      // CAUSE: Method may fail to close connection on exception
-    } finally {
+    } catch (IOException error) {
       if (connection != null) {
         connection.disconnect();
       }
+      throw error;
     }
 
     return result.toString();
   }
 
-  private static String securePostRequest(URL url, String postBody) throws IOException, HttpException {
+  private static String securePostRequest(URL url, FormEncoder postBody) throws IOException, HttpException {
     HttpsURLConnection connection = null;
     // TODO: specify a correct capacity
     StringBuilder result = new StringBuilder(16);
@@ -203,20 +460,7 @@ public class RestWebservice {
       connection.setDoOutput(true);
       connection.setUseCaches(false);
 
-      OutputStreamWriter wr = null;
-      try {
-        // CAUSE: Reliance on default encoding
-        wr = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-
-        wr.write(postBody);
-
-        wr.flush();
-        // CAUSE: Method may fail to close stream on exception
-      } finally {
-        if (wr != null) {
-          wr.close();
-        }
-      }
+      writeBody(connection, postBody);
 
       BufferedReader rd = null;
       try {
@@ -247,11 +491,11 @@ public class RestWebservice {
           rd.close();
         }
       }
-      // CAUSE: Method may fail to close connection on exception
-    } finally {
+    } catch (IOException error) {
       if (connection != null) {
         connection.disconnect();
       }
+      throw error;
     }
 
     return result.toString();
@@ -0,0 +1,298 @@
+/**
+ * @fileoverview This file contains the pool of persistent TLS connections
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keeps the TLS sockets of the hand-rolled HTTP/1.1 requests open between
+ * requests, so the handshake is only done once per host while the server
+ * keeps the connection alive.
+ */
+class SecureSocketPool {
+	// NOTE: servers usually close idle connections after 60 seconds
+	private static final long MAX_IDLE_TIME = 30 * 1000L;
+	private static final int MAX_IDLE_PER_HOST = 4;
+	private static final int CONNECT_TIMEOUT = 15 * 1000;
+	private static final int READ_TIMEOUT = 15 * 1000;
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private static final SecureSocketPool instance = new SecureSocketPool();
+
+	private final HashMap<String, LinkedList<Connection>> idle;
+	private final AtomicLong created;
+	private final AtomicLong reused;
+
+	static final class Connection {
+		final String key;
+		final SSLSocket socket;
+		final InputStream in;
+		final OutputStream out;
+		final boolean isReused;
+		long idleSince;
+
+		Connection(String key, SSLSocket socket, boolean isReused) throws IOException {
+			this.key = key;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+			this.isReused = isReused;
+		}
+
+		Connection(Connection connection) {
+			this.key = connection.key;
+			this.socket = connection.socket;
+			this.in = connection.in;
+			this.out = connection.out;
+			this.isReused = true;
+		}
+	}
+
+	static final class Response {
+		final int status;
+		final String body;
+		final boolean keepAlive;
+
+		Response(int status, String body, boolean keepAlive) {
+			this.status = status;
+			this.body = body;
+			this.keepAlive = keepAlive;
+		}
+	}
+
+	/**
+	 * Writes a body with the chunked transfer coding, each write is a chunk
+	 */
+	static final class ChunkedOutputStream extends FilterOutputStream {
+		ChunkedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (length > 0) {
+				out.write(String.format("%s\r\n", Integer.toHexString(length)).getBytes("US-ASCII"));
+				out.write(buffer, offset, length);
+				out.write(CRLF);
+			}
+		}
+
+		void finish() throws IOException {
+			out.write(LAST_CHUNK);
+			out.flush();
+		}
+	}
+
+	static SecureSocketPool getInstance() {
+		return instance;
+	}
+
+	private SecureSocketPool() {
+		this.idle = new HashMap<String, LinkedList<Connection>>(8);
+		this.created = new AtomicLong(0);
+		this.reused = new AtomicLong(0);
+	}
+
+	Connection acquire(String host, int port) throws IOException {
+		String key = String.format("%s:%s", host, port);
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			LinkedList<Connection> connections = idle.get(key);
+			while (connections != null && !connections.isEmpty()) {
+				Connection connection = connections.removeLast();
+				if (now - connection.idleSince < MAX_IDLE_TIME
+						&& !connection.socket.isClosed()) {
+					reused.incrementAndGet();
+					return new Connection(connection);
+				}
+				close(connection);
+			}
+		}
+
+		SSLSocketFactory factory = SecureWebConnections.getFullTrustSSLFactory();
+		SSLSocket socket = (SSLSocket) factory.createSocket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			String[] protocols = { "TLSv1" };
+			socket.setEnabledProtocols(protocols);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		created.incrementAndGet();
+		return new Connection(key, socket, false);
+	}
+
+	void release(Connection connection, boolean keepAlive) {
+		if (!keepAlive) {
+			close(connection);
+			return;
+		}
+		connection.idleSince = System.currentTimeMillis();
+		synchronized (this) {
+			LinkedList<Connection> connections = idle.get(connection.key);
+			if (connections == null) {
+				connections = new LinkedList<Connection>();
+				idle.put(connection.key, connections);
+			}
+			if (connections.size() >= MAX_IDLE_PER_HOST) {
+				close(connections.removeFirst());
+			}
+			connections.addLast(connection);
+		}
+	}
+
+	private static void close(Connection connection) {
+		try {
+			connection.socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Closes every idle connection
+	 */
+	synchronized void evictAll() {
+		for (LinkedList<Connection> connections : idle.values()) {
+			for (Connection connection : connections) {
+				close(connection);
+			}
+		}
+		idle.clear();
+	}
+
+	synchronized int getIdleCount() {
+		int count = 0;
+		Iterator<Map.Entry<String, LinkedList<Connection>>> iterator = idle.entrySet().iterator();
+		while (iterator.hasNext()) {
+			count += iterator.next().getValue().size();
+		}
+		return count;
+	}
+
+	long getCreatedCount() {
+		return created.get();
+	}
+
+	long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * Reads a whole HTTP/1.1 response, leaving the stream at the start of
+	 * the next response when the connection is kept alive
+	 */
+	static Response readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		if (statusLine == null) {
+			throw new EOFException("Connection closed by the server");
+		}
+		String[] status = statusLine.split(" ");
+		int statusCode = status.length > 1 ? Integer.parseInt(status[1]) : 0;
+		boolean keepAlive = !statusLine.startsWith("HTTP/1.0");
+
+		int contentLength = -1;
+		boolean chunked = false;
+		String header = readLine(in);
+		while (header != null && header.length() > 0) {
+			int separator = header.indexOf(':');
+			if (separator > 0) {
+				String name = header.substring(0, separator).trim();
+				String value = header.substring(separator + 1).trim();
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					contentLength = Integer.parseInt(value);
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+					chunked = "chunked".equalsIgnoreCase(value);
+				} else if ("Connection".equalsIgnoreCase(name)) {
+					keepAlive = !"close".equalsIgnoreCase(value);
+				}
+			}
+			header = readLine(in);
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 64);
+		if (chunked) {
+			String size = readLine(in);
+			while (size != null) {
+				int separator = size.indexOf(';');
+				int chunkSize = Integer.parseInt((separator < 0 ? size : size.substring(0, separator)).trim(), 16);
+				if (chunkSize == 0) {
+					// NOTE: trailers end with an empty line
+					String trailer = readLine(in);
+					while (trailer != null && trailer.length() > 0) {
+						trailer = readLine(in);
+					}
+					break;
+				}
+				copy(in, body, chunkSize);
+				readLine(in);
+				size = readLine(in);
+			}
+		} else if (contentLength >= 0) {
+			copy(in, body, contentLength);
+		} else {
+			// NOTE: the body ends when the server closes the connection
+			byte[] buffer = new byte[512];
+			int read = in.read(buffer);
+			while (read != -1) {
+				body.write(buffer, 0, read);
+				read = in.read(buffer);
+			}
+			keepAlive = false;
+		}
+
+		return new Response(statusCode, body.toString("UTF-8"), keepAlive);
+	}
+
+	private static void copy(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+		byte[] buffer = new byte[Math.min(Math.max(length, 1), 4096)];
+		int remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (read == -1) {
+				throw new EOFException("Incomplete response body");
+			}
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c = in.read();
+		if (c == -1) {
+			return null;
+		}
+		while (c != -1 && c != '\n') {
+			if (c != '\r') {
+				line.append((char) c);
+			}
+			c = in.read();
+		}
+		return line.toString();
+	}
+}
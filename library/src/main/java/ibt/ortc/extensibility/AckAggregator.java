@@ -0,0 +1,275 @@
+package ibt.ortc.extensibility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces the acks of the messages received with a seqId.
+ *
+ * Acks are kept per channel and flushed when the channel reaches the batch
+ * size or when the window of its first pending ack elapses. Within a batch
+ * the per part acks of a message are dropped once the ack of the complete
+ * message is queued, so a single part message costs one ack instead of two.
+ *
+ * The server does not answer the batched and cumulative acks it accepts, it
+ * only reports the ones it does not support. The batches sent in the last
+ * confirm time are kept and sent again one by one when the client falls
+ * back to per message acks, older batches are taken as accepted.
+ */
+class AckAggregator {
+	static final int DEFAULT_WINDOW = 100;
+	static final int DEFAULT_BATCH_SIZE = 32;
+	static final int CONFIRM_TIME = 5000;
+
+	private static class ChannelAcks {
+		// NOTE: keyed by message id, the value holds the part acks until the
+		// ack of the complete message replaces them
+		final LinkedHashMap<String, ArrayList<MessageAck>> acks = new LinkedHashMap<String, ArrayList<MessageAck>>(
+				16);
+		int count;
+		HashedWheelTimer.Timeout flushTask;
+	}
+
+	private static class SentBatch {
+		final String channel;
+		final List<MessageAck> acks;
+		final long time;
+
+		SentBatch(String channel, List<MessageAck> acks, long time) {
+			this.channel = channel;
+			this.acks = acks;
+			this.time = time;
+		}
+	}
+
+	private final OrtcClient client;
+	private final HashMap<String, ChannelAcks> pending;
+	// NOTE: batches not confirmed yet, oldest first
+	private final LinkedList<SentBatch> unconfirmed;
+	// NOTE: acks pending in every channel, reported to the client metrics
+	private int total;
+
+	private volatile AckMode mode;
+	private volatile int window;
+	private volatile int batchSize;
+
+	AckAggregator(OrtcClient client) {
+		this.client = client;
+		this.pending = new HashMap<String, ChannelAcks>(11);
+		this.unconfirmed = new LinkedList<SentBatch>();
+		this.mode = AckMode.PerMessage;
+		this.window = DEFAULT_WINDOW;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+	}
+
+	void add(final String channel, String messageId, String seqId,
+			boolean allParts) {
+		if (mode == AckMode.PerMessage) {
+			client.sendAck(channel, messageId, seqId, allParts ? "1" : "0");
+			return;
+		}
+
+		boolean flushNow = false;
+		int lTotal;
+		synchronized (this) {
+			ChannelAcks channelAcks = pending.get(channel);
+			if (channelAcks == null) {
+				channelAcks = new ChannelAcks();
+				pending.put(channel, channelAcks);
+			}
+
+			ArrayList<MessageAck> messageAcks = channelAcks.acks.get(messageId);
+			if (messageAcks == null) {
+				messageAcks = new ArrayList<MessageAck>(1);
+				channelAcks.acks.put(messageId, messageAcks);
+			}
+
+			int count = channelAcks.count;
+			if (allParts) {
+				channelAcks.count -= messageAcks.size();
+				messageAcks.clear();
+				messageAcks.add(new MessageAck(messageId, seqId, true));
+				channelAcks.count++;
+			} else if (messageAcks.isEmpty() || !messageAcks.get(0).isAllParts()) {
+				messageAcks.add(new MessageAck(messageId, seqId, false));
+				channelAcks.count++;
+			}
+			total += channelAcks.count - count;
+			lTotal = total;
+
+			if (channelAcks.count >= batchSize) {
+				flushNow = true;
+			} else if (channelAcks.flushTask == null) {
+				channelAcks.flushTask = HashedWheelTimer.getInstance().schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(channel);
+					}
+				}, window, client);
+			}
+		}
+		client.getMetrics().onAcksPending(lTotal);
+
+		if (flushNow) {
+			flush(channel);
+		}
+	}
+
+	void flush(String channel) {
+		List<MessageAck> acks;
+		int lTotal;
+		synchronized (this) {
+			acks = take(channel);
+			lTotal = total;
+		}
+		client.getMetrics().onAcksPending(lTotal);
+		send(channel, acks);
+	}
+
+	void flushAll() {
+		HashMap<String, List<MessageAck>> acks = new HashMap<String, List<MessageAck>>(
+				11);
+		synchronized (this) {
+			for (String channel : new ArrayList<String>(pending.keySet())) {
+				acks.put(channel, take(channel));
+			}
+		}
+		client.getMetrics().onAcksPending(0);
+		for (Map.Entry<String, List<MessageAck>> channelAcks : acks.entrySet()) {
+			send(channelAcks.getKey(), channelAcks.getValue());
+		}
+	}
+
+	/**
+	 * Drops the pending acks, used when the connection is lost. The server
+	 * delivers the unacknowledged messages again and the duplicates are
+	 * filtered by the dispatched messages.
+	 */
+	synchronized void clear() {
+		for (ChannelAcks channelAcks : pending.values()) {
+			if (channelAcks.flushTask != null) {
+				channelAcks.flushTask.cancel();
+			}
+		}
+		pending.clear();
+		unconfirmed.clear();
+		total = 0;
+		client.getMetrics().onAcksPending(0);
+	}
+
+	/**
+	 * Switches to per message acks after the server rejected the batched or
+	 * cumulative acks, the batches that may have been rejected are sent
+	 * again one by one before the pending acks
+	 */
+	void fallback() {
+		ArrayList<SentBatch> resend;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			resend = new ArrayList<SentBatch>(unconfirmed.size());
+			for (SentBatch batch : unconfirmed) {
+				if (now - batch.time <= CONFIRM_TIME) {
+					resend.add(batch);
+				}
+			}
+			unconfirmed.clear();
+			mode = AckMode.PerMessage;
+		}
+		for (SentBatch batch : resend) {
+			for (MessageAck ack : batch.acks) {
+				client.sendAck(batch.channel, ack.getMessageId(), ack.getSeqId(),
+						ack.isAllParts() ? "1" : "0");
+			}
+		}
+		flushAll();
+	}
+
+	private synchronized void sent(String channel, List<MessageAck> acks) {
+		long now = System.currentTimeMillis();
+		while (!unconfirmed.isEmpty() && now - unconfirmed.getFirst().time > CONFIRM_TIME) {
+			unconfirmed.removeFirst();
+		}
+		unconfirmed.addLast(new SentBatch(channel, acks, now));
+	}
+
+	private List<MessageAck> take(String channel) {
+		ChannelAcks channelAcks = pending.remove(channel);
+		if (channelAcks == null) {
+			return null;
+		}
+		if (channelAcks.flushTask != null) {
+			channelAcks.flushTask.cancel();
+		}
+		total -= channelAcks.count;
+
+		ArrayList<MessageAck> acks = new ArrayList<MessageAck>(channelAcks.count);
+		for (ArrayList<MessageAck> messageAcks : channelAcks.acks.values()) {
+			acks.addAll(messageAcks);
+		}
+		return acks;
+	}
+
+	private void send(String channel, List<MessageAck> acks) {
+		if (acks == null || acks.isEmpty()) {
+			return;
+		}
+
+		AckMode lMode = mode;
+		if (lMode != AckMode.PerMessage) {
+			sent(channel, acks);
+		}
+		if (lMode == AckMode.Cumulative) {
+			// NOTE: the last complete message covers the ones before it, the
+			// parts of incomplete messages still need their own acks
+			MessageAck last = null;
+			for (MessageAck ack : acks) {
+				if (ack.isAllParts()) {
+					last = ack;
+				} else {
+					client.sendAck(channel, ack.getMessageId(), ack.getSeqId(), "0");
+				}
+			}
+			if (last != null) {
+				client.sendCumulativeAck(channel, last);
+			}
+		} else if (lMode == AckMode.Batched) {
+			client.sendAcks(channel, acks);
+		} else {
+			for (MessageAck ack : acks) {
+				client.sendAck(channel, ack.getMessageId(), ack.getSeqId(),
+						ack.isAllParts() ? "1" : "0");
+			}
+		}
+	}
+
+	AckMode getMode() {
+		return mode;
+	}
+
+	void setMode(AckMode mode) {
+		this.mode = mode;
+		if (mode == AckMode.PerMessage) {
+			flushAll();
+		}
+	}
+
+	int getWindow() {
+		return window;
+	}
+
+	void setWindow(int window) {
+		this.window = window;
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+}
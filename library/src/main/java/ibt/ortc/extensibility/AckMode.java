@@ -0,0 +1,29 @@
+/**
+ * @fileoverview This file contains the acknowledge modes of buffered messages
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Enumerates how the messages received with a seqId are acknowledged to the
+ * server.
+ */
+public enum AckMode {
+	/**
+	 * Every message part and every complete message is acknowledged right away
+	 * in its own frame (default, supported by every server)
+	 */
+	PerMessage,
+	/**
+	 * Acks of the same channel are coalesced during a short window and sent in
+	 * a single frame. Needs server support, falls back to PerMessage when the
+	 * server rejects the batched frame
+	 */
+	Batched,
+	/**
+	 * Only the last complete message of each window is acknowledged per
+	 * channel, covering every message received before it. Needs server
+	 * support, falls back to PerMessage when the server rejects the frame
+	 */
+	Cumulative
+}
@@ -0,0 +1,240 @@
+/**
+ * @fileoverview This file contains a lock free implementation of the client metrics
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the client metrics with atomic counters and
+ * {@link LatencyHistogram}s, read by the application while the client
+ * updates them. The parse and dispatch times are recorded in microseconds,
+ * the balancer and REST latencies in milliseconds. The gauges (outbound
+ * queue, multipart buffers and pending acks) hold the last value reported, use
+ * one instance per client.
+ */
+public class AtomicClientMetrics implements ClientMetrics {
+	private final AtomicLong framesReceived;
+	private final AtomicLong bytesReceived;
+	private final AtomicLong framesSent;
+	private final AtomicLong bytesSent;
+	private final LatencyHistogram parseTime;
+	private final LatencyHistogram dispatchTime;
+	private final AtomicInteger outboundQueue;
+	private final AtomicInteger multipartBuffers;
+	private final AtomicLong duplicates;
+	private final AtomicInteger acksPending;
+	private final AtomicLongArray reconnectAttempts;
+	private final AtomicLong heartbeatMisses;
+	private final LatencyHistogram balancerLatency;
+	private final LatencyHistogram restLatency;
+
+	public AtomicClientMetrics() {
+		this.framesReceived = new AtomicLong(0);
+		this.bytesReceived = new AtomicLong(0);
+		this.framesSent = new AtomicLong(0);
+		this.bytesSent = new AtomicLong(0);
+		this.parseTime = new LatencyHistogram();
+		this.dispatchTime = new LatencyHistogram();
+		this.outboundQueue = new AtomicInteger(0);
+		this.multipartBuffers = new AtomicInteger(0);
+		this.duplicates = new AtomicLong(0);
+		this.acksPending = new AtomicInteger(0);
+		this.reconnectAttempts = new AtomicLongArray(ReconnectCause.values().length);
+		this.heartbeatMisses = new AtomicLong(0);
+		this.balancerLatency = new LatencyHistogram();
+		this.restLatency = new LatencyHistogram();
+	}
+
+	@Override
+	public void onFrameReceived(int bytes) {
+		framesReceived.incrementAndGet();
+		bytesReceived.addAndGet(bytes);
+	}
+
+	@Override
+	public void onFrameSent(int bytes) {
+		framesSent.incrementAndGet();
+		bytesSent.addAndGet(bytes);
+	}
+
+	@Override
+	public void onParsed(long nanos) {
+		parseTime.record(nanos / 1000);
+	}
+
+	@Override
+	public void onDispatched(long nanos) {
+		dispatchTime.record(nanos / 1000);
+	}
+
+	@Override
+	public void onOutboundQueue(int depth) {
+		outboundQueue.set(depth);
+	}
+
+	@Override
+	public void onMultipartBuffers(int buffers) {
+		multipartBuffers.set(buffers);
+	}
+
+	@Override
+	public void onDuplicate() {
+		duplicates.incrementAndGet();
+	}
+
+	@Override
+	public void onAcksPending(int acks) {
+		acksPending.set(acks);
+	}
+
+	@Override
+	public void onReconnectAttempt(ReconnectCause cause) {
+		reconnectAttempts.incrementAndGet((cause == null ? ReconnectCause.ConnectionLost : cause).ordinal());
+	}
+
+	@Override
+	public void onHeartbeatMissed() {
+		heartbeatMisses.incrementAndGet();
+	}
+
+	@Override
+	public void onBalancerLatency(long millis) {
+		balancerLatency.record(millis);
+	}
+
+	@Override
+	public void onRestLatency(long millis) {
+		restLatency.record(millis);
+	}
+
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Gets the time spent parsing the received frames
+	 *
+	 * @return LatencyHistogram Parse time in microseconds
+	 */
+	public LatencyHistogram getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * Gets the time spent in the handlers of the received messages
+	 *
+	 * @return LatencyHistogram Dispatch time in microseconds
+	 */
+	public LatencyHistogram getDispatchTime() {
+		return dispatchTime;
+	}
+
+	public int getOutboundQueue() {
+		return outboundQueue.get();
+	}
+
+	public int getMultipartBuffers() {
+		return multipartBuffers.get();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	public int getAcksPending() {
+		return acksPending.get();
+	}
+
+	/**
+	 * Gets the number of reconnect attempts for every cause
+	 *
+	 * @return long Number of attempts
+	 */
+	public long getReconnectAttempts() {
+		long total = 0;
+		for (int idx = 0; idx < reconnectAttempts.length(); idx++) {
+			total += reconnectAttempts.get(idx);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of reconnect attempts for a cause
+	 *
+	 * @param cause
+	 *            The cause of the attempts
+	 * @return long Number of attempts
+	 */
+	public long getReconnectAttempts(ReconnectCause cause) {
+		return reconnectAttempts.get(cause.ordinal());
+	}
+
+	public long getHeartbeatMisses() {
+		return heartbeatMisses.get();
+	}
+
+	/**
+	 * Gets the time to obtain the server of the connection
+	 *
+	 * @return LatencyHistogram Balancer latency in milliseconds
+	 */
+	public LatencyHistogram getBalancerLatency() {
+		return balancerLatency;
+	}
+
+	/**
+	 * Gets the time of the REST requests
+	 *
+	 * @return LatencyHistogram REST latency in milliseconds
+	 */
+	public LatencyHistogram getRestLatency() {
+		return restLatency;
+	}
+
+	/**
+	 * Clears the counters and the histograms, the gauges (outbound queue,
+	 * multipart buffers, pending acks) keep their value
+	 */
+	public void reset() {
+		framesReceived.set(0);
+		bytesReceived.set(0);
+		framesSent.set(0);
+		bytesSent.set(0);
+		parseTime.reset();
+		dispatchTime.reset();
+		duplicates.set(0);
+		for (int idx = 0; idx < reconnectAttempts.length(); idx++) {
+			reconnectAttempts.set(idx, 0);
+		}
+		heartbeatMisses.set(0);
+		balancerLatency.reset();
+		restLatency.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("in=%s/%sB out=%s/%sB parse(us)={%s} dispatch(us)={%s} "
+				+ "outbound=%s multipart=%s duplicates=%s acks=%s reconnects=%s "
+				+ "heartbeatMisses=%s balancer(ms)={%s} rest(ms)={%s}",
+				getFramesReceived(), getBytesReceived(), getFramesSent(), getBytesSent(),
+				parseTime, dispatchTime, getOutboundQueue(), getMultipartBuffers(),
+				getDuplicates(), getAcksPending(), getReconnectAttempts(),
+				getHeartbeatMisses(), balancerLatency, restLatency);
+	}
+}
@@ -6,6 +6,7 @@ package ibt.ortc.extensibility;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that represents a channel subscription
@@ -27,11 +28,22 @@ public class ChannelSubscription {
 	private OnMessageWithPayload onMessageWithPayload;
     private OnMessageWithFilter onMessageWithFilter;
     private OnMessageWithOptions onMessageWithOptions;
+	private SharedConnection.Receiver receiver;
 	private boolean isWithPayload;
 	private boolean withNotification;
 	private boolean withFilter;
 	private boolean withOptions;
 	private String filter;
+	private volatile String lastSeqId;
+	private DispatchedMessages deliveredSeqIds;
+	private volatile int queueCapacity;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.Block;
+	private volatile boolean overflowed;
+	private final AtomicLong droppedMessages = new AtomicLong(0);
+	private volatile ConflationKey conflationKey;
+	private final AtomicLong conflatedMessages = new AtomicLong(0);
+	private volatile MessageFilter messageFilter;
+	private final AtomicLong rejectedMessages = new AtomicLong(0);
 
 
     /**
@@ -45,6 +57,9 @@ public class ChannelSubscription {
 
 		
 		this.onMessageWithPayload = null;
+		if(onMessageT instanceof SharedConnection.Receiver){
+			this.receiver = (SharedConnection.Receiver) onMessageT;
+		}
 		if(onMessageT instanceof OnMessage){
 			this.onMessage = (OnMessage) onMessageT;
 			this.isWithPayload = false;
@@ -141,6 +156,15 @@ public class ChannelSubscription {
 		}
 	}
 	
+	// NOTE: the subscriptions of a shared connection also get the message id
+	void runHandler(OrtcClient sender, String channel, String messageId, String message, Object filtered, Object payload){
+		if(this.receiver != null){
+			this.receiver.receive(channel, messageId, message, filtered);
+		} else {
+			this.runHandler(sender, channel, message, filtered, payload);
+		}
+	}
+	
 	/**
 	 * Indicates where the channel should be subscribed if a reconnect happens
 	 * @return boolean True if should be subscribed otherwise false
@@ -175,4 +199,149 @@ public class ChannelSubscription {
     public String getSubscriberId(){
         return subscriberId;
     }
+
+	/**
+	 * Gets the seqId of the last message delivered to the handler
+	 * @return String The seqId or null if no message with a seqId was delivered
+	 */
+	public String getLastSeqId(){
+		return lastSeqId;
+	}
+
+	/**
+	 * Changes the seqId the subscription resumes from after a reconnect
+	 * @param lastSeqId The seqId of the last message delivered
+	 */
+	public void setLastSeqId(String lastSeqId){
+		this.lastSeqId = lastSeqId;
+	}
+
+	/**
+	 * Records the seqId of a message about to be delivered, replayed messages
+	 * are only delivered once while their seqId is remembered
+	 * @return boolean True if the message was not delivered yet
+	 */
+	boolean acceptSeqId(String seqId, int capacity){
+		if (deliveredSeqIds == null || deliveredSeqIds.getCapacity() != capacity) {
+			deliveredSeqIds = new DispatchedMessages(capacity, 0);
+		}
+		return deliveredSeqIds.addIfAbsent(seqId);
+	}
+
+	/**
+	 * Gets the maximum number of received messages waiting for the handler
+	 * @return int The capacity, 0 if the queue is unbounded
+	 */
+	public int getQueueCapacity(){
+		return queueCapacity;
+	}
+
+	/**
+	 * Gets what happens to a message received while the queue is full
+	 * @return OverflowPolicy The overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy(){
+		return overflowPolicy;
+	}
+
+	/**
+	 * Bounds the received messages waiting for the handler, the bound only
+	 * applies when the callbacks do not run inline (see
+	 * OrtcClient.setDispatchExecutor)
+	 * @param queueCapacity The capacity, 0 for an unbounded queue (default 0)
+	 * @param overflowPolicy What happens to a message received while the queue is full (default Block)
+	 */
+	public void setInboundQueue(int queueCapacity, OverflowPolicy overflowPolicy){
+		this.queueCapacity = queueCapacity < 0 ? 0 : queueCapacity;
+		this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.Block : overflowPolicy;
+	}
+
+	/**
+	 * Gets the number of received messages dropped because the queue was full
+	 * @return long Number of dropped messages
+	 */
+	public long getDroppedMessages(){
+		return droppedMessages.get();
+	}
+
+	void onDropped(){
+		droppedMessages.incrementAndGet();
+	}
+
+	boolean isOverflowed(){
+		return overflowed;
+	}
+
+	void setOverflowed(boolean overflowed){
+		this.overflowed = overflowed;
+	}
+
+	/**
+	 * Gets the key of the conflated messages
+	 * @return ConflationKey The key function or null if the subscription is not conflated
+	 */
+	public ConflationKey getConflationKey(){
+		return conflationKey;
+	}
+
+	/**
+	 * Conflates the received messages while the handler is busy, a pending
+	 * message is replaced by a newer message with the same key. Only applies
+	 * when the callbacks do not run inline (see OrtcClient.setDispatchExecutor)
+	 * @param conflationKey The key function, ConflationKey.PER_CHANNEL to keep the newest message of the channel, null to deliver every message (default null)
+	 */
+	public void setConflationKey(ConflationKey conflationKey){
+		this.conflationKey = conflationKey;
+	}
+
+	/**
+	 * Gets the number of received messages replaced by a newer message
+	 * @return long Number of conflated messages
+	 */
+	public long getConflatedMessages(){
+		return conflatedMessages.get();
+	}
+
+	void onConflated(){
+		conflatedMessages.incrementAndGet();
+	}
+
+	/**
+	 * Gets the local filter of the received messages
+	 * @return MessageFilter The filter or null if every message is delivered
+	 */
+	public MessageFilter getMessageFilter(){
+		return messageFilter;
+	}
+
+	/**
+	 * Changes the local filter of the received messages, evaluated before
+	 * the message is queued for the handler
+	 * @param messageFilter The filter, null to deliver every message (default null)
+	 */
+	public void setMessageFilter(MessageFilter messageFilter){
+		this.messageFilter = messageFilter;
+	}
+
+	/**
+	 * Gets the number of received messages rejected by the local filter
+	 * @return long Number of rejected messages
+	 */
+	public long getRejectedMessages(){
+		return rejectedMessages.get();
+	}
+
+	/**
+	 * Tells if a received message passes the local filter, counting the
+	 * rejected messages
+	 * @return boolean True if the message is delivered
+	 */
+	boolean accepts(String channel, String seqId, String message){
+		MessageFilter lFilter = messageFilter;
+		if (lFilter == null || lFilter.matches(channel, seqId, message)) {
+			return true;
+		}
+		rejectedMessages.incrementAndGet();
+		return false;
+	}
 }
@@ -0,0 +1,137 @@
+/**
+ * @fileoverview This file contains the trie of the channel patterns
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Values attached to channel patterns, found by walking the segments of a
+ * channel name separated by ':'.
+ *
+ * A pattern is either an exact channel name or ends with the '*' segment,
+ * matching every channel with at least one more segment like the
+ * permissions: "orders:*" matches "orders:1", "orders:1:lines" and
+ * "orders:" but not "orders". The match costs one map lookup per segment
+ * of the channel, whatever the number of patterns. Patterns are added
+ * while the trie is matched from another thread.
+ */
+class ChannelTrie<T> {
+	static final char SEPARATOR = ':';
+	static final String WILDCARD = "*";
+
+	private static final class Node<T> {
+		final ConcurrentHashMap<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>(4);
+		final CopyOnWriteArrayList<T> exact = new CopyOnWriteArrayList<T>();
+		final CopyOnWriteArrayList<T> descendants = new CopyOnWriteArrayList<T>();
+	}
+
+	private final Node<T> root;
+	private final AtomicInteger size;
+
+	ChannelTrie() {
+		this.root = new Node<T>();
+		this.size = new AtomicInteger(0);
+	}
+
+	/**
+	 * Tells if a pattern is valid, the '*' segment can only be the last one
+	 */
+	static boolean isValidPattern(String pattern) {
+		if (pattern == null || pattern.length() == 0) {
+			return false;
+		}
+		int wildcard = pattern.indexOf('*');
+		return wildcard < 0 || (wildcard == pattern.length() - 1
+				&& (wildcard == 0 || pattern.charAt(wildcard - 1) == SEPARATOR));
+	}
+
+	synchronized void add(String pattern, T value) {
+		Node<T> node = find(pathOf(pattern), true);
+		(pattern.endsWith(WILDCARD) ? node.descendants : node.exact).add(value);
+		size.incrementAndGet();
+	}
+
+	synchronized boolean remove(String pattern, T value) {
+		Node<T> node = find(pathOf(pattern), false);
+		// NOTE: the empty nodes are kept, a pattern is usually added again
+		if (node != null && (pattern.endsWith(WILDCARD) ? node.descendants : node.exact).remove(value)) {
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	// NOTE: a wildcard pattern is kept on the node of its prefix, without
+	// the ":*" segment
+	private static String pathOf(String pattern) {
+		return pattern.endsWith(WILDCARD) ? pattern.substring(0, Math.max(pattern.length() - 2, 0)) : pattern;
+	}
+
+	// NOTE: every segment counts, an empty one included, "orders:" is the
+	// "orders" node followed by an empty segment
+	private Node<T> find(String path, boolean create) {
+		Node<T> node = root;
+		if (path.length() == 0) {
+			return node;
+		}
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = path.length();
+			}
+			String segment = path.substring(start, end);
+			Node<T> child = node.children.get(segment);
+			if (child == null) {
+				if (!create) {
+					return null;
+				}
+				child = new Node<T>();
+				node.children.put(segment, child);
+			}
+			node = child;
+			if (end == path.length()) {
+				return node;
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Adds to matches the values of every pattern matching a channel
+	 */
+	void match(String channel, List<T> matches) {
+		Node<T> node = root;
+		int start = 0;
+		int length = channel.length();
+		while (true) {
+			matches.addAll(node.descendants);
+			int end = channel.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = length;
+			}
+			node = node.children.get(channel.substring(start, end));
+			if (node == null) {
+				return;
+			}
+			if (end == length) {
+				break;
+			}
+			start = end + 1;
+		}
+		matches.addAll(node.exact);
+	}
+
+	boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	int size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * @fileoverview This file contains the listener of the client metrics
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Listener updated by the client from its hot paths, the socket reader, the
+ * dispatcher threads and the timers, so the methods must be cheap and
+ * thread safe.
+ *
+ * The client uses {@link #NONE} until a listener is set, the timings are
+ * only measured when a listener is set. {@link AtomicClientMetrics} counts
+ * everything without locking and can be read from the application.
+ *
+ * How to use:
+ * <pre>
+ * AtomicClientMetrics metrics = new AtomicClientMetrics();
+ * client.setMetrics(metrics);
+ * RestWebservice.setMetrics(metrics);
+ * ...
+ * Log.i("ortc", metrics.toString());
+ * </pre>
+ */
+public interface ClientMetrics {
+	/**
+	 * Why the client is reconnecting
+	 */
+	enum ReconnectCause {
+		ConnectFailed, ConnectionLost, HeartbeatMissed
+	}
+
+	/**
+	 * Ignores every update
+	 */
+	ClientMetrics NONE = new ClientMetrics() {
+		@Override
+		public void onFrameReceived(int bytes) {
+		}
+
+		@Override
+		public void onFrameSent(int bytes) {
+		}
+
+		@Override
+		public void onParsed(long nanos) {
+		}
+
+		@Override
+		public void onDispatched(long nanos) {
+		}
+
+		@Override
+		public void onOutboundQueue(int depth) {
+		}
+
+		@Override
+		public void onMultipartBuffers(int buffers) {
+		}
+
+		@Override
+		public void onDuplicate() {
+		}
+
+		@Override
+		public void onAcksPending(int acks) {
+		}
+
+		@Override
+		public void onReconnectAttempt(ReconnectCause cause) {
+		}
+
+		@Override
+		public void onHeartbeatMissed() {
+		}
+
+		@Override
+		public void onBalancerLatency(long millis) {
+		}
+
+		@Override
+		public void onRestLatency(long millis) {
+		}
+	};
+
+	/**
+	 * A frame was received from the server
+	 * @param bytes Length of the frame
+	 */
+	void onFrameReceived(int bytes);
+
+	/**
+	 * A frame was sent to the server
+	 * @param bytes Length of the frame
+	 */
+	void onFrameSent(int bytes);
+
+	/**
+	 * A received frame was parsed
+	 * @param nanos Time spent parsing the frame
+	 */
+	void onParsed(long nanos);
+
+	/**
+	 * The handler of a received message ran
+	 * @param nanos Time spent in the handler
+	 */
+	void onDispatched(long nanos);
+
+	/**
+	 * A frame was queued or the outbound journal changed
+	 * @param depth Messages waiting in the journal and frames waiting in the
+	 *        send queue of the socket
+	 */
+	void onOutboundQueue(int depth);
+
+	/**
+	 * A multipart message was started or completed
+	 * @param buffers Multipart messages waiting for parts
+	 */
+	void onMultipartBuffers(int buffers);
+
+	/**
+	 * A received message was already delivered and was dropped
+	 */
+	void onDuplicate();
+
+	/**
+	 * The acks waiting to be sent changed
+	 * @param acks Acks waiting to be sent
+	 */
+	void onAcksPending(int acks);
+
+	/**
+	 * The client tries to reconnect
+	 * @param cause Why the connection was lost
+	 */
+	void onReconnectAttempt(ReconnectCause cause);
+
+	/**
+	 * Nothing was received within the liveness timeout, the connection is
+	 * closed
+	 */
+	void onHeartbeatMissed();
+
+	/**
+	 * The server of the connection was obtained from the balancer or its
+	 * cache
+	 * @param millis Time to obtain the server
+	 */
+	void onBalancerLatency(long millis);
+
+	/**
+	 * A REST request (presence, balancer, authentication) completed
+	 * @param millis Time of the request
+	 */
+	void onRestLatency(long millis);
+}
@@ -0,0 +1,39 @@
+/**
+ * @fileoverview This file contains the definition of the conflation key interface
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Extracts the key of a received message in a conflated subscription, a
+ * pending message is replaced by a newer message with the same key
+ *
+ * How to use:
+ * <pre>
+ * client.subscribeConflated("prices", true, new ConflationKey() {
+ * 	public Object keyOf(String channel, String message) {
+ * 		return message.substring(0, message.indexOf(':'));
+ * 	}
+ * }, onMessage);
+ * </pre>
+ */
+public interface ConflationKey {
+	/**
+	 * Keeps only the newest pending message of the channel
+	 */
+	public static final ConflationKey PER_CHANNEL = new ConflationKey() {
+		@Override
+		public Object keyOf(String channel, String message) {
+			return channel;
+		}
+	};
+
+	/**
+	 * Gets the key of a received message, called on the thread reading the
+	 * socket
+	 * @param channel Channel where the message was received
+	 * @param message Content of the received message
+	 * @return Object The key, null to never conflate the message
+	 */
+	public Object keyOf(String channel, String message);
+}
@@ -0,0 +1,33 @@
+/**
+ * @fileoverview This file contains the states of the client connection
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Enumerates the states of the connection of a client. The state changes
+ * with atomic transitions, only one connection attempt runs at a time.
+ */
+public enum ConnectionState {
+	/**
+	 * Not connected and not trying to connect (initial state)
+	 */
+	Disconnected,
+	/**
+	 * A connection attempt is running, the first one or a reconnect
+	 */
+	Connecting,
+	/**
+	 * Connected and validated by the server
+	 */
+	Connected,
+	/**
+	 * The connection was lost or the last attempt failed, waiting for the
+	 * next attempt
+	 */
+	Reconnecting,
+	/**
+	 * Closing the connection at the application request
+	 */
+	Disconnecting
+}
@@ -0,0 +1,246 @@
+/**
+ * @fileoverview This file contains the serial queue of the callbacks of a channel
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the callbacks of a channel one at a time and in order on an executor,
+ * while the callbacks of the other channels run on other threads.
+ *
+ * The received messages are bounded by the queue capacity of the
+ * subscription, the other callbacks are never dropped nor counted. In a
+ * conflated subscription a received message replaces the pending message
+ * with the same key, keeping its place in the queue.
+ *
+ * The lane asks the dispatcher for its executor every time it is scheduled,
+ * so it moves to a new executor once its running batch ends and its
+ * callbacks are never split between two threads. When the callbacks become
+ * inline the lane drains on the dispatching thread. A retired lane (channel
+ * unsubscribed, callbacks inline) leaves the dispatcher once it is empty,
+ * the callbacks given to it afterwards go to the lane that replaced it.
+ *
+ * A callback throwing an exception is raised on the OnException handler. An
+ * executor refusing the lane is raised the same way and the lane drains on
+ * the thread that scheduled it, its callbacks are not left queued.
+ */
+class DispatchLane implements Runnable {
+	// NOTE: callbacks run before giving the thread to the other lanes
+	private static final int BATCH_SIZE = 64;
+	// NOTE: a blocked reader checks again in case the lane stopped running
+	private static final long BLOCK_WAIT = 1000;
+
+	private final MessageDispatcher dispatcher;
+	private final String key;
+	private final OrtcClient client;
+	private final ArrayDeque<Runnable> queue;
+	private boolean scheduled;
+	private boolean retired;
+	private boolean closed;
+	private int messages;
+	private int blocked;
+	private HashMap<Object, InboundMessage> pending;
+
+	DispatchLane(MessageDispatcher dispatcher, String key, OrtcClient client) {
+		this.dispatcher = dispatcher;
+		this.key = key;
+		this.client = client;
+		this.queue = new ArrayDeque<Runnable>(16);
+	}
+
+	void add(Runnable task) {
+		boolean forward;
+		boolean schedule;
+		synchronized (this) {
+			forward = closed;
+			schedule = !forward && !scheduled;
+			if (!forward) {
+				queue.add(task);
+				scheduled = true;
+			}
+		}
+		if (forward) {
+			dispatcher.dispatchTo(key, task);
+		} else if (schedule) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Queues a received message, applying the overflow policy of its
+	 * subscription when the queue is full
+	 *
+	 * @return boolean False if the subscription must fail
+	 */
+	boolean offer(InboundMessage message) {
+		ChannelSubscription subscription = message.subscription;
+		int capacity = subscription.getQueueCapacity();
+		boolean forward;
+		boolean schedule;
+		synchronized (this) {
+			forward = closed;
+			schedule = false;
+			if (!forward) {
+				if (message.key != null) {
+					InboundMessage older = pending == null ? null : pending.get(message.key);
+					if (older != null) {
+						older.replace(message);
+						subscription.onConflated();
+						return true;
+					}
+				}
+				while (capacity > 0 && messages >= capacity) {
+					switch (subscription.getOverflowPolicy()) {
+					case DropNewest:
+						subscription.onDropped();
+						return true;
+					case DropOldest:
+						removeOldest();
+						subscription.onDropped();
+						break;
+					case Fail:
+						subscription.onDropped();
+						return false;
+					default:
+						blocked++;
+						try {
+							wait(BLOCK_WAIT);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							subscription.onDropped();
+							return true;
+						} finally {
+							blocked--;
+						}
+					}
+				}
+				queue.add(message);
+				messages++;
+				if (message.key != null) {
+					if (pending == null) {
+						pending = new HashMap<Object, InboundMessage>(16);
+					}
+					pending.put(message.key, message);
+				}
+				schedule = !scheduled;
+				scheduled = true;
+			}
+		}
+		if (forward) {
+			return dispatcher.offerTo(key, message);
+		}
+		if (schedule) {
+			schedule();
+		}
+		return true;
+	}
+
+	private void schedule() {
+		while (true) {
+			Executor executor = dispatcher.executorOf(key);
+			if (executor == null) {
+				// NOTE: inline, the lane drains on this thread
+				run();
+				return;
+			}
+			try {
+				executor.execute(this);
+				return;
+			} catch (RejectedExecutionException e) {
+				// NOTE: retried when the executor was replaced meanwhile
+				if (executor == dispatcher.executorOf(key)) {
+					client.raiseOrtcEvent(EventEnum.OnException, client, e);
+					while (runBatch()) {
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Leaves the dispatcher once the queued callbacks ran
+	 */
+	synchronized void retire() {
+		retired = true;
+		if (!scheduled && !closed) {
+			closed = true;
+			dispatcher.closed(key, this);
+		}
+	}
+
+	private void removeOldest() {
+		Iterator<Runnable> iterator = queue.iterator();
+		while (iterator.hasNext()) {
+			Runnable task = iterator.next();
+			if (task instanceof InboundMessage) {
+				iterator.remove();
+				removed((InboundMessage) task);
+				return;
+			}
+		}
+	}
+
+	private void removed(InboundMessage message) {
+		messages--;
+		if (message.key != null) {
+			pending.remove(message.key);
+		}
+	}
+
+	synchronized int size() {
+		return queue.size();
+	}
+
+	synchronized int getMessages() {
+		return messages;
+	}
+
+	@Override
+	public void run() {
+		if (runBatch()) {
+			schedule();
+		}
+	}
+
+	// NOTE: returns false once the queue is empty and the lane unscheduled
+	private boolean runBatch() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			Runnable task;
+			synchronized (this) {
+				task = queue.poll();
+				if (task == null) {
+					scheduled = false;
+					if (retired || dispatcher.isInline()) {
+						closed = true;
+						dispatcher.closed(key, this);
+					}
+					return false;
+				}
+				if (task instanceof InboundMessage) {
+					removed((InboundMessage) task);
+					if (blocked > 0) {
+						notifyAll();
+					}
+				}
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				client.raiseOrtcEvent(EventEnum.OnException, client, e);
+			}
+
+			if (i == BATCH_SIZE - 1 && dispatcher.executorOf(key) == null) {
+				// NOTE: inline, no other lane waits for this thread
+				i = -1;
+			}
+		}
+		return true;
+	}
+}
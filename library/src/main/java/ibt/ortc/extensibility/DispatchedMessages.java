@@ -1,31 +1,225 @@
 package ibt.ortc.extensibility;
 
-import java.util.HashMap;
-
+/**
+ * Bounded set of the last dispatched message ids, used to drop duplicated
+ * deliveries.
+ *
+ * Ids generated by the clients (8 base-36 characters) are packed into a long,
+ * other ids are stored as a 63 bits hash. Keys live in an open addressing
+ * table with linear probing and are evicted in insertion order through a ring,
+ * so adding and checking an id never allocates. When a time window is set the
+ * ids older than the window are also evicted.
+ *
+ * Not thread safe, it is only used by the thread that dispatches the
+ * received messages.
+ */
 class DispatchedMessages {
-	private static final int LIMIT = 1024;
-	private int currentIdx;
-	private String[] ids;
-	private HashMap<String, Integer> hMap;
-	
-	public DispatchedMessages(){
-		this.currentIdx = 0;
-		this.ids = new String[LIMIT];
-		this.hMap = new HashMap<String, Integer>();
-	}
-	
-	protected void addMessageId(String messageId){
-		currentIdx++;
-		if(currentIdx>=LIMIT)
-			currentIdx = 0;
-		if(ids[currentIdx] != null){
-			hMap.remove(ids[currentIdx]);
+	static final int DEFAULT_CAPACITY = 1024;
+
+	private static final long EMPTY = 0L;
+	private static final long HASHED_KEY = 0x8000000000000000L;
+	private static final int MAX_PACKED_LENGTH = 12;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// NOTE: base-36 digit + 1 of each ascii char, 0 if not a digit. A table
+	// instead of range checks avoids branch mispredictions on random ids
+	private static final byte[] DIGITS = new byte[128];
+
+	static {
+		for (int idx = 0; idx < 10; ++idx) {
+			DIGITS['0' + idx] = (byte) (idx + 1);
+		}
+		for (int idx = 10; idx < 36; ++idx) {
+			DIGITS['a' + idx - 10] = (byte) (idx + 1);
+		}
+	}
+
+	private final int capacity;
+	private final long window;
+
+	private final long[] table;
+	private final int mask;
+
+	private final long[] ring;
+	private final long[] timestamps;
+	private int head;
+	private int size;
+
+	public DispatchedMessages() {
+		this(DEFAULT_CAPACITY, 0);
+	}
+
+	/**
+	 * @param capacity Maximum number of ids remembered
+	 * @param window Time in milliseconds an id is remembered, 0 to only bound by capacity
+	 */
+	public DispatchedMessages(int capacity, long window) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(String.format("capacity < 1: %s", capacity));
 		}
-		hMap.put(messageId, currentIdx);
-		ids[currentIdx] = messageId;
+		this.capacity = capacity;
+		this.window = window > 0 ? window : 0;
+
+		// NOTE: load factor of at most 0.5 keeps the probe sequences short
+		int tableSize = Integer.highestOneBit(capacity) << 2;
+		this.table = new long[tableSize];
+		this.mask = tableSize - 1;
+
+		this.ring = new long[capacity];
+		this.timestamps = this.window > 0 ? new long[capacity] : null;
+		this.head = 0;
+		this.size = 0;
 	}
-	
+
+	protected void addMessageId(String messageId){
+		addIfAbsent(messageId);
+	}
+
 	protected boolean checkIfDispatched(String messageId){
-		return hMap.containsKey(messageId);
+		long key = toKey(messageId);
+		expire();
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Adds the id if it is not in the set
+	 *
+	 * @return boolean True if the id was added, false if it was already dispatched
+	 */
+	protected boolean addIfAbsent(String messageId) {
+		long key = toKey(messageId);
+		expire();
+
+		int slot = hash(key) & mask;
+		long current = table[slot];
+		while (current != EMPTY) {
+			if (current == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+			current = table[slot];
+		}
+
+		if (size == capacity) {
+			evictOldest();
+			// NOTE: the eviction may have shifted keys into the free slot found
+			slot = hash(key) & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		table[slot] = key;
+		int tail = head + size;
+		if (tail >= capacity) {
+			tail -= capacity;
+		}
+		ring[tail] = key;
+		if (timestamps != null) {
+			timestamps[tail] = System.currentTimeMillis();
+		}
+		size++;
+		return true;
+	}
+
+	int size() {
+		expire();
+		return size;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	long getWindow() {
+		return window;
+	}
+
+	private void expire() {
+		if (timestamps != null && size > 0) {
+			long limit = System.currentTimeMillis() - window;
+			while (size > 0 && timestamps[head] <= limit) {
+				evictOldest();
+			}
+		}
+	}
+
+	private void evictOldest() {
+		long key = ring[head];
+		head = head + 1 == capacity ? 0 : head + 1;
+		size--;
+
+		int slot = indexOf(key);
+		if (slot >= 0) {
+			removeAt(slot);
+		}
+	}
+
+	private int indexOf(long key) {
+		int slot = hash(key) & mask;
+		long current = table[slot];
+		while (current != EMPTY) {
+			if (current == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+			current = table[slot];
+		}
+		return -1;
+	}
+
+	// NOTE: backward shift deletion, keeps the table free of tombstones
+	private void removeAt(int slot) {
+		int free = slot;
+		int next = (free + 1) & mask;
+		while (table[next] != EMPTY) {
+			int home = hash(table[next]) & mask;
+			// moves the key back if its home slot is not between free and next
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				table[free] = table[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[free] = EMPTY;
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Packs ids of up to 12 base-36 characters in a bijective base-37 long,
+	 * which is never 0 and never has the sign bit set. Any other id is hashed
+	 * with FNV-1a and marked with the sign bit.
+	 */
+	static long toKey(String messageId) {
+		int length = messageId.length();
+		if (length > 0 && length <= MAX_PACKED_LENGTH) {
+			long packed = 0;
+			int idx = 0;
+			for (; idx < length; idx++) {
+				char c = messageId.charAt(idx);
+				int digit = c < DIGITS.length ? DIGITS[c] : 0;
+				if (digit == 0) {
+					break;
+				}
+				packed = packed * 37 + digit;
+			}
+			if (idx == length) {
+				return packed;
+			}
+		}
+
+		long hashed = FNV_OFFSET;
+		for (int idx = 0; idx < length; idx++) {
+			hashed ^= messageId.charAt(idx);
+			hashed *= FNV_PRIME;
+		}
+		return hashed | HASHED_KEY;
 	}
 }
@@ -114,7 +114,7 @@ public class GcmOrtcIntentService extends Service {
 								} else {
 									if(oc.applicationKey.equals(appkey)){
 										ChannelSubscription subscription = oc.subscribedChannels.get(channel);
-										if(subscription !=null && oc.isConnected && !oc.isReconnecting){
+										if(subscription !=null && oc.getIsConnected()){
 											if(subscription.isWithNotification()){
 
 												String messId = ortcMessage.getMessageId();
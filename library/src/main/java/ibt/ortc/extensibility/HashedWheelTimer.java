@@ -0,0 +1,312 @@
+/**
+ * @fileoverview This file contains the timer shared by every ortc client
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process wide timer used for heartbeats, liveness checks, publish timeouts,
+ * reconnect delays and multipart pacing.
+ *
+ * Timeouts are kept in a wheel of buckets, each bucket covering one tick, so
+ * scheduling and cancelling is O(1) whatever the number of pending timeouts.
+ * A single daemon thread advances the wheel and runs the expired tasks, it
+ * parks while there is nothing scheduled so an idle client does not wake the
+ * device. Tasks must be short, long work has to be handed to another thread.
+ * An exception thrown by a task is raised on the client owning it.
+ *
+ * The precision is one tick (20 milliseconds).
+ */
+public final class HashedWheelTimer {
+	static final long TICK_DURATION = 20;
+	static final int WHEEL_SIZE = 512;
+
+	private static final HashedWheelTimer instance = new HashedWheelTimer(
+			TICK_DURATION, WHEEL_SIZE);
+
+	/**
+	 * Handle of a scheduled task
+	 */
+	public static final class Timeout {
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final OrtcClient owner;
+		private final long deadline;
+		private final AtomicInteger state;
+
+		// NOTE: only accessed by the worker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, OrtcClient owner, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.owner = owner;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(ST_INIT);
+		}
+
+		/**
+		 * Cancels the task if it did not run yet
+		 *
+		 * @return boolean True if the task was cancelled by this call
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+				return false;
+			}
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+
+		private boolean expire() {
+			if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+				return false;
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				// NOTE: a failing task must not stop the timer
+				if (owner != null) {
+					owner.raiseOrtcEvent(EventEnum.OnException, owner,
+							t instanceof Exception ? (Exception) t : new Exception(t));
+				} else {
+					t.printStackTrace();
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		int expire(long deadline) {
+			int expired = 0;
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					// NOTE: removed and counted by removeCancelled
+				} else if (timeout.remainingRounds <= 0
+						&& timeout.deadline <= deadline) {
+					remove(timeout);
+					if (timeout.expire()) {
+						expired++;
+					}
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+			return expired;
+		}
+	}
+
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime;
+
+	private final Queue<Timeout> scheduled;
+	private final Queue<Timeout> cancelled;
+	private final AtomicInteger pending;
+	private final Thread worker;
+
+	private long tick;
+
+	/**
+	 * Gets the timer shared by the ortc clients
+	 *
+	 * @return HashedWheelTimer The timer instance
+	 */
+	public static HashedWheelTimer getInstance() {
+		return instance;
+	}
+
+	private HashedWheelTimer(long tickDuration, int wheelSize) {
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Bucket[wheelSize];
+		for (int idx = 0; idx < wheelSize; idx++) {
+			this.wheel[idx] = new Bucket();
+		}
+		this.mask = wheelSize - 1;
+		this.startTime = System.nanoTime();
+
+		this.scheduled = new ConcurrentLinkedQueue<Timeout>();
+		this.cancelled = new ConcurrentLinkedQueue<Timeout>();
+		this.pending = new AtomicInteger(0);
+		this.tick = 0;
+
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "ortc-timer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Runs the task once after the delay
+	 *
+	 * @param task
+	 *            Short task to run on the timer thread
+	 * @param delay
+	 *            Delay in milliseconds
+	 * @return Timeout Handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		return schedule(task, delay, null);
+	}
+
+	/**
+	 * Runs the task once after the delay, an exception thrown by the task is
+	 * raised on the OnException handler of the owner
+	 *
+	 * @param task
+	 *            Short task to run on the timer thread
+	 * @param delay
+	 *            Delay in milliseconds
+	 * @param owner
+	 *            Client the errors of the task are raised on, null to print
+	 *            them
+	 * @return Timeout Handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, OrtcClient owner) {
+		if (task == null) {
+			throw new IllegalArgumentException("task is null");
+		}
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)) - startTime;
+		Timeout timeout = new Timeout(this, task, owner, deadline);
+		pending.incrementAndGet();
+		scheduled.add(timeout);
+		LockSupport.unpark(worker);
+		return timeout;
+	}
+
+	/**
+	 * Gets the number of tasks scheduled and not yet expired or removed
+	 *
+	 * @return int Number of pending tasks
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	private void work() {
+		while (true) {
+			if (pending.get() == 0) {
+				LockSupport.park(this);
+				// NOTE: the wheel is empty, skip the ticks elapsed while parked
+				tick = Math.max(tick, (System.nanoTime() - startTime) / tickDuration);
+				continue;
+			}
+
+			long deadline = waitForNextTick();
+			removeCancelled();
+			transferScheduled();
+			int expired = wheel[(int) (tick & mask)].expire(deadline);
+			if (expired > 0) {
+				pending.addAndGet(-expired);
+			}
+			tick++;
+		}
+	}
+
+	private long waitForNextTick() {
+		long deadline = tickDuration * (tick + 1);
+		while (true) {
+			long current = System.nanoTime() - startTime;
+			long sleepTime = deadline - current;
+			if (sleepTime <= 0) {
+				return current;
+			}
+			LockSupport.parkNanos(this, sleepTime);
+			// NOTE: woken by a schedule, move the new timeouts into the wheel
+			// so a burst of schedules does not grow the queue
+			transferScheduled();
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.isCancelled()) {
+				// NOTE: removed by removeCancelled
+				continue;
+			}
+			long calculated = timeout.deadline / tickDuration;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			long ticks = Math.max(calculated, tick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			} else {
+				// NOTE: cancelled before reaching the wheel, drop it from the
+				// schedule queue here so the pending count stays exact
+				scheduled.remove(timeout);
+			}
+			pending.decrementAndGet();
+		}
+	}
+}
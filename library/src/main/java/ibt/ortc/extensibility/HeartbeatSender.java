@@ -1,61 +1,67 @@
 package ibt.ortc.extensibility;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 public class HeartbeatSender {
-	private static class Sender implements Runnable {
-		
-		private OrtcClient client;
-		private boolean isStoping;
-		
-		public Sender(OrtcClient client) {
-			this.client = client;
-			isStoping = false;
-		}
-		
+	private final OrtcClient client;
+	private volatile boolean isStoping;
+	private volatile HashedWheelTimer.Timeout next;
+	private long lastHeartbeat;
+
+	private final Runnable sender = new Runnable() {
+		@Override
 		public void run() {
-			int counter = 0;
-			while(!isStoping && client.getIsConnected()){
-				try {
-					if(counter >= client.getHeartbeatTime()*10){
-						client.sendHeartbeat();
-						counter = 0;						
-					} else {
-						counter++;
-					}
-					Thread.sleep(100);
-					//client.sendHeartbeat();
-					//Thread.sleep(client.getHeartbeatTime()*1000);					
-				} catch (InterruptedException e) {
+			if (!isStoping && client.getIsConnected()) {
+				if (client.getAdaptiveHeartbeat()) {
+					sendIfIdle();
+				} else {
+					client.sendHeartbeat();
+					schedule(client.getHeartbeatTime() * 1000L);
 				}
 			}
 		}
+	};
 
-		public void setStoping(boolean isStoping) {
-			this.isStoping = isStoping;
+	public HeartbeatSender(OrtcClient client) {
+		this.client = client;
+		this.isStoping = false;
+		this.lastHeartbeat = 0;
+		schedule(client.getHeartbeatInterval() * 1000L);
+	}
+
+	private void sendIfIdle() {
+		long now = System.currentTimeMillis();
+		long interval = client.getHeartbeatInterval() * 1000L;
+
+		// NOTE: other messages keep the connection alive, wait until the
+		// connection was idle for a whole interval
+		long idle = now - client.lastOutbound;
+		if (idle < interval) {
+			schedule(interval - idle);
+			return;
 		}
+
+		// NOTE: data received after the previous heartbeat proves the
+		// connection survived the idle interval
+		if (lastHeartbeat > 0 && client.lastInbound > lastHeartbeat) {
+			client.onHeartbeatIdleSurvived();
+			interval = client.getHeartbeatInterval() * 1000L;
+		}
+
+		client.sendHeartbeat();
+		lastHeartbeat = now;
+		schedule(interval);
 	}
-	
-	private Sender sender;
-	private ExecutorService exec;
-	
-	public HeartbeatSender(OrtcClient client)  {
-		exec = Executors.newSingleThreadExecutor();
-		sender = new Sender(client);
-		exec.execute(sender);
+
+	private void schedule(long delay) {
+		if (!isStoping) {
+			next = HashedWheelTimer.getInstance().schedule(sender, delay, client);
+		}
 	}
-	
+
 	public void stop(){
-		sender.setStoping(true);
-	}
-	
-	@Override
-	protected void finalize() throws Throwable {		
-		super.finalize();
-		sender.setStoping(true);
-		if(exec != null && !exec.isShutdown() && !exec.isTerminated()){
-			exec.shutdownNow();
+		isStoping = true;
+		HashedWheelTimer.Timeout lNext = next;
+		if (lNext != null) {
+			lNext.cancel();
 		}
 	}
 }
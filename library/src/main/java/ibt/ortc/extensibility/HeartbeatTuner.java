@@ -0,0 +1,100 @@
+package ibt.ortc.extensibility;
+
+import java.util.HashMap;
+
+/**
+ * Learns, per network, the longest idle interval between heartbeats that
+ * keeps the connection alive.
+ *
+ * The interval starts at the minimum heartbeat time and grows by half after
+ * a few heartbeats survived at the current interval, never above the
+ * maximum heartbeat time announced to the server. When the connection drops while
+ * probing, the interval goes back to the last one known to be safe and the
+ * failed one becomes a ceiling for that network. When the safe interval
+ * itself fails it is halved.
+ */
+class HeartbeatTuner {
+	static final int PROBE_SUCCESSES = 3;
+	static final String DEFAULT_NETWORK = "";
+
+	private static class NetworkState {
+		int safe;
+		int current;
+		int ceiling;
+		int successes;
+	}
+
+	private final HashMap<String, NetworkState> networks;
+	private String networkKey;
+
+	HeartbeatTuner() {
+		this.networks = new HashMap<String, NetworkState>(11);
+		this.networkKey = DEFAULT_NETWORK;
+	}
+
+	synchronized void setNetworkKey(String networkKey) {
+		this.networkKey = networkKey == null ? DEFAULT_NETWORK : networkKey;
+	}
+
+	synchronized String getNetworkKey() {
+		return networkKey;
+	}
+
+	/**
+	 * Gets the idle interval to use on the current network
+	 *
+	 * @return int Interval in seconds, between min and max
+	 */
+	synchronized int getInterval(int min, int max) {
+		NetworkState state = getState(min);
+		return Math.max(min, Math.min(state.current, max));
+	}
+
+	/**
+	 * A heartbeat was sent after the connection was idle for the interval
+	 */
+	synchronized void onIdleSurvived(int min, int max) {
+		NetworkState state = getState(min);
+		if (++state.successes < PROBE_SUCCESSES) {
+			return;
+		}
+		state.successes = 0;
+		state.safe = Math.max(state.safe, Math.min(state.current, max));
+
+		int limit = state.ceiling > 0 ? Math.min(max, state.ceiling - 1) : max;
+		if (state.current < limit) {
+			state.current = Math.min(limit, state.current + Math.max(1, state.current / 2));
+		}
+	}
+
+	/**
+	 * The connection was lost while idle at the current interval
+	 */
+	synchronized void onConnectionLost(int min) {
+		NetworkState state = getState(min);
+		state.successes = 0;
+		if (state.current > state.safe) {
+			state.ceiling = state.current;
+			state.current = state.safe;
+		} else {
+			state.safe = Math.max(min, state.safe / 2);
+			state.ceiling = state.current;
+			state.current = state.safe;
+		}
+	}
+
+	synchronized void reset() {
+		networks.clear();
+	}
+
+	private NetworkState getState(int min) {
+		NetworkState state = networks.get(networkKey);
+		if (state == null) {
+			state = new NetworkState();
+			state.safe = min;
+			state.current = min;
+			networks.put(networkKey, state);
+		}
+		return state;
+	}
+}
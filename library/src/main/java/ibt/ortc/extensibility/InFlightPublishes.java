@@ -0,0 +1,113 @@
+package ibt.ortc.extensibility;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Table of the published messages waiting for the server acknowledge, indexed
+ * by message id. Safe to be used from the receiver thread, the timeout timers
+ * and user threads at the same time.
+ */
+class InFlightPublishes {
+	private final ConcurrentHashMap<String, PublishFuture> pending;
+	private final AtomicInteger count;
+	private volatile int maxPending;
+
+	InFlightPublishes() {
+		this.pending = new ConcurrentHashMap<String, PublishFuture>(16);
+		this.count = new AtomicInteger(0);
+		this.maxPending = 0;
+	}
+
+	/**
+	 * Registers a publish waiting for acknowledge, a rejected publish is
+	 * failed with the reason
+	 *
+	 * @return boolean False if the maximum of outstanding publishes was reached
+	 *         or a publish with the same message id is already pending
+	 */
+	boolean add(PublishFuture publish) {
+		if (count.incrementAndGet() > maxPending && maxPending > 0) {
+			count.decrementAndGet();
+			publish.fail(String.format("Maximum of %s pending publishes reached", maxPending));
+			return false;
+		}
+		// NOTE: the pending publish keeps the id, replacing it would leave
+		// its handle without ack nor timeout
+		if (pending.putIfAbsent(publish.getMessageId(), publish) != null) {
+			count.decrementAndGet();
+			publish.fail(String.format("Message id %s is already pending", publish.getMessageId()));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Completes the publish with the seqId sent by the server. Acks for
+	 * unknown or already completed publishes (for instance after a timeout)
+	 * are ignored.
+	 *
+	 * @return PublishFuture The completed publish or null if it was not pending
+	 */
+	PublishFuture acknowledge(String messageId, String seqId) {
+		PublishFuture publish = remove(messageId);
+		if (publish != null && publish.complete(seqId)) {
+			return publish;
+		}
+		return null;
+	}
+
+	/**
+	 * Fails a pending publish
+	 *
+	 * @return PublishFuture The failed publish or null if it was not pending
+	 */
+	PublishFuture fail(String messageId, String error) {
+		PublishFuture publish = remove(messageId);
+		if (publish != null && publish.fail(error)) {
+			return publish;
+		}
+		return null;
+	}
+
+	/**
+	 * Fails every pending publish, used when the connection drops and the
+	 * acks can not arrive anymore
+	 *
+	 * @return int Number of publishes failed
+	 */
+	int failAll(String error) {
+		ArrayList<String> messageIds = new ArrayList<String>(pending.keySet());
+		int failed = 0;
+		for (String messageId : messageIds) {
+			if (fail(messageId, error) != null) {
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	private PublishFuture remove(String messageId) {
+		if (messageId == null) {
+			return null;
+		}
+		PublishFuture publish = pending.remove(messageId);
+		if (publish != null) {
+			count.decrementAndGet();
+		}
+		return publish;
+	}
+
+	int size() {
+		return count.get();
+	}
+
+	int getMaxPending() {
+		return maxPending;
+	}
+
+	void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * @fileoverview This file contains a message waiting for its handler
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * A received message queued on the lane of its channel until the handler of
+ * the subscription runs
+ */
+final class InboundMessage implements Runnable {
+	final ChannelSubscription subscription;
+	private final OrtcClient sender;
+	private final String channel;
+	final Object key;
+	private String messageId;
+	private String message;
+	private Object filtered;
+	private Object payload;
+
+	InboundMessage(ChannelSubscription subscription, OrtcClient sender, String channel,
+			String messageId, String message, Object filtered, Object payload) {
+		ConflationKey conflationKey = subscription.getConflationKey();
+		this.key = conflationKey == null ? null : conflationKey.keyOf(channel, message);
+		this.subscription = subscription;
+		this.sender = sender;
+		this.channel = channel;
+		this.messageId = messageId;
+		this.message = message;
+		this.filtered = filtered;
+		this.payload = payload;
+	}
+
+	// NOTE: only called by the lane while the message is pending
+	void replace(InboundMessage newer) {
+		this.messageId = newer.messageId;
+		this.message = newer.message;
+		this.filtered = newer.filtered;
+		this.payload = newer.payload;
+	}
+
+	@Override
+	public void run() {
+		// NOTE: the delivery ends when the handler starts, the time spent
+		// waiting on the lane is part of the latency
+		LatencyTracer tracer = sender.getTracer();
+		if (tracer != null && messageId != null) {
+			tracer.onReceived(channel, messageId, System.currentTimeMillis());
+		}
+		ClientMetrics metrics = sender.getMetrics();
+		if (metrics == ClientMetrics.NONE) {
+			subscription.runHandler(sender, channel, messageId, message, filtered, payload);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			subscription.runHandler(sender, channel, messageId, message, filtered, payload);
+		} finally {
+			metrics.onDispatched(System.nanoTime() - start);
+		}
+	}
+}
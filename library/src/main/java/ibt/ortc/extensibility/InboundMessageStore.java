@@ -0,0 +1,675 @@
+/**
+ * @fileoverview This file contains the on device log of the received messages
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the messages received with a numeric seqId, kept on the device so
+ * the history of a channel can be read without the network.
+ *
+ * Messages are appended to segment files of a fixed maximum size. Each
+ * channel has a sparse index, one seqId and position every 16 messages of
+ * the channel and at the first message of each segment, so a history read
+ * seeks close to the requested seqId and scans forward from there. Segments
+ * are memory mapped for reading and a history read scans them without
+ * holding the lock of the appends. Whole segments are deleted, oldest first,
+ * when the log grows above the maximum size or, checked on every new segment
+ * and every retention interval, when their messages are older than the
+ * maximum age.
+ *
+ * The log is a cache, it is not synced to the disk. A record torn by a
+ * crash is discarded when the log is opened, a record failing its checksum
+ * ends the read of its segment. Write and read errors are reported to the
+ * client as exceptions, the messages are still delivered.
+ */
+public class InboundMessageStore {
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+	static final int INDEX_INTERVAL = 16;
+	private static final int HEADER_SIZE = 8;
+	private static final int FLUSH_DELAY = 200;
+	private static final int RETENTION_INTERVAL = 10 * 60 * 1000;
+	// NOTE: seq, timestamp, channel length and message length
+	private static final int MIN_BODY_SIZE = 8 + 8 + 4 + 4;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final class Segment {
+		final long id;
+		final File file;
+		long size;
+		long lastTimestamp;
+		MappedByteBuffer map;
+		long mappedSize;
+
+		Segment(long id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	// NOTE: parallel arrays, entries before start belong to deleted segments
+	private static final class ChannelIndex {
+		long[] seqs = new long[8];
+		long[] segments = new long[8];
+		long[] positions = new long[8];
+		int start;
+		int count;
+		int sinceIndexed;
+		long lastSeq = -1;
+
+		void add(long seq, long segment, long position) {
+			if (count == seqs.length) {
+				if (start > 0) {
+					int live = count - start;
+					System.arraycopy(seqs, start, seqs, 0, live);
+					System.arraycopy(segments, start, segments, 0, live);
+					System.arraycopy(positions, start, positions, 0, live);
+					count = live;
+					start = 0;
+				}
+				if (count == seqs.length) {
+					seqs = Arrays.copyOf(seqs, count * 2);
+					segments = Arrays.copyOf(segments, count * 2);
+					positions = Arrays.copyOf(positions, count * 2);
+				}
+			}
+			seqs[count] = seq;
+			segments[count] = segment;
+			positions[count] = position;
+			count++;
+			sinceIndexed = 0;
+		}
+
+		boolean shouldIndex(long segment) {
+			return count == start || sinceIndexed >= INDEX_INTERVAL
+					|| segments[count - 1] != segment;
+		}
+
+		// NOTE: last entry with a seq lower or equal to the given one
+		int floor(long seq) {
+			int low = start;
+			int high = count - 1;
+			int found = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (seqs[middle] <= seq) {
+					found = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return found;
+		}
+
+		void prune(long firstSegment) {
+			while (start < count && segments[start] < firstSegment) {
+				start++;
+			}
+		}
+	}
+
+	// NOTE: a segment to read, captured under the lock and scanned without it
+	private static final class SegmentView {
+		final long id;
+		final ByteBuffer buffer;
+		final int position;
+
+		SegmentView(long id, ByteBuffer buffer, int position) {
+			this.id = id;
+			this.buffer = buffer;
+			this.position = position;
+		}
+	}
+
+	private final File directory;
+	private final OrtcClient client;
+	private final ArrayList<Segment> segments;
+	private final HashMap<String, ChannelIndex> channels;
+	private final CRC32 crc;
+
+	private Segment active;
+	private BufferedOutputStream out;
+	private long totalSize;
+	private boolean flushScheduled;
+	private boolean closed;
+	private HashedWheelTimer.Timeout retentionTimeout;
+
+	private volatile long segmentSize;
+	private volatile long maxSize;
+	private volatile long maxAge;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (InboundMessageStore.this) {
+				flushScheduled = false;
+				flush();
+			}
+		}
+	};
+
+	private final Runnable retentionTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (InboundMessageStore.this) {
+				if (closed) {
+					return;
+				}
+				applyRetention();
+				retentionTimeout = HashedWheelTimer.getInstance().schedule(retentionTask,
+						RETENTION_INTERVAL, client);
+			}
+		}
+	};
+
+	private InboundMessageStore(File directory, OrtcClient client) {
+		this.directory = directory;
+		this.client = client;
+		this.segments = new ArrayList<Segment>(16);
+		this.channels = new HashMap<String, ChannelIndex>(11);
+		this.crc = new CRC32();
+		this.segmentSize = DEFAULT_SEGMENT_SIZE;
+		this.maxSize = DEFAULT_MAX_SIZE;
+		this.maxAge = DEFAULT_MAX_AGE;
+	}
+
+	/**
+	 * Opens the store, indexing the segments written by a previous run
+	 *
+	 * @param directory
+	 *            Directory holding the segment files, created if it does
+	 *            not exist
+	 * @param client
+	 *            Client the errors are reported to, null to ignore them
+	 * @return InboundMessageStore The opened store
+	 * @throws IOException
+	 *             If the directory can not be read or written
+	 */
+	static InboundMessageStore open(File directory, OrtcClient client) throws IOException {
+		InboundMessageStore store = new InboundMessageStore(directory, client);
+		synchronized (store) {
+			store.load();
+			store.retentionTimeout = HashedWheelTimer.getInstance().schedule(
+					store.retentionTask, RETENTION_INTERVAL, client);
+		}
+		return store;
+	}
+
+	private void report(String operation, Exception error) {
+		if (client != null) {
+			client.raiseOrtcEvent(EventEnum.OnException, client, new Exception(String.format(
+					"Inbound message store %s failed in %s: %s", operation, directory,
+					error.getMessage()), error));
+		}
+	}
+
+	private void load() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException(String.format("Could not create %s", directory));
+		}
+
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+
+		for (String name : names) {
+			long id;
+			try {
+				id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment segment = new Segment(id, new File(directory, name));
+			segment.size = index(segment);
+			segments.add(segment);
+			totalSize += segment.size;
+		}
+
+		if (segments.isEmpty()) {
+			roll();
+		} else {
+			active = segments.get(segments.size() - 1);
+			if (active.size < active.file.length()) {
+				// NOTE: torn record written when the process died
+				RandomAccessFile raf = new RandomAccessFile(active.file, "rw");
+				try {
+					raf.setLength(active.size);
+				} finally {
+					raf.close();
+				}
+			}
+			out = new BufferedOutputStream(new FileOutputStream(active.file, true), 8192);
+		}
+		applyRetention();
+	}
+
+	private long index(Segment segment) throws IOException {
+		long position = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file)));
+		try {
+			long length = segment.file.length();
+			while (true) {
+				int bodyLength = in.readInt();
+				int checksum = in.readInt();
+				if (bodyLength < MIN_BODY_SIZE || position + HEADER_SIZE + bodyLength > length) {
+					break;
+				}
+				byte[] body = new byte[bodyLength];
+				in.readFully(body);
+				crc.reset();
+				crc.update(body, 0, bodyLength);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				ByteBuffer buffer = ByteBuffer.wrap(body);
+				long seq = buffer.getLong();
+				long timestamp = buffer.getLong();
+				int channelLength = buffer.getInt();
+				String channel = new String(body, 20, channelLength, "UTF-8");
+				addToIndex(channel, seq, segment.id, position);
+				segment.lastTimestamp = timestamp;
+				position += HEADER_SIZE + bodyLength;
+			}
+		} catch (EOFException e) {
+			// NOTE: end of the segment
+		} finally {
+			in.close();
+		}
+		return position;
+	}
+
+	private void addToIndex(String channel, long seq, long segment, long position) {
+		ChannelIndex index = channels.get(channel);
+		if (index == null) {
+			index = new ChannelIndex();
+			channels.put(channel, index);
+		}
+		if (index.shouldIndex(segment)) {
+			index.add(seq, segment, position);
+		} else {
+			index.sinceIndexed++;
+		}
+		index.lastSeq = Math.max(index.lastSeq, seq);
+	}
+
+	/**
+	 * Appends a received message, messages without a numeric seqId are not
+	 * stored
+	 */
+	synchronized void append(String channel, String seqId, String message) {
+		if (closed || seqId == null) {
+			return;
+		}
+		long seq;
+		try {
+			seq = Long.parseLong(seqId);
+		} catch (NumberFormatException e) {
+			return;
+		}
+
+		try {
+			byte[] channelBytes = channel.getBytes("UTF-8");
+			byte[] messageBytes = message.getBytes("UTF-8");
+			int bodyLength = 8 + 8 + 4 + channelBytes.length + 4 + messageBytes.length;
+			if (active.size > 0 && active.size + HEADER_SIZE + bodyLength > segmentSize) {
+				roll();
+			}
+
+			long timestamp = System.currentTimeMillis();
+			ByteBuffer body = ByteBuffer.allocate(bodyLength);
+			body.putLong(seq);
+			body.putLong(timestamp);
+			body.putInt(channelBytes.length);
+			body.put(channelBytes);
+			body.putInt(messageBytes.length);
+			body.put(messageBytes);
+
+			crc.reset();
+			crc.update(body.array(), 0, bodyLength);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(bodyLength);
+			header.putInt((int) crc.getValue());
+			out.write(header.array());
+			out.write(body.array());
+
+			addToIndex(channel, seq, active.id, active.size);
+			active.size += HEADER_SIZE + bodyLength;
+			active.lastTimestamp = timestamp;
+			totalSize += HEADER_SIZE + bodyLength;
+
+			if (!flushScheduled) {
+				flushScheduled = true;
+				HashedWheelTimer.getInstance().schedule(flushTask, FLUSH_DELAY, client);
+			}
+		} catch (IOException e) {
+			// NOTE: the store is a cache, the message is still delivered
+			report("append", e);
+		}
+	}
+
+	private void roll() throws IOException {
+		if (out != null) {
+			out.close();
+		}
+		long id = active == null ? 0 : active.id + 1;
+		Segment segment = new Segment(id, new File(directory, String.format(
+				"%020d%s", id, SEGMENT_SUFFIX)));
+		segments.add(segment);
+		active = segment;
+		out = new BufferedOutputStream(new FileOutputStream(segment.file, false), 8192);
+		applyRetention();
+	}
+
+	private void applyRetention() {
+		long limit = System.currentTimeMillis() - maxAge;
+		boolean removed = false;
+		while (segments.size() > 1) {
+			Segment oldest = segments.get(0);
+			if (totalSize <= maxSize && oldest.lastTimestamp >= limit) {
+				break;
+			}
+			segments.remove(0);
+			totalSize -= oldest.size;
+			oldest.map = null;
+			oldest.file.delete();
+			removed = true;
+		}
+
+		if (removed) {
+			long firstSegment = segments.get(0).id;
+			for (ChannelIndex index : channels.values()) {
+				index.prune(firstSegment);
+			}
+		}
+	}
+
+	private void flush() {
+		if (closed) {
+			return;
+		}
+		try {
+			out.flush();
+		} catch (IOException e) {
+			report("flush", e);
+		}
+	}
+
+	/**
+	 * Reads the messages of a channel received after the given seqId, in the
+	 * order they were received
+	 *
+	 * @param channel
+	 *            Channel name
+	 * @param fromSeq
+	 *            Only messages with a greater seqId are returned, -1 for the
+	 *            oldest message kept
+	 * @param limit
+	 *            Maximum number of messages returned
+	 * @return List The messages, empty if there is none
+	 */
+	public List<StoredMessage> history(String channel, long fromSeq, int limit) {
+		ArrayList<StoredMessage> result = new ArrayList<StoredMessage>(Math.min(Math.max(limit, 0), 64));
+		if (channel == null || limit <= 0) {
+			return result;
+		}
+
+		ArrayList<SegmentView> views;
+		synchronized (this) {
+			ChannelIndex index = channels.get(channel);
+			if (closed || index == null || index.start == index.count) {
+				return result;
+			}
+
+			int entry = index.floor(fromSeq);
+			if (entry < 0) {
+				entry = index.start;
+			}
+			long segmentId = index.segments[entry];
+			long position = index.positions[entry];
+
+			// NOTE: the mapped buffers stay readable when retention deletes
+			// their segment during the scan
+			flush();
+			views = new ArrayList<SegmentView>(segments.size());
+			try {
+				for (Segment segment : segments) {
+					if (segment.id >= segmentId) {
+						views.add(new SegmentView(segment.id, map(segment).duplicate(),
+								segment.id == segmentId ? (int) position : 0));
+					}
+				}
+			} catch (IOException e) {
+				report("read", e);
+			}
+		}
+
+		try {
+			byte[] channelBytes = channel.getBytes("UTF-8");
+			CRC32 checksum = new CRC32();
+			byte[] body = new byte[256];
+			for (SegmentView view : views) {
+				body = scan(view, channel, channelBytes, fromSeq, limit, checksum, body, result);
+				if (result.size() >= limit) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			report("read", e);
+		}
+		return result;
+	}
+
+	// NOTE: every record is checked before its length is trusted, a corrupted
+	// record ends the scan of the segment as the next record can not be found
+	private byte[] scan(SegmentView view, String channel, byte[] channelBytes, long fromSeq,
+			int limit, CRC32 checksum, byte[] body, List<StoredMessage> result) throws IOException {
+		ByteBuffer buffer = view.buffer;
+		int current = view.position;
+		int end = buffer.limit();
+		while (current + HEADER_SIZE <= end && result.size() < limit) {
+			int bodyLength = buffer.getInt(current);
+			if (bodyLength < MIN_BODY_SIZE || bodyLength > end - current - HEADER_SIZE) {
+				report("read", new IOException(String.format(
+						"Invalid record length %s in segment %s at %s", bodyLength, view.id, current)));
+				break;
+			}
+			if (body.length < bodyLength) {
+				body = new byte[Math.max(bodyLength, body.length * 2)];
+			}
+			buffer.position(current + HEADER_SIZE);
+			buffer.get(body, 0, bodyLength);
+			checksum.reset();
+			checksum.update(body, 0, bodyLength);
+			if ((int) checksum.getValue() != buffer.getInt(current + 4)) {
+				report("read", new IOException(String.format(
+						"Invalid record checksum in segment %s at %s", view.id, current)));
+				break;
+			}
+			current += HEADER_SIZE + bodyLength;
+
+			ByteBuffer record = ByteBuffer.wrap(body, 0, bodyLength);
+			int channelLength = record.getInt(16);
+			if (channelLength != channelBytes.length
+					|| 20 + channelLength + 4 > bodyLength
+					|| !matches(body, 20, channelBytes)) {
+				continue;
+			}
+			long seq = record.getLong(0);
+			if (seq <= fromSeq) {
+				continue;
+			}
+
+			long timestamp = record.getLong(8);
+			int messageOffset = 20 + channelLength;
+			int messageLength = record.getInt(messageOffset);
+			if (messageLength < 0 || messageOffset + 4 + messageLength > bodyLength) {
+				continue;
+			}
+			result.add(new StoredMessage(channel, seq, timestamp,
+					new String(body, messageOffset + 4, messageLength, "UTF-8")));
+		}
+		return body;
+	}
+
+	private static boolean matches(byte[] body, int offset, byte[] bytes) {
+		for (int idx = 0; idx < bytes.length; idx++) {
+			if (body[offset + idx] != bytes[idx]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private MappedByteBuffer map(Segment segment) throws IOException {
+		if (segment.map == null || segment.mappedSize != segment.size) {
+			RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+			try {
+				segment.map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+				segment.mappedSize = segment.size;
+			} finally {
+				raf.close();
+			}
+		}
+		return segment.map;
+	}
+
+	/**
+	 * Gets the highest seqId stored for a channel
+	 *
+	 * @param channel
+	 *            Channel name
+	 * @return String The seqId or null if no message of the channel is stored
+	 */
+	public synchronized String getLastSeqId(String channel) {
+		ChannelIndex index = channel == null ? null : channels.get(channel);
+		return index == null || index.lastSeq < 0 ? null : String.valueOf(index.lastSeq);
+	}
+
+	/**
+	 * Writes the buffered messages and closes the store
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		if (retentionTimeout != null) {
+			retentionTimeout.cancel();
+			retentionTimeout = null;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			report("close", e);
+		}
+		for (Segment segment : segments) {
+			segment.map = null;
+		}
+		closed = true;
+	}
+
+	/**
+	 * Gets the size of the stored segments
+	 *
+	 * @return long Size in bytes
+	 */
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Gets the number of segment files
+	 *
+	 * @return int Number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Gets the maximum size of a segment file
+	 *
+	 * @return long Size in bytes
+	 */
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the maximum size of a segment file, retention deletes whole
+	 * segments
+	 *
+	 * @param segmentSize
+	 *            Size in bytes (default 1 MB)
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Gets the size above which the oldest segments are deleted
+	 *
+	 * @return long Size in bytes
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the size above which the oldest segments are deleted
+	 *
+	 * @param maxSize
+	 *            Size in bytes (default 16 MB)
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets how long the messages are kept
+	 *
+	 * @return long Age in milliseconds
+	 */
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Sets how long the messages are kept, a segment is deleted once its
+	 * newest message is older
+	 *
+	 * @param maxAge
+	 *            Age in milliseconds (default 7 days)
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+}
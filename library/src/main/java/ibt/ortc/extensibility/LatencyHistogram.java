@@ -0,0 +1,148 @@
+/**
+ * @fileoverview This file contains a lock free histogram of durations
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative values (usually milliseconds).
+ *
+ * Values are counted in logarithmic buckets, each power of two split in 8
+ * linear sub-buckets, so percentiles are reported with at most 12.5% error
+ * while the histogram keeps a fixed size whatever the recorded values.
+ * Recording is a couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS
+			+ (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong(0);
+		this.sum = new AtomicLong(0);
+		this.max = new AtomicLong(0);
+	}
+
+	/**
+	 * Records a value, negative values are recorded as 0
+	 *
+	 * @param value
+	 *            The value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of recorded values
+	 *
+	 * @return long Number of values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the highest recorded value
+	 *
+	 * @return long Highest value or 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean of the recorded values
+	 *
+	 * @return double Mean or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long lCount = count.get();
+		return lCount == 0 ? 0 : (double) sum.get() / lCount;
+	}
+
+	/**
+	 * Gets the value below which the given percentage of the recorded values
+	 * fall
+	 *
+	 * @param percentile
+	 *            Percentile between 0 and 100, for instance 99.9
+	 * @return long Upper bound of the bucket holding the percentile, 0 if
+	 *         nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long lCount = count.get();
+		if (lCount == 0) {
+			return 0;
+		}
+		double lPercentile = Math.max(0, Math.min(100, percentile));
+		long target = Math.max(1, (long) Math.ceil(lPercentile / 100 * lCount));
+
+		long seen = 0;
+		for (int idx = 0; idx < BUCKETS; idx++) {
+			seen += counts.get(idx);
+			if (seen >= target) {
+				return Math.min(highestValueOf(idx), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clears the recorded values
+	 */
+	public void reset() {
+		for (int idx = 0; idx < BUCKETS; idx++) {
+			counts.set(idx, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%s mean=%.1f p50=%s p99=%s max=%s",
+				getCount(), getMean(), getPercentile(50), getPercentile(99),
+				getMax());
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
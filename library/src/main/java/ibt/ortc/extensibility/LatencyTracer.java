@@ -0,0 +1,213 @@
+/**
+ * @fileoverview This file contains the publish to delivery latency tracing
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ibt.ortc.api.Strings;
+
+/**
+ * Measures the time between the publish of a message and the dispatch of
+ * its handler, per channel, including the split of the parts and their
+ * reassembly.
+ *
+ * A traced message id carries its send time: 't', 8 random characters as
+ * the untraced ids and the send time in milliseconds as 8 base-36 digits.
+ * Ids keep the randomness of the untraced ones, so turning on the tracing
+ * doesn't make the receivers drop messages as duplicates. The receivers
+ * remember these 17 characters ids as a hash. Received messages with
+ * another id are ignored.
+ *
+ * The clocks of the publisher and of the receiver differ. The offset of a
+ * channel is estimated as the smallest gap between the send time and the
+ * receive time seen in the last minute, less the smallest round trip of the
+ * acks of the traced publishes of this client: the fastest delivery is
+ * assumed to take one round trip, exact when the client receives its own
+ * publishes. Turn the estimation off when the clocks are synchronized.
+ */
+public class LatencyTracer {
+	static final char MARKER = 't';
+	private static final int RANDOM_LENGTH = 8;
+	private static final int STAMP_LENGTH = 8;
+	static final int ID_LENGTH = 1 + RANDOM_LENGTH + STAMP_LENGTH;
+	// NOTE: ids of other clients that look traced are ignored
+	private static final long MAX_SKEW = 24 * 60 * 60 * 1000L;
+	// NOTE: the minimums restart every window to follow the clock drift
+	static final long WINDOW = 60 * 1000L;
+
+	private static final class Minimum {
+		private long current = Long.MAX_VALUE;
+		private long previous = Long.MAX_VALUE;
+		private long start;
+
+		synchronized long update(long value, long now) {
+			if (now - start >= WINDOW) {
+				previous = current;
+				current = Long.MAX_VALUE;
+				start = now;
+			}
+			if (value < current) {
+				current = value;
+			}
+			return Math.min(current, previous);
+		}
+
+		synchronized long get() {
+			return Math.min(current, previous);
+		}
+	}
+
+	private static final class ChannelLatency {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final Minimum skew = new Minimum();
+	}
+
+	private final ConcurrentHashMap<String, ChannelLatency> channels;
+	private final Minimum roundTrip;
+	private volatile boolean estimateOffset;
+
+	public LatencyTracer() {
+		this.channels = new ConcurrentHashMap<String, ChannelLatency>(16);
+		this.roundTrip = new Minimum();
+		this.estimateOffset = true;
+	}
+
+	/**
+	 * Creates a message id carrying a send time
+	 */
+	static String newMessageId(long now) {
+		char[] id = new char[ID_LENGTH];
+		id[0] = MARKER;
+		Strings.randomString(RANDOM_LENGTH).getChars(0, RANDOM_LENGTH, id, 1);
+		String stamp = Long.toString(now, 36);
+		int padding = STAMP_LENGTH - stamp.length();
+		for (int idx = 0; idx < padding; idx++) {
+			id[1 + RANDOM_LENGTH + idx] = '0';
+		}
+		stamp.getChars(Math.max(0, -padding), stamp.length(), id, 1 + RANDOM_LENGTH + Math.max(0, padding));
+		return new String(id);
+	}
+
+	/**
+	 * Gets the send time of a traced message id
+	 *
+	 * @return long Send time or -1 if the id is not traced
+	 */
+	static long stampOf(String messageId) {
+		if (messageId == null || messageId.length() != ID_LENGTH || messageId.charAt(0) != MARKER) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(messageId.substring(1 + RANDOM_LENGTH), 36);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	void onAck(String messageId, long now) {
+		long stamp = stampOf(messageId);
+		if (stamp >= 0 && now >= stamp) {
+			roundTrip.update(now - stamp, now);
+		}
+	}
+
+	void onReceived(String channel, String messageId, long now) {
+		long stamp = stampOf(messageId);
+		long skew = now - stamp;
+		if (stamp < 0 || Math.abs(skew) > MAX_SKEW) {
+			return;
+		}
+
+		ChannelLatency channelLatency = channels.get(channel);
+		if (channelLatency == null) {
+			ChannelLatency created = new ChannelLatency();
+			channelLatency = channels.putIfAbsent(channel, created);
+			if (channelLatency == null) {
+				channelLatency = created;
+			}
+		}
+
+		long minSkew = channelLatency.skew.update(skew, now);
+		channelLatency.latency.record(estimateOffset ? skew - offsetOf(minSkew) : skew);
+	}
+
+	private long offsetOf(long minSkew) {
+		long lRoundTrip = roundTrip.get();
+		return minSkew - (lRoundTrip == Long.MAX_VALUE ? 0 : lRoundTrip);
+	}
+
+	/**
+	 * Gets the latency of a channel
+	 *
+	 * @param channel
+	 *            The channel
+	 * @return LatencyHistogram Latency in milliseconds, null if no traced
+	 *         message was received in the channel
+	 */
+	public LatencyHistogram getLatency(String channel) {
+		ChannelLatency channelLatency = channels.get(channel);
+		return channelLatency == null ? null : channelLatency.latency;
+	}
+
+	/**
+	 * Gets the channels where traced messages were received
+	 *
+	 * @return Set<String> The channels
+	 */
+	public Set<String> getChannels() {
+		return channels.keySet();
+	}
+
+	/**
+	 * Gets the estimated offset between the clocks of the publishers of a
+	 * channel and the clock of this client
+	 *
+	 * @param channel
+	 *            The channel
+	 * @return long Offset in milliseconds, 0 if unknown
+	 */
+	public long getClockOffset(String channel) {
+		ChannelLatency channelLatency = channels.get(channel);
+		if (channelLatency == null || channelLatency.skew.get() == Long.MAX_VALUE) {
+			return 0;
+		}
+		return offsetOf(channelLatency.skew.get());
+	}
+
+	/**
+	 * Gets the smallest round trip of the traced publishes in the last
+	 * minute
+	 *
+	 * @return long Round trip in milliseconds, -1 if no publish was
+	 *         acknowledged
+	 */
+	public long getRoundTrip() {
+		long lRoundTrip = roundTrip.get();
+		return lRoundTrip == Long.MAX_VALUE ? -1 : lRoundTrip;
+	}
+
+	public boolean getEstimateOffset() {
+		return estimateOffset;
+	}
+
+	/**
+	 * Sets if the clock offset is estimated, disable it when the clocks of
+	 * the publishers and of this client are synchronized
+	 *
+	 * @param estimateOffset
+	 *            True to estimate the offset (default true)
+	 */
+	public void setEstimateOffset(boolean estimateOffset) {
+		this.estimateOffset = estimateOffset;
+	}
+
+	/**
+	 * Clears the latency of every channel
+	 */
+	public void reset() {
+		channels.clear();
+	}
+}
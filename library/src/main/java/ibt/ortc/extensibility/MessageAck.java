@@ -0,0 +1,41 @@
+/**
+ * @fileoverview This file contains the acknowledge of a received message
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Acknowledge of a message, or message part, received with a seqId
+ */
+public final class MessageAck {
+	private final String messageId;
+	private final String seqId;
+	private final boolean allParts;
+
+	MessageAck(String messageId, String seqId, boolean allParts) {
+		this.messageId = messageId;
+		this.seqId = seqId;
+		this.allParts = allParts;
+	}
+
+	/**
+	 * @return String The acknowledged message identifier
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return String The acknowledged sequence identifier
+	 */
+	public String getSeqId() {
+		return seqId;
+	}
+
+	/**
+	 * @return boolean True if every part of the message was received
+	 */
+	public boolean isAllParts() {
+		return allParts;
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * @fileoverview This file contains the dispatch of the client callbacks
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the client callbacks off the thread reading the socket.
+ *
+ * Every channel has a lane running its callbacks in order, the connection
+ * events share one more lane. The lanes run on the executor given by the
+ * application or on built-in threads, each channel always on the same
+ * thread. Without an executor the callbacks run inline on the reading
+ * thread.
+ *
+ * Replacing the executor hands the existing lanes over: each lane finishes
+ * its running batch, then goes on with its queued callbacks on the new
+ * executor, so the order of a channel survives the change.
+ */
+class MessageDispatcher {
+	private static final String CLIENT_LANE = "";
+	// NOTE: seconds a stripe thread waits idle before ending
+	private static final long STRIPE_KEEP_ALIVE = 30;
+
+	private final OrtcClient client;
+	private final ConcurrentHashMap<String, DispatchLane> lanes;
+
+	private volatile Executor executor;
+	private volatile ExecutorService[] stripes;
+
+	MessageDispatcher(OrtcClient client) {
+		this.client = client;
+		this.lanes = new ConcurrentHashMap<String, DispatchLane>(16);
+	}
+
+	/**
+	 * Runs a callback of a channel, or of the connection when channel is null
+	 */
+	void dispatch(String channel, Runnable task) {
+		dispatchTo(channel == null ? CLIENT_LANE : channel, task);
+	}
+
+	void dispatchTo(String key, Runnable task) {
+		if (isInline()) {
+			// NOTE: a lane left by the previous executor drains first
+			DispatchLane lane = lanes.get(key);
+			if (lane == null) {
+				task.run();
+			} else {
+				lane.add(task);
+			}
+			return;
+		}
+		getLane(key).add(task);
+	}
+
+	/**
+	 * Runs the handler of a received message, queued within the capacity of
+	 * its subscription when the callbacks do not run inline
+	 *
+	 * @return boolean False if the queue is full and the subscription must
+	 *         fail
+	 */
+	boolean dispatchMessage(String channel, InboundMessage message) {
+		return offerTo(channel, message);
+	}
+
+	boolean offerTo(String key, InboundMessage message) {
+		if (isInline()) {
+			DispatchLane lane = lanes.get(key);
+			if (lane == null) {
+				message.run();
+				return true;
+			}
+			return lane.offer(message);
+		}
+		return getLane(key).offer(message);
+	}
+
+	private DispatchLane getLane(String key) {
+		DispatchLane lane = lanes.get(key);
+		if (lane == null) {
+			DispatchLane created = new DispatchLane(this, key, client);
+			lane = lanes.putIfAbsent(key, created);
+			if (lane == null) {
+				lane = created;
+			}
+		}
+		return lane;
+	}
+
+	/**
+	 * Gets the executor of a lane
+	 *
+	 * @return Executor The executor or null if the callbacks run inline
+	 */
+	Executor executorOf(String key) {
+		ExecutorService[] lStripes = stripes;
+		if (lStripes != null) {
+			return lStripes[(key.hashCode() & 0x7fffffff) % lStripes.length];
+		}
+		return executor;
+	}
+
+	/**
+	 * Forgets the lane of an unsubscribed channel once its pending callbacks
+	 * ran
+	 */
+	void remove(String channel) {
+		DispatchLane lane = lanes.get(channel);
+		if (lane != null) {
+			lane.retire();
+		}
+	}
+
+	void closed(String key, DispatchLane lane) {
+		lanes.remove(key, lane);
+	}
+
+	int getPending(String channel) {
+		DispatchLane lane = lanes.get(channel == null ? CLIENT_LANE : channel);
+		return lane == null ? 0 : lane.size();
+	}
+
+	int getQueued(String channel) {
+		DispatchLane lane = lanes.get(channel);
+		return lane == null ? 0 : lane.getMessages();
+	}
+
+	boolean isInline() {
+		return executor == null && stripes == null;
+	}
+
+	Executor getExecutor() {
+		return executor;
+	}
+
+	int getThreads() {
+		ExecutorService[] lStripes = stripes;
+		return lStripes == null ? 0 : lStripes.length;
+	}
+
+	synchronized void setExecutor(Executor executor) {
+		// NOTE: the new executor is set first, the lanes are never inline
+		// while it changes
+		this.executor = executor;
+		this.stripes = null;
+		handOver();
+	}
+
+	synchronized void setThreads(int threads) {
+		ExecutorService[] newStripes = null;
+		if (threads > 0) {
+			newStripes = new ExecutorService[threads];
+			for (int i = 0; i < threads; i++) {
+				final int stripe = i;
+				ThreadPoolExecutor lStripe = new ThreadPoolExecutor(1, 1,
+						STRIPE_KEEP_ALIVE, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, String.format(
+								"ortc-dispatch-%s-%s", client.id, stripe));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				lStripe.allowCoreThreadTimeOut(true);
+				newStripes[i] = lStripe;
+			}
+		}
+		this.stripes = newStripes;
+		this.executor = null;
+		handOver();
+	}
+
+	// NOTE: the lanes pick the new executor when they are scheduled again,
+	// the lanes already queued on the old stripes still run there. The old
+	// stripes are not shut down, a lane may still be handing itself to one,
+	// their thread ends once idle. Inline, the lanes leave once empty
+	private void handOver() {
+		if (isInline()) {
+			for (DispatchLane lane : lanes.values()) {
+				lane.retire();
+			}
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ * @fileoverview This file contains the local filter of the received messages
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Predicate over the received messages of a subscription, evaluated on the
+ * thread reading the socket before the message is queued for the handler.
+ *
+ * The probes are prepared when the filter is built (the field paths are
+ * split, the combinations flattened), so a rejected message costs a few
+ * string comparisons: a field probe scans the JSON text without building
+ * any object. A rejected message is still acknowledged and its seqId
+ * recorded, it is only not delivered.
+ *
+ * How to use:
+ * <pre>
+ * MessageFilter filter = MessageFilter.startsWith("{")
+ * 		.and(MessageFilter.field("order.side", "buy"))
+ * 		.and(MessageFilter.contains("\"urgent\"").negate());
+ * client.setMessageFilter("orders", filter);
+ * </pre>
+ */
+public abstract class MessageFilter {
+	/**
+	 * Tells if a message is delivered to the handler
+	 * @param channel Channel where the message was received
+	 * @param seqId The seqId of the message or null if it has none
+	 * @param message Content of the received message
+	 * @return boolean True if the message is delivered
+	 */
+	public abstract boolean matches(String channel, String seqId, String message);
+
+	// NOTE: a filter not reading the content is evaluated on the first part
+	// of a multipart message, the other parts of a rejected message are
+	// dropped without being buffered
+	boolean readsMessage() {
+		return true;
+	}
+
+	/**
+	 * Accepts the messages accepted by this filter and by another
+	 * @param other The other filter
+	 * @return MessageFilter The combined filter
+	 */
+	public MessageFilter and(MessageFilter other) {
+		return new All(join(this, other, true));
+	}
+
+	/**
+	 * Accepts the messages accepted by this filter or by another
+	 * @param other The other filter
+	 * @return MessageFilter The combined filter
+	 */
+	public MessageFilter or(MessageFilter other) {
+		return new Any(join(this, other, false));
+	}
+
+	/**
+	 * Accepts the messages rejected by this filter
+	 * @return MessageFilter The negated filter
+	 */
+	public MessageFilter negate() {
+		return new Not(this);
+	}
+
+	/**
+	 * Accepts the messages whose content starts with a prefix
+	 * @param prefix The prefix
+	 * @return MessageFilter The filter
+	 */
+	public static MessageFilter startsWith(final String prefix) {
+		return new MessageFilter() {
+			@Override
+			public boolean matches(String channel, String seqId, String message) {
+				return message != null && message.startsWith(prefix);
+			}
+		};
+	}
+
+	/**
+	 * Accepts the messages whose content contains a text
+	 * @param text The text
+	 * @return MessageFilter The filter
+	 */
+	public static MessageFilter contains(final String text) {
+		return new MessageFilter() {
+			@Override
+			public boolean matches(String channel, String seqId, String message) {
+				return message != null && message.indexOf(text) >= 0;
+			}
+		};
+	}
+
+	/**
+	 * Accepts the messages received in the channels starting with a prefix,
+	 * useful when a filter is shared by several subscriptions
+	 * @param prefix The channel prefix
+	 * @return MessageFilter The filter
+	 */
+	public static MessageFilter channelStartsWith(final String prefix) {
+		return new MessageFilter() {
+			@Override
+			public boolean matches(String channel, String seqId, String message) {
+				return channel != null && channel.startsWith(prefix);
+			}
+
+			@Override
+			boolean readsMessage() {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Accepts the messages with a seqId, the messages of a buffered
+	 * subscription
+	 * @return MessageFilter The filter
+	 */
+	public static MessageFilter hasSeqId() {
+		return new MessageFilter() {
+			@Override
+			public boolean matches(String channel, String seqId, String message) {
+				return seqId != null;
+			}
+
+			@Override
+			boolean readsMessage() {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Accepts the JSON messages where a field has a value. The path names
+	 * the nested objects separated by dots, the value is compared with the
+	 * unescaped string or with the literal of a number, true, false or null
+	 * @param path The field path, EX: "order.side"
+	 * @param value The expected value
+	 * @return MessageFilter The filter
+	 */
+	public static MessageFilter field(String path, String value) {
+		return new Field(path.split("\\."), value, true);
+	}
+
+	/**
+	 * Accepts the JSON messages having a field, whatever its value
+	 * @param path The field path, EX: "order.side"
+	 * @return MessageFilter The filter
+	 */
+	public static MessageFilter hasField(String path) {
+		return new Field(path.split("\\."), null, false);
+	}
+
+	private static MessageFilter[] join(MessageFilter first, MessageFilter second, boolean all) {
+		MessageFilter[] left = parts(first, all);
+		MessageFilter[] right = parts(second, all);
+		MessageFilter[] joined = new MessageFilter[left.length + right.length];
+		System.arraycopy(left, 0, joined, 0, left.length);
+		System.arraycopy(right, 0, joined, left.length, right.length);
+		return joined;
+	}
+
+	private static boolean anyReadsMessage(MessageFilter[] filters) {
+		for (MessageFilter filter : filters) {
+			if (filter.readsMessage()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// NOTE: nested combinations of the same kind are flattened
+	private static MessageFilter[] parts(MessageFilter filter, boolean all) {
+		if (all && filter instanceof All) {
+			return ((All) filter).filters;
+		}
+		if (!all && filter instanceof Any) {
+			return ((Any) filter).filters;
+		}
+		return new MessageFilter[] { filter };
+	}
+
+	private static final class All extends MessageFilter {
+		final MessageFilter[] filters;
+
+		All(MessageFilter[] filters) {
+			this.filters = filters;
+		}
+
+		@Override
+		public boolean matches(String channel, String seqId, String message) {
+			for (MessageFilter filter : filters) {
+				if (!filter.matches(channel, seqId, message)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		boolean readsMessage() {
+			return anyReadsMessage(filters);
+		}
+	}
+
+	private static final class Any extends MessageFilter {
+		final MessageFilter[] filters;
+
+		Any(MessageFilter[] filters) {
+			this.filters = filters;
+		}
+
+		@Override
+		public boolean matches(String channel, String seqId, String message) {
+			for (MessageFilter filter : filters) {
+				if (filter.matches(channel, seqId, message)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		boolean readsMessage() {
+			return anyReadsMessage(filters);
+		}
+	}
+
+	private static final class Not extends MessageFilter {
+		private final MessageFilter filter;
+
+		Not(MessageFilter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean matches(String channel, String seqId, String message) {
+			return !filter.matches(channel, seqId, message);
+		}
+
+		@Override
+		public MessageFilter negate() {
+			return filter;
+		}
+
+		@Override
+		boolean readsMessage() {
+			return filter.readsMessage();
+		}
+	}
+
+	/**
+	 * Scans the JSON text for a field path, skipping the other values
+	 * without parsing them
+	 */
+	private static final class Field extends MessageFilter {
+		private final String[] path;
+		private final String value;
+		private final boolean compare;
+
+		Field(String[] path, String value, boolean compare) {
+			this.path = path;
+			this.value = value;
+			this.compare = compare;
+		}
+
+		@Override
+		public boolean matches(String channel, String seqId, String message) {
+			if (message == null) {
+				return false;
+			}
+			try {
+				return find(message, 0, 0);
+			} catch (IndexOutOfBoundsException e) {
+				// NOTE: truncated JSON
+				return false;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+		private boolean find(String json, int position, int depth) {
+			position = skipSpaces(json, position);
+			if (json.charAt(position) != '{') {
+				return false;
+			}
+			position = skipSpaces(json, position + 1);
+			while (json.charAt(position) == '"') {
+				int end = skipString(json, position);
+				boolean isField = equalsString(json, position, end, path[depth]);
+				position = skipSpaces(json, end);
+				if (json.charAt(position) != ':') {
+					return false;
+				}
+				position = skipSpaces(json, position + 1);
+				if (isField) {
+					if (depth + 1 < path.length) {
+						return find(json, position, depth + 1);
+					}
+					return !compare || equalsValue(json, position);
+				}
+				position = skipSpaces(json, skipValue(json, position));
+				if (json.charAt(position) != ',') {
+					return false;
+				}
+				position = skipSpaces(json, position + 1);
+			}
+			return false;
+		}
+
+		private boolean equalsValue(String json, int position) {
+			if (json.charAt(position) == '"') {
+				return value != null && equalsString(json, position, skipString(json, position), value);
+			}
+			int end = skipValue(json, position);
+			String literal = json.substring(position, end).trim();
+			return literal.equals(value == null ? "null" : value);
+		}
+
+		// NOTE: compares the content of the quoted string ending before end
+		private static boolean equalsString(String json, int start, int end, String expected) {
+			int length = expected.length();
+			int index = 0;
+			int position = start + 1;
+			while (position < end - 1) {
+				char c = json.charAt(position++);
+				if (c == '\\') {
+					char escaped = json.charAt(position++);
+					switch (escaped) {
+					case 'n':
+						c = '\n';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = '\f';
+						break;
+					case 'u':
+						c = (char) Integer.parseInt(json.substring(position, position + 4), 16);
+						position += 4;
+						break;
+					default:
+						c = escaped;
+					}
+				}
+				if (index == length || expected.charAt(index++) != c) {
+					return false;
+				}
+			}
+			return index == length;
+		}
+
+		private static int skipSpaces(String json, int position) {
+			while (Character.isWhitespace(json.charAt(position))) {
+				position++;
+			}
+			return position;
+		}
+
+		// NOTE: returns the position after the closing quote
+		private static int skipString(String json, int position) {
+			position++;
+			char c = json.charAt(position);
+			while (c != '"') {
+				position += c == '\\' ? 2 : 1;
+				c = json.charAt(position);
+			}
+			return position + 1;
+		}
+
+		private static int skipValue(String json, int position) {
+			char c = json.charAt(position);
+			if (c == '"') {
+				return skipString(json, position);
+			}
+			if (c == '{' || c == '[') {
+				int depth = 0;
+				do {
+					c = json.charAt(position);
+					if (c == '"') {
+						position = skipString(json, position);
+						continue;
+					}
+					if (c == '{' || c == '[') {
+						depth++;
+					} else if (c == '}' || c == ']') {
+						depth--;
+					}
+					position++;
+				} while (depth > 0);
+				return position;
+			}
+			while (position < json.length() && ",}] \t\r\n".indexOf(json.charAt(position)) < 0) {
+				position++;
+			}
+			return position;
+		}
+	}
+}
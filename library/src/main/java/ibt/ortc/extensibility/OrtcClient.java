@@ -8,28 +8,37 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.os.CountDownTimer;
 import android.os.IBinder;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import ibt.ortc.api.Balancer;
+import ibt.ortc.api.BalancerCache;
 import ibt.ortc.api.InvalidBalancerServerException;
+import ibt.ortc.api.OnBulkPresence;
 import ibt.ortc.api.OnDisablePresence;
 import ibt.ortc.api.OnEnablePresence;
 import ibt.ortc.api.OnPresence;
 import ibt.ortc.api.Ortc;
 import ibt.ortc.api.Pair;
+import ibt.ortc.api.PresenceCache;
 import ibt.ortc.api.Strings;
 import ibt.ortc.extensibility.exception.OrtcAlreadyConnectedException;
 import ibt.ortc.extensibility.exception.OrtcDoesNotHavePermissionException;
@@ -39,8 +48,12 @@ import ibt.ortc.extensibility.exception.OrtcInvalidCharactersException;
 import ibt.ortc.extensibility.exception.OrtcMaxLengthException;
 import ibt.ortc.extensibility.exception.OrtcNotConnectedException;
 import ibt.ortc.extensibility.exception.OrtcNotSubscribedException;
+import ibt.ortc.extensibility.exception.OrtcQueueOverflowException;
 import ibt.ortc.extensibility.exception.OrtcSubscribedException;
 
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
 /**
  * Abstract class representing an Ortc Client
  */
@@ -52,10 +65,27 @@ public abstract class OrtcClient {
 	protected static final int MAX_CHANNEL_SIZE = 100;
 	public static final int MAX_CONNECTION_METADATA_SIZE = 256;
 	protected static final int CONNECTION_TIMEOUT_DEFAULT_VALUE = 5000;
+	protected static final int PUBLISH_TIMEOUT_DEFAULT_VALUE = 5000;
+	protected static final int RESUME_WINDOW_DEFAULT_VALUE = 256;
 	private static OnRegistrationId onRegistrationId;
     private long publishTimeout;
-    protected HashMap pendingPublishMessages = new HashMap();
-    private CountDownTimer partSendInterval;
+    private final InFlightPublishes pendingPublishes = new InFlightPublishes();
+    private final AckAggregator ackAggregator = new AckAggregator(this);
+    private HashedWheelTimer.Timeout reconnectTimeout;
+    private ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private boolean resumeSubscriptions = false;
+    private int resumeWindow = RESUME_WINDOW_DEFAULT_VALUE;
+    private OutboundJournal outboundJournal;
+    private InboundMessageStore inboundStore;
+    private boolean invalidatePresenceOnAnnouncement = false;
+    private final MessageDispatcher dispatcher = new MessageDispatcher(this);
+    private final ChannelTrie<OnMessage> patternListeners = new ChannelTrie<OnMessage>();
+    // NOTE: set on the physical client of the shared clients
+    volatile SharedConnection sharedConnection;
+    private final Hashtable<Long, PublishFuture> journaledPublishes = new Hashtable<Long, PublishFuture>(11);
+    private final AtomicInteger replayGeneration = new AtomicInteger(0);
+    // NOTE: messages with this many parts or more are paced
+    private static final int PACED_PARTS = 20;
 
     // ========== Constants ==========
 
@@ -174,17 +204,24 @@ public abstract class OrtcClient {
 	protected int id;
 	protected ConnectionProtocol protocol;
 
-	protected Hashtable<String, ChannelSubscription> subscribedChannels;
+	protected final ConcurrentHashMap<String, ChannelSubscription> subscribedChannels;
 	protected Hashtable<String, String> channelsPermissions;
 
 	protected Hashtable<String, LinkedList<BufferedMessage>> multiPartMessagesBuffer;
+	// NOTE: parts still expected of the multipart messages rejected early
+	private final Hashtable<String, Integer> droppedParts;
 
 	private boolean isCluster;
+	private volatile boolean connectedSinceAttempt;
+	private volatile ServerSelector serverSelector;
 
-	protected boolean isConnected;
-	protected boolean isDisconnecting;
-	protected boolean isReconnecting;
-	protected boolean isConnecting;
+	private final AtomicReference<ConnectionState> state;
+	// NOTE: reconnected instead of connected once connected in this session
+	private volatile boolean hasConnected;
+	private volatile boolean isReconnectAttempt;
+	private volatile ClientMetrics.ReconnectCause lostCause;
+	private volatile ClientMetrics metrics;
+	private volatile LatencyTracer tracer;
 
 	protected static final int heartbeatMaxTime = 60;
 	protected static final int heartbeatMinTime = 10;
@@ -197,6 +234,14 @@ public abstract class OrtcClient {
 	protected int heartbeatTime = 15;
 	protected HeartbeatSender heartbeatSender = null;
 
+	protected static final int LIVENESS_TIMEOUT_DEFAULT_VALUE = 30;
+
+	protected int livenessTimeout = LIVENESS_TIMEOUT_DEFAULT_VALUE;
+	protected volatile long lastInbound = 0;
+	protected volatile long lastOutbound = 0;
+	private boolean adaptiveHeartbeat = false;
+	private final HeartbeatTuner heartbeatTuner = new HeartbeatTuner();
+
 	// properties for GCM
 	protected Context appContext;
 	protected String googleProjectId;
@@ -216,16 +261,16 @@ public abstract class OrtcClient {
 	 */
 	public OrtcClient() {
 		this.connectionTimeout = CONNECTION_TIMEOUT_DEFAULT_VALUE;
-		this.isConnected = false;
+		this.publishTimeout = PUBLISH_TIMEOUT_DEFAULT_VALUE;
+		this.state = new AtomicReference<ConnectionState>(ConnectionState.Disconnected);
+		this.metrics = ClientMetrics.NONE;
 		this.isCluster = false;
-		this.isDisconnecting = false;
-		this.isReconnecting = false;
-		this.isConnecting = false;
 
-		this.subscribedChannels = new Hashtable<String, ChannelSubscription>(11);
+		this.subscribedChannels = new ConcurrentHashMap<String, ChannelSubscription>(16);
 		this.channelsPermissions = new Hashtable<String, String>(11);
 		this.multiPartMessagesBuffer = new Hashtable<String, LinkedList<BufferedMessage>>(
 				11);
+		this.droppedParts = new Hashtable<String, Integer>(11);
 
 		this.appContext = null;
 		this.googleProjectId = "";
@@ -258,11 +303,11 @@ public abstract class OrtcClient {
 		/*
 		 * Sanity checks
 		 */
-		if (isConnected) {
+		if (state.get() == ConnectionState.Connected) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcAlreadyConnectedException());
 		} else if (Strings.isNullOrEmpty(clusterUrl)
-				&& Strings.isNullOrEmpty(url)) {
+				&& Strings.isNullOrEmpty(url) && serverSelector == null) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcEmptyFieldException("URL"));
 			raiseOrtcEvent(EventEnum.OnException, this,
@@ -276,7 +321,7 @@ public abstract class OrtcClient {
 		} else if (!isCluster && !Strings.ortcIsValidUrl(url)) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcInvalidCharactersException("URL"));
-		} else if (isCluster && !Strings.ortcIsValidUrl(clusterUrl)) {
+		} else if (isCluster && serverSelector == null && !Strings.ortcIsValidUrl(clusterUrl)) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcInvalidCharactersException("Cluster URL"));
 		} else if (!Strings.ortcIsValidInput(applicationKey)) {
@@ -295,7 +340,7 @@ public abstract class OrtcClient {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcMaxLengthException("Connection metadata",
 							MAX_CONNECTION_METADATA_SIZE));
-		} else if (isConnecting && !isReconnecting) {
+		} else if (!beginConnectAttempt()) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcNotConnectedException("Already trying to connect"));
 		} else {
@@ -316,9 +361,7 @@ public abstract class OrtcClient {
 				public void run() {
 					Exception e = null;
 					try {
-						if (!isReconnecting) {
-							self.isConnecting = true;
-						} else {
+						if (self.isReconnectAttempt) {
 							if(self.doFallback && self.isCluster){
 								URI t = new URI(self.clusterUrl);
 								if("http".equals(t.getScheme())){ //modify self.clusterUrl to use secure connection
@@ -330,10 +373,35 @@ public abstract class OrtcClient {
 						self.applicationKey = applicationKey;
 						self.authenticationToken = authenticationToken;
 
-						if (self.isCluster) {
-							String clusterServer = Balancer
-									.getServerFromBalancer(self.clusterUrl,
+						ServerSelector selector = self.serverSelector;
+						if (selector != null) {
+							if (self.isReconnectAttempt && !self.connectedSinceAttempt && self.url != null) {
+								// NOTE: the failed server is skipped, the selection falls
+								// back to the next server in the ranking
+								selector.reportFailure(self.url, self.applicationKey);
+							}
+							self.connectedSinceAttempt = false;
+							long start = System.currentTimeMillis();
+							self.url = Strings.treatUrl(selector.select(self.applicationKey));
+							self.metrics.onBalancerLatency(System.currentTimeMillis() - start);
+							ServerCandidate selected = selector.getLastSelection();
+							if (selected != null && selected.getClusterUrl() != null) {
+								self.clusterUrl = selected.getClusterUrl();
+							}
+							selector.start(self.applicationKey, self);
+						} else if (self.isCluster) {
+							if (self.isReconnectAttempt && !self.connectedSinceAttempt && self.url != null) {
+								// NOTE: the cached server could not be reached,
+								// ask the balancer for another one
+								BalancerCache.getInstance().markFailed(self.clusterUrl,
+										self.applicationKey, self.url);
+							}
+							self.connectedSinceAttempt = false;
+							long start = System.currentTimeMillis();
+							String clusterServer = BalancerCache.getInstance()
+									.getServer(self.clusterUrl,
 											self.applicationKey);
+							self.metrics.onBalancerLatency(System.currentTimeMillis() - start);
 							self.setUrl(clusterServer);
 							self.isCluster = true;
 						}
@@ -353,11 +421,11 @@ public abstract class OrtcClient {
 						e = ex;
 					} finally {
 						if (e != null) {
-							self.isReconnecting = true;
 							self.raiseOrtcEvent(EventEnum.OnException, self,
 									new Exception("Unable to connect"));
-							self.raiseOrtcEvent(EventEnum.OnReconnecting, self);
-							
+							if (self.onConnectionLost(ClientMetrics.ReconnectCause.ConnectFailed)) {
+								self.raiseOrtcEvent(EventEnum.OnReconnecting, self);
+							}
 						}
 					}
 				}
@@ -367,30 +435,92 @@ public abstract class OrtcClient {
 
 	protected abstract void connect();
 
+	// NOTE: only one attempt runs at a time, a reconnect starts from Reconnecting
+	boolean beginConnectAttempt() {
+		if (state.compareAndSet(ConnectionState.Disconnected, ConnectionState.Connecting)) {
+			this.isReconnectAttempt = false;
+			return true;
+		}
+		if (state.compareAndSet(ConnectionState.Reconnecting, ConnectionState.Connecting)) {
+			this.isReconnectAttempt = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the protocol implementation when the connection drops or a
+	 * connection attempt fails. Only the first call for a connection moves
+	 * the client to Reconnecting, so a single reconnect is scheduled.
+	 *
+	 * @return boolean True if the client must schedule the reconnect
+	 */
+	protected boolean onConnectionLost() {
+		return onConnectionLost(ClientMetrics.ReconnectCause.ConnectionLost);
+	}
+
+	/**
+	 * Same as {@link #onConnectionLost()}, telling the metrics why the
+	 * client reconnects
+	 *
+	 * @param cause
+	 *            Why the connection was lost
+	 * @return boolean True if the client must schedule the reconnect
+	 */
+	protected boolean onConnectionLost(ClientMetrics.ReconnectCause cause) {
+		if (state.compareAndSet(ConnectionState.Connected, ConnectionState.Reconnecting)
+				|| state.compareAndSet(ConnectionState.Connecting, ConnectionState.Reconnecting)) {
+			this.lostCause = cause;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if the running connection attempt follows a lost connection
+	 * or a failed attempt
+	 *
+	 * @return boolean True if the attempt is a reconnect
+	 */
+	protected boolean isReconnectAttempt() {
+		return isReconnectAttempt;
+	}
+
 	/**
 	 * Closes the current connection
 	 */
 	public void disconnect() {		
-		if(!isConnected){
-			if(this.isReconnecting){
-				stopReconnecting();
-				this.isConnecting = false;
-			} else {
-				raiseOrtcEvent(EventEnum.OnException,this, new OrtcNotConnectedException());
+		if (serverSelector != null) {
+			serverSelector.stop();
+		}
+		ConnectionState current = state.get();
+		if (current == ConnectionState.Reconnecting || current == ConnectionState.Connecting) {
+			// NOTE: a running attempt closes its connection once validated,
+			// the session ends now
+			if (state.compareAndSet(current, ConnectionState.Disconnected)) {
+				cancelReconnect();
+				removeServiceOrtcClient();
+				closeSession();
+				endSession(this);
 			}
+		} else if (!state.compareAndSet(ConnectionState.Connected, ConnectionState.Disconnecting)) {
+			raiseOrtcEvent(EventEnum.OnException,this, new OrtcNotConnectedException());
 		}else{
 			stopHeartBeatInterval();
-			if (appContext != null && !googleProjectId.isEmpty()
-					&& !isDisconnecting) {
-                if(this.intentService != null){
-				    this.intentService.removeServiceOrtcClient(this);
-                }
-				//this.appContext.unbindService(this.intentServiceConnection);
-			}
+			removeServiceOrtcClient();
 			this.disconnectIntern();
 		}
 	}
 
+	private void removeServiceOrtcClient() {
+		if (appContext != null && !googleProjectId.isEmpty()) {
+            if(this.intentService != null){
+			    this.intentService.removeServiceOrtcClient(this);
+            }
+			//this.appContext.unbindService(this.intentServiceConnection);
+		}
+	}
+
 	protected abstract void disconnectIntern();
 
 	private Pair<Boolean, String> channelHasPermission(String channelName,
@@ -445,10 +575,14 @@ public abstract class OrtcClient {
 	}
 
 	private Pair<Boolean, String> isSendValid(String channelName, String message) {
+		return isSendValid(channelName, message, false);
+	}
+
+	private Pair<Boolean, String> isSendValid(String channelName, String message, boolean offline) {
 		// NOTE: Sanity check for send method
 		Pair<Boolean, String> result = new Pair<Boolean, String>(true, null);
 
-		if (!isConnected) {
+		if (!getIsConnected() && !offline) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcNotConnectedException());
 			result.first = false;
@@ -470,7 +604,7 @@ public abstract class OrtcClient {
 			result.first = false;
 		}
 
-		if (result.first) {
+		if (result.first && !offline) {
 			Pair<Boolean, String> channelPermission = channelHasPermission(
 					channelName, ChannelPermission.Write);
 			result.first = channelPermission.first;
@@ -489,6 +623,11 @@ public abstract class OrtcClient {
 	 *            The content of the message to be sent
 	 */
 	public void send(String channel, String message) {
+		if (!getIsConnected() && outboundJournal != null) {
+			journalMessage(false, channel, message, 0, null);
+			return;
+		}
+
 		// CAUSE: Assignment to method parameter
 		Pair<Boolean, String> sendValidation = isSendValid(channel, message);
 
@@ -496,7 +635,7 @@ public abstract class OrtcClient {
 
 		if (sendValidation != null && sendValidation.first) {
 			try {
-				String messageId = Strings.randomString(8);
+				String messageId = newMessageId();
 				ArrayList<Pair<String, String>> messagesToSend = multiPartMessage(
 						message, messageId);
 				for (Pair<String, String> messageToSend : messagesToSend) {
@@ -523,80 +662,294 @@ public abstract class OrtcClient {
 	 */
 
     public void publish(final String channel, String message, final int ttl, OnPublishResult callback) {
-        // CAUSE: Assignment to method parameter
-        final Pair<Boolean, String> sendValidation = isSendValid(channel, message);
+        publishMessage(channel, message, ttl, callback);
+    }
+
+	/**
+	 * Publish a message to a channel and returns an handle to wait for the
+	 * server acknowledge.
+	 *
+	 * <pre>
+	 * PublishFuture result = client.publishAsync(&quot;CHANNEL&quot;, &quot;message&quot;, 0);
+	 * ...
+	 * if (result.isDone() &amp;&amp; result.getError() == null) {
+	 * 	System.out.println(result.getSeqId() + &quot; in &quot; + result.getAckLatency() + &quot; ms&quot;);
+	 * }
+	 * </pre>
+	 *
+	 * @param channel
+	 *            Channel to wich the message should be sent
+	 * @param message
+	 *            The content of the message to be sent
+	 * @param ttl
+	 *            The message expiration time in seconds (0 for maximum allowed ttl).
+	 * @return PublishFuture Completes with the message seqId or with the error
+	 *         if the publish was not successful
+	 */
+	public PublishFuture publishAsync(String channel, String message, int ttl) {
+		return publishMessage(channel, message, ttl, null);
+	}
+
+    private PublishFuture publishMessage(final String channel, String message, final int ttl, OnPublishResult callback) {
+        return publishMessage(channel, message, ttl, callback, null);
+    }
 
-        //String lMessage = message.replace("\n", "\\n");
+    // NOTE: onSent runs once every part was written or the publish stopped,
+    // inline unless the parts are paced
+    private PublishFuture publishMessage(final String channel, String message, final int ttl, OnPublishResult callback,
+            final Runnable onSent) {
+        boolean paced = false;
+        try {
+            if (!getIsConnected() && outboundJournal != null) {
+                return journalMessage(true, channel, message, ttl, callback);
+            }
+
+            // CAUSE: Assignment to method parameter
+            final Pair<Boolean, String> sendValidation = isSendValid(channel, message);
 
-        if (sendValidation != null && sendValidation.first) {
-            try {
-                final String messageId = Strings.randomString(8);
+            //String lMessage = message.replace("\n", "\\n");
 
-                final ArrayList<Pair<String, String>> messagesToSend = multiPartMessage(message, messageId);
+            if (sendValidation == null || !sendValidation.first) {
+                return PublishFuture.failed(channel, "Invalid publish, check the onException event for details");
+            }
 
-                CountDownTimer ackTimeout = new CountDownTimer(this.publishTimeout, 100) {
+            final String messageId = newMessageId();
 
-                    public void onTick(long millisUntilFinished) {
+            final ArrayList<Pair<String, String>> messagesToSend = multiPartMessage(message, messageId);
 
-                    }
+            final PublishFuture pendingPublish = new PublishFuture(messageId, channel, messagesToSend.size(), callback,
+                    dispatcher);
+
+            if (!this.pendingPublishes.add(pendingPublish)) {
+                return pendingPublish;
+            }
+
+            pendingPublish.ackTimeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pendingPublishes.fail(messageId,
+                            String.format("Message publish timeout after %s milliseconds", publishTimeout));
+                }
+            }, this.publishTimeout, this);
 
-                    public void onFinish() {
-                        if (pendingPublishMessages.containsKey(messageId)) {
-                            String err = String.format("Message publish timeout after %l seconds", publishTimeout);
-                            if (pendingPublishMessages != null && ((HashMap) pendingPublishMessages.get(messageId)).containsKey("callback")) {
-                                OnPublishResult callbackP = (OnPublishResult) ((HashMap) pendingPublishMessages.get(messageId)).get("callback");
-                                callbackP.run(err, null);
-                                pendingPublishMessages.remove(messageId);
+            if (messagesToSend.size() < PACED_PARTS) {
+                for (Pair<String, String> messageToSend : messagesToSend) {
+                    publish(channel, messageToSend.second, ttl, messageToSend.first,
+                            sendValidation.second);
+                }
+            } else {
+                // NOTE: large messages are paced, one part every 100 milliseconds
+                paced = true;
+                HashedWheelTimer.getInstance().schedule(new Runnable() {
+                    int partsSent = 0;
+
+                    @Override
+                    public void run() {
+                        if (getIsConnected() && !pendingPublish.isDone()) {
+                            Pair<String, String> messageToSend = messagesToSend.get(partsSent);
+                            publish(channel, messageToSend.second, ttl, messageToSend.first,
+                                    sendValidation.second);
+                            partsSent++;
+
+                            if (partsSent < messagesToSend.size()) {
+                                HashedWheelTimer.getInstance().schedule(this, 100, OrtcClient.this);
+                                return;
                             }
-                            pendingPublishMessages.remove(messageId);
+                        }
+                        if (onSent != null) {
+                            onSent.run();
                         }
                     }
+                }, 0, this);
+            }
+            return pendingPublish;
+        } catch (IOException e) {
+            raiseOrtcEvent(EventEnum.OnException, this, e);
+            return PublishFuture.failed(channel, e.getMessage());
+        } finally {
+            if (!paced && onSent != null) {
+                onSent.run();
+            }
+        }
+    }
 
-                }.start();
+	private PublishFuture journalMessage(boolean isPublish, String channel, String message, int ttl,
+			OnPublishResult callback) {
+		Pair<Boolean, String> sendValidation = isSendValid(channel, message, true);
+		if (sendValidation == null || !sendValidation.first) {
+			return PublishFuture.failed(channel, "Invalid publish, check the onException event for details");
+		}
 
-                Map pendingMsg = new HashMap();
-                pendingMsg.put("totalNumOfParts", messagesToSend.size());
-                pendingMsg.put("callback", callback);
-                pendingMsg.put("timeout", ackTimeout);
+		try {
+			OutboundJournal.Entry entry = outboundJournal.append(isPublish, channel, message, ttl);
+			if (entry == null) {
+				String error = String.format("Outbound journal is full (%s bytes)", outboundJournal.getMaxSize());
+				raiseOrtcEvent(EventEnum.OnException, this, new Exception(error));
+				return PublishFuture.failed(channel, error);
+			}
 
-                this.pendingPublishMessages.put(messageId, pendingMsg);
+			reportOutboundQueue(outboundJournal);
 
+			// NOTE: completes when the replayed publish is acknowledged
+			PublishFuture journaled = new PublishFuture(null, channel, 0, callback, dispatcher);
+			if (isPublish) {
+				journaledPublishes.put(entry.id, journaled);
+			}
+			return journaled;
+		} catch (IOException e) {
+			raiseOrtcEvent(EventEnum.OnException, this, e);
+			return PublishFuture.failed(channel, e.getMessage());
+		}
+	}
 
-                if (messagesToSend.size() < 20) {
-                    for (Pair<String, String> messageToSend : messagesToSend) {
-                        publish(channel, messageToSend.second, ttl, messageToSend.first,
-                                sendValidation.second);
-                    }
-                } else {
-                    partSendInterval = new CountDownTimer(messagesToSend.size() * 100, 100) {
-                        int partsSent = 0;
+	private void replayOutboundJournal() {
+		final OutboundJournal journal = this.outboundJournal;
+		if (journal == null) {
+			return;
+		}
 
-                        public void onTick(long millisUntilFinished) {
-                            int currentPart = partsSent + 1;
-                            if (isConnected) {
+		ArrayList<Long> expired = new ArrayList<Long>(1);
+		List<OutboundJournal.Entry> entries = journal.getPending(expired);
+		if (!expired.isEmpty()) {
+			reportOutboundQueue(journal);
+			String error = String.format("Message expired in the outbound journal after %s milliseconds",
+					journal.getMaxAge());
+			for (Long id : expired) {
+				PublishFuture journaled = journaledPublishes.remove(id);
+				if (journaled != null) {
+					journaled.fail(error);
+				}
+			}
+		}
 
-                                Pair<String, String> messageToSend = messagesToSend.get(currentPart);
-                                publish(channel, messageToSend.second, ttl, messageToSend.first,
-                                        sendValidation.second);
+		replayEntries(journal, entries.iterator(), replayGeneration.incrementAndGet());
+	}
 
+	// NOTE: the entries are sent one after another, a paced message resumes
+	// the replay once its last part is written. A newer replay (after a
+	// reconnect) stops the previous one
+	private void replayEntries(final OutboundJournal journal,
+			final Iterator<OutboundJournal.Entry> entries, final int generation) {
+		while (entries.hasNext()) {
+			if (!getIsConnected() || generation != replayGeneration.get()) {
+				return;
+			}
 
-                                partsSent++;
-                            }
-                        }
+			final OutboundJournal.Entry entry = entries.next();
+			if (!entry.publish) {
+				send(entry.channel, entry.message);
+				journal.remove(entry.id);
+				reportOutboundQueue(journal);
+				continue;
+			}
 
-                        public void onFinish() {
+			// NOTE: whichever of the replay and of the paced publish comes
+			// second goes on with the next entry
+			final AtomicInteger handOff = new AtomicInteger(0);
+			PublishFuture published = publishMessage(entry.channel, entry.message, entry.ttl,
+					new OnPublishResult() {
+						@Override
+						public void run(String error, String seqId) {
+							if (error == null) {
+								journal.remove(entry.id);
+								reportOutboundQueue(journal);
+								PublishFuture journaled = journaledPublishes.remove(entry.id);
+								if (journaled != null) {
+									journaled.complete(seqId);
+								}
+							}
+						}
+					}, new Runnable() {
+						@Override
+						public void run() {
+							if (handOff.getAndIncrement() == 1) {
+								replayEntries(journal, entries, generation);
+							}
+						}
+					});
+
+			if (published.isDone() && published.getMessageId() == null) {
+				// NOTE: rejected before being sent (for instance without
+				// permission), retrying would fail the same way
+				journal.remove(entry.id);
+				reportOutboundQueue(journal);
+				PublishFuture journaled = journaledPublishes.remove(entry.id);
+				if (journaled != null) {
+					journaled.fail(published.getError());
+				}
+			}
 
-                        }
-                    }.start();
-                }
-            }catch(IOException e){
-                raiseOrtcEvent(EventEnum.OnException, this, e);
-            }
-        }
-    }
+			if (handOff.getAndIncrement() == 0) {
+				return;
+			}
+		}
+	}
+
+	private void failJournaledPublishes(String error) {
+		ArrayList<Long> ids = new ArrayList<Long>(journaledPublishes.keySet());
+		for (Long id : ids) {
+			PublishFuture journaled = journaledPublishes.remove(id);
+			if (journaled != null) {
+				journaled.fail(error);
+			}
+		}
+	}
+
+	private void reportOutboundQueue(OutboundJournal journal) {
+		ClientMetrics lMetrics = metrics;
+		if (lMetrics != ClientMetrics.NONE) {
+			int depth = journal == null ? 0 : journal.getPendingCount();
+			lMetrics.onOutboundQueue(depth + getSendQueueDepth());
+		}
+	}
+
+	/**
+	 * Called by the protocol implementation when a frame was queued, reports
+	 * the messages waiting in the outbound journal and in the send queue
+	 */
+	protected void reportOutboundQueue() {
+		reportOutboundQueue(outboundJournal);
+	}
+
+	/**
+	 * Gets the number of frames waiting to be written to the socket, the
+	 * protocol implementations with a send queue override it
+	 *
+	 * @return int Number of frames
+	 */
+	protected int getSendQueueDepth() {
+		return 0;
+	}
+
+	/**
+	 * Called by the protocol implementation when the server acknowledges a
+	 * published message. Acks of publishes that already timed out are ignored.
+	 *
+	 * @param messageId
+	 *            The published message identifier
+	 * @param seqId
+	 *            The sequence identifier assigned by the server
+	 */
+	protected void onPublishAck(String messageId, String seqId) {
+		pendingPublishes.acknowledge(messageId, seqId);
+		LatencyTracer lTracer = tracer;
+		if (lTracer != null) {
+			lTracer.onAck(messageId, System.currentTimeMillis());
+		}
+		SharedConnection lShared = sharedConnection;
+		if (lShared != null) {
+			lShared.onPublishAck(messageId, seqId);
+		}
+	}
 
 	protected abstract void publish(String channel, String message, int ttl, String messagePartIdentifier, String permission);
 
+	// NOTE: stamped before the split, the traced latency includes it
+	private String newMessageId() {
+		return tracer == null ? Strings.randomString(8)
+				: LatencyTracer.newMessageId(System.currentTimeMillis());
+	}
+
 
 	private ArrayList<Pair<String, String>> multiPartMessage(String message,
 			String messageId) throws IOException {
@@ -647,7 +1000,7 @@ public abstract class OrtcClient {
 		// CAUSE: Unused assignment
 		Exception error;
 
-		if (!isConnected) {
+		if (!getIsConnected()) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcNotConnectedException());
 			result.first = false;
@@ -741,7 +1094,12 @@ public abstract class OrtcClient {
      * subscribeOnReconnected, // optional, default = true,
      * withNotifications (Bool), // optional, default = false, use push notifications as in subscribeWithNotifications
      * filter, // optional, default = "", the subscription filter as in subscribeWithFilter
-     * subscriberId // optional, default = "", the subscriberId as in subscribeWithBuffer
+     * subscriberId, // optional, default = "", the subscriberId as in subscribeWithBuffer
+     * queueCapacity (Integer), // optional, default = 0, the maximum number of messages waiting for the handler
+     * overflowPolicy (OverflowPolicy), // optional, default = Block, what happens to a message received while the queue is full
+     * conflate (Bool), // optional, default = false, keep only the newest pending message as in subscribeConflated
+     * conflationKey (ConflationKey), // optional, default = per channel, the key of the conflated messages
+     * messageFilter (MessageFilter) // optional, default = none, the local filter as in setMessageFilter
      * }".
      * @param onMessage
      *          The callback called when a message arrives at the channel, data is provided in a dictionary.
@@ -754,6 +1112,10 @@ public abstract class OrtcClient {
             Boolean withFilter = false;
             String filter = null;
             String subscriberId = null;
+            Integer queueCapacity = 0;
+            OverflowPolicy overflowPolicy = null;
+            ConflationKey conflationKey = null;
+            MessageFilter messageFilter = null;
 
             if (options.containsKey("channel")){
                 channel = (String) options.get("channel");
@@ -770,6 +1132,21 @@ public abstract class OrtcClient {
             if (options.containsKey("subscriberId")){
                 subscriberId = (String) options.get("subscriberId");
             }
+            if (options.containsKey("queueCapacity")){
+                queueCapacity = (Integer) options.get("queueCapacity");
+            }
+            if (options.containsKey("overflowPolicy")){
+                overflowPolicy = (OverflowPolicy) options.get("overflowPolicy");
+            }
+            if (options.containsKey("conflate") && (Boolean) options.get("conflate")){
+                conflationKey = ConflationKey.PER_CHANNEL;
+            }
+            if (options.containsKey("conflationKey")){
+                conflationKey = (ConflationKey) options.get("conflationKey");
+            }
+            if (options.containsKey("messageFilter")){
+                messageFilter = (MessageFilter) options.get("messageFilter");
+            }
 
             ChannelSubscription subscribedChannel = subscribedChannels.get(channel);
             Pair<Boolean, String> subscribeValidation = isSubscribeValid(channel,
@@ -788,10 +1165,14 @@ public abstract class OrtcClient {
                 }
                 subscribedChannel = new ChannelSubscription(subscribeOnReconnected,
                         onMessage, withNotifications, true, subscriberId, withFilter, filter);
+                subscribedChannel.setInboundQueue(queueCapacity, overflowPolicy);
+                subscribedChannel.setConflationKey(conflationKey);
+                subscribedChannel.setMessageFilter(messageFilter);
                 subscribedChannel.setSubscribing(true);
                 subscribedChannels.put(channel, subscribedChannel);
 
-                this._subscribeWithOptions(channel,subscribeValidation.second, subscribeOnReconnected, withNotifications, filter, subscriberId);
+                this._subscribeWithOptions(channel,subscribeValidation.second, subscribeOnReconnected, withNotifications, filter, subscriberId,
+                        subscriberId == null ? null : getResumeSeqId(channel, subscribedChannel));
             }
         }else{
             raiseOrtcEvent(
@@ -820,7 +1201,7 @@ public abstract class OrtcClient {
 	public void subscribeWithFilter(String channel, boolean subscribeOnReconnect,
 						  String filter, OnMessageWithFilter onMessage) {
 		resolveSubscriptionChannels(channel, subscribeOnReconnect, onMessage,
-				false, true, filter);
+				false, true, filter, 0, null, null);
 	}
 
 	/**
@@ -839,12 +1220,68 @@ public abstract class OrtcClient {
 	public void subscribe(String channel, boolean subscribeOnReconnect,
 			OnMessage onMessage) {
 		resolveSubscriptionChannels(channel, subscribeOnReconnect, onMessage,
-				false, false, "");
+				false, false, "", 0, null, null);
+	}
+
+	/**
+	 * Subscribe the specified channel in order to receive messages in that
+	 * channel, at most queueCapacity received messages wait for the handler
+	 * when the callbacks do not run inline (see setDispatchExecutor)
+	 * 
+	 * <pre>
+	 * client.subscribe(&quot;ticker&quot;, true, 1000, OverflowPolicy.DropOldest, onMessage);
+	 * </pre>
+	 * 
+	 * @param channel
+	 *            Channel to be subscribed
+	 * @param subscribeOnReconnect
+	 *            Indicates if the channel should be subscribe if the event on
+	 *            reconnected is fired
+	 * @param queueCapacity
+	 *            Maximum number of messages waiting for the handler, 0 for
+	 *            an unbounded queue
+	 * @param overflowPolicy
+	 *            What happens to a message received while the queue is full
+	 * @param onMessage
+	 *            Event handler that will be called when a message will be
+	 *            received on the subscribed channel
+	 */
+	public void subscribe(String channel, boolean subscribeOnReconnect,
+			int queueCapacity, OverflowPolicy overflowPolicy, OnMessage onMessage) {
+		resolveSubscriptionChannels(channel, subscribeOnReconnect, onMessage,
+				false, false, "", queueCapacity, overflowPolicy, null);
+	}
+
+	/**
+	 * Subscribe the specified channel in order to receive only the newest
+	 * message while the handler is busy, a pending message is replaced by a
+	 * newer message with the same key. An idle handler receives every
+	 * message. Conflation only applies when the callbacks do not run inline
+	 * (see setDispatchExecutor)
+	 * 
+	 * @param channel
+	 *            Channel to be subscribed
+	 * @param subscribeOnReconnect
+	 *            Indicates if the channel should be subscribe if the event on
+	 *            reconnected is fired
+	 * @param conflationKey
+	 *            Extracts the key of the messages, null to keep only the
+	 *            newest message of the channel
+	 * @param onMessage
+	 *            Event handler that will be called when a message will be
+	 *            received on the subscribed channel
+	 */
+	public void subscribeConflated(String channel, boolean subscribeOnReconnect,
+			ConflationKey conflationKey, OnMessage onMessage) {
+		resolveSubscriptionChannels(channel, subscribeOnReconnect, onMessage,
+				false, false, "", 0, null,
+				conflationKey == null ? ConflationKey.PER_CHANNEL : conflationKey);
 	}
 
 	private <T> void resolveSubscriptionChannels(String channel,
 			boolean subscribeOnReconnect, T onMessage,
-			boolean withNotification, boolean withFilter, String filter) {
+			boolean withNotification, boolean withFilter, String filter,
+			int queueCapacity, OverflowPolicy overflowPolicy, ConflationKey conflationKey) {
 		ChannelSubscription subscribedChannel = subscribedChannels.get(channel);
 		Pair<Boolean, String> subscribeValidation = isSubscribeValid(channel,
 				subscribedChannel, withNotification);
@@ -862,6 +1299,8 @@ public abstract class OrtcClient {
 			}
 			subscribedChannel = new ChannelSubscription(subscribeOnReconnect,
 					onMessage, withNotification, false, null, withFilter, filter);
+			subscribedChannel.setInboundQueue(queueCapacity, overflowPolicy);
+			subscribedChannel.setConflationKey(conflationKey);
 			subscribedChannel.setSubscribing(true);
 			subscribedChannels.put(channel, subscribedChannel);
 
@@ -872,8 +1311,49 @@ public abstract class OrtcClient {
     protected abstract void _subscribeWithOptions(String channel, String permission, boolean subscribeOnReconnected, boolean withNotifications,
                                                   String filter,String subscriberId);
 
+    /**
+     * Subscribes with options resuming after the given seqId, the messages
+     * published since then are replayed by the server. Protocols without
+     * resume support subscribe from the current message.
+     */
+    protected void _subscribeWithOptions(String channel, String permission, boolean subscribeOnReconnected, boolean withNotifications,
+                                         String filter, String subscriberId, String fromSeqId) {
+        _subscribeWithOptions(channel, permission, subscribeOnReconnected, withNotifications, filter, subscriberId);
+    }
+
     protected abstract void sendAck(String channel, String messageId, String seqId, String asAllParts);
 
+	/**
+	 * Sends the acks of a channel in a single frame. Protocols without batched
+	 * acks send them one by one.
+	 */
+	protected void sendAcks(String channel, List<MessageAck> acks) {
+		for (MessageAck ack : acks) {
+			sendAck(channel, ack.getMessageId(), ack.getSeqId(),
+					ack.isAllParts() ? "1" : "0");
+		}
+	}
+
+	/**
+	 * Acknowledges a message and every message received before it in the
+	 * channel. Protocols without cumulative acks only acknowledge the message.
+	 */
+	protected void sendCumulativeAck(String channel, MessageAck ack) {
+		sendAck(channel, ack.getMessageId(), ack.getSeqId(), "1");
+	}
+
+	/**
+	 * Called by the protocol implementation when the server rejects batched or
+	 * cumulative acks, the following acks are sent one by one
+	 */
+	protected void fallbackToPerMessageAcks() {
+		if (ackAggregator.getMode() != AckMode.PerMessage) {
+			ackAggregator.fallback();
+			raiseOrtcEvent(EventEnum.OnException, this, new Exception(
+					"Server does not support the ack mode, using per message acks"));
+		}
+	}
+
 	protected abstract void subscribe(String channel, String permission,
 			boolean withNotification, boolean withFilter, String filter);
 
@@ -951,14 +1431,14 @@ public abstract class OrtcClient {
 							"You have to provide a your Google Project ID to use the GCM notifications."));
 			return;
 		}
-		resolveSubscriptionChannels(channel, subscribeOnReconnect, onMessage, true, false, "");
+		resolveSubscriptionChannels(channel, subscribeOnReconnect, onMessage, true, false, "", 0, null, null);
 	}
 
 	private boolean isUnsubscribeValid(String channelName,
 			ChannelSubscription channel) {
 		boolean result = true;
 
-		if (!isConnected) {
+		if (!getIsConnected()) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcNotConnectedException());
 			result = false;
@@ -1003,9 +1483,30 @@ public abstract class OrtcClient {
 	protected abstract void unsubscribe(String channel, boolean isValid,
 			boolean isWithNotification);
 
+	/**
+	 * Stops reconnecting, the connection being closed is not reconnected
+	 */
 	protected void stopReconnecting() {
-		this.isDisconnecting = false;
-		this.isReconnecting = false;
+		ConnectionState current = state.get();
+		while (current != ConnectionState.Disconnected && current != ConnectionState.Disconnecting
+				&& !state.compareAndSet(current, current == ConnectionState.Reconnecting
+						? ConnectionState.Disconnected : ConnectionState.Disconnecting)) {
+			current = state.get();
+		}
+		cancelReconnect();
+		if (current == ConnectionState.Reconnecting) {
+			// NOTE: no connection is left to close
+			closeSession();
+			endSession(this);
+		}
+	}
+
+	private void cancelReconnect() {
+		this.reconnectPolicy.reset();
+		HashedWheelTimer.Timeout lReconnect = this.reconnectTimeout;
+		if (lReconnect != null) {
+			lReconnect.cancel();
+		}
 	}
 
 	protected void cancelSubscription(String channel) {
@@ -1048,7 +1549,7 @@ public abstract class OrtcClient {
 	 */
 	public void presence(String channel, OnPresence callback)
 			throws OrtcNotConnectedException {
-		if (!this.isConnected) {
+		if (!getIsConnected()) {
 			throw new OrtcNotConnectedException();
 		} else {
 			String presenceUrl = this.isCluster ? this.clusterUrl : this.url;
@@ -1058,6 +1559,29 @@ public abstract class OrtcClient {
 		}
 	}
 
+	/**
+	 * Gets the subscriptions of several channels in one call, see
+	 * {@link Ortc#presence(String, Boolean, String, String, Collection, OnBulkPresence)}
+	 * 
+	 * @param channels
+	 *            Channels with presence data active.
+	 * @param callback
+	 *            Callback with the presence of each channel and the error of
+	 *            each channel that failed.
+	 * @throws OrtcNotConnectedException
+	 */
+	public void presence(Collection<String> channels, OnBulkPresence callback)
+			throws OrtcNotConnectedException {
+		if (!getIsConnected()) {
+			throw new OrtcNotConnectedException();
+		} else {
+			String presenceUrl = this.isCluster ? this.clusterUrl : this.url;
+
+			Ortc.presence(presenceUrl, this.isCluster, this.applicationKey,
+					this.authenticationToken, channels, callback);
+		}
+	}
+
 	/**
 	 * Enables presence for the specified channel with first 100 unique metadata
 	 * if metadata is set to true.
@@ -1089,7 +1613,7 @@ public abstract class OrtcClient {
 	public void enablePresence(String privateKey, String channel,
 			Boolean metadata, OnEnablePresence callback)
 			throws OrtcNotConnectedException {
-		if (!this.isConnected) {
+		if (!getIsConnected()) {
 			throw new OrtcNotConnectedException();
 		} else {
 			String presenceUrl = this.isCluster ? this.clusterUrl : this.url;
@@ -1127,7 +1651,7 @@ public abstract class OrtcClient {
 	 */
 	public void disablePresence(String privateKey, String channel,
 			OnDisablePresence callback) throws OrtcNotConnectedException {
-		if (!this.isConnected) {
+		if (!getIsConnected()) {
 			throw new OrtcNotConnectedException();
 		} else {
 			String presenceUrl = this.isCluster ? this.clusterUrl : this.url;
@@ -1152,7 +1676,7 @@ public abstract class OrtcClient {
 		/*
 		 * Sanity checks
 		 */
-		if (!isConnected) {
+		if (!getIsConnected()) {
 			raiseOrtcEvent(EventEnum.OnException, this,
 					new OrtcNotConnectedException());
 		} else if (Strings.isNullOrEmpty(channel)) {
@@ -1251,6 +1775,47 @@ public abstract class OrtcClient {
 		this.url = Strings.treatUrl(url);
 	}
 
+	/**
+	 * Sets several cluster gateway urls, the client connects to the server
+	 * with the lowest latency and falls back to the others when it fails
+	 * 
+	 * @param clusterUrls
+	 *            Ortc cluster gateway urls
+	 */
+	public void setClusterUrls(String... clusterUrls) {
+		setServerSelector(new ServerSelector(clusterUrls));
+	}
+
+	/**
+	 * Gets the selector choosing the server among several clusters
+	 * 
+	 * @return ServerSelector The selector or null if a single url is used
+	 */
+	public ServerSelector getServerSelector() {
+		return this.serverSelector;
+	}
+
+	/**
+	 * Sets the selector choosing the server among several clusters or
+	 * servers, the selection and the measured latencies are available from
+	 * {@link ServerSelector#getRanking()}
+	 * 
+	 * @param serverSelector
+	 *            The selector, null to use the cluster or server url
+	 */
+	public void setServerSelector(ServerSelector serverSelector) {
+		if (this.serverSelector != null) {
+			this.serverSelector.stop();
+		}
+		this.serverSelector = serverSelector;
+		if (serverSelector != null) {
+			this.isCluster = true;
+			if (!serverSelector.getClusterUrls().isEmpty()) {
+				this.clusterUrl = serverSelector.getClusterUrls().get(0);
+			}
+		}
+	}
+
 	/**
 	 * Gets the connection timeout before trying a new reconnection attempt
 	 * 
@@ -1261,7 +1826,8 @@ public abstract class OrtcClient {
 	}
 
 	/**
-	 * Sets the connection timeout before trying a new reconnection attempt
+	 * Sets the connection timeout before trying a new reconnection attempt.
+	 * It is the base delay of the reconnect policy backoff.
 	 * 
 	 * @param connectionTimeout
 	 *            Reconnect connection timeout
@@ -1271,58 +1837,701 @@ public abstract class OrtcClient {
 	}
 
 	/**
-	 * Gets Ortc client unique identifier
+	 * Gets if the subscriptions with a seqId resume from the last delivered
+	 * message after a reconnect
 	 * 
-	 * @return int Ortc client unique identifier
+	 * @return boolean True if the resume mode is active
 	 */
-	public int getId() {
-		return this.id;
+	public boolean getResumeSubscriptions() {
+		return this.resumeSubscriptions;
 	}
 
 	/**
-	 * Sets Ortc client unique identifier
+	 * Sets the resume mode. When active, the subscriptions with a seqId
+	 * (subscribeWithBuffer and subscribeWithOptions with a subscriberId)
+	 * resubscribe after a reconnect from the last delivered seqId, so the
+	 * messages published during the outage are replayed instead of lost, and
+	 * the session id is kept across reconnects. Replayed messages already
+	 * delivered are dropped while their seqId is within the resume window.
 	 * 
-	 * @param id
-	 *            Ortc client unique identifier
+	 * @param resumeSubscriptions
+	 *            True to activate the resume mode (default false)
 	 */
-	public void setId(int id) {
-		this.id = id;
+	public void setResumeSubscriptions(boolean resumeSubscriptions) {
+		this.resumeSubscriptions = resumeSubscriptions;
 	}
 
 	/**
-	 * Indicates if the ortc client is connected
+	 * Gets how many delivered seqIds each subscription remembers to drop the
+	 * replayed duplicates
 	 * 
-	 * @return boolean True if is connected otherwise false
+	 * @return int Number of seqIds per subscription
 	 */
-	public boolean getIsConnected() {
-		return this.isConnected;
+	public int getResumeWindow() {
+		return this.resumeWindow;
 	}
 
 	/**
-	 * Passing your application context. Not necessary if you are not going to
-	 * use ORTC with Google Cloud Messaging.
+	 * Sets how many delivered seqIds each subscription remembers to drop the
+	 * replayed duplicates
 	 * 
-	 * @param context
-	 *            Your application context (can be obtained from your activity
-	 *            instance by 'getApplicationContext()')
+	 * @param resumeWindow
+	 *            Number of seqIds per subscription (default 256)
 	 */
-	public void setApplicationContext(Context context) {
-		this.appContext = context;
+	public void setResumeWindow(int resumeWindow) {
+		if (resumeWindow < 1) {
+			raiseOrtcEvent(EventEnum.OnException, this, new Exception(
+					"Invalid resume window " + resumeWindow));
+		} else {
+			this.resumeWindow = resumeWindow;
+		}
+	}
+
+	// NOTE: the store keeps the watermark of the subscriptions made before
+	// the process restarted
+	private String getResumeSeqId(String channel, ChannelSubscription subscription) {
+		if (!resumeSubscriptions) {
+			return null;
+		}
+		String seqId = subscription.getLastSeqId();
+		InboundMessageStore lStore = this.inboundStore;
+		if (seqId == null && lStore != null) {
+			seqId = lStore.getLastSeqId(channel);
+		}
+		return seqId;
 	}
 
 	/**
-	 * Sets the Google Project ID. Not necessary if you are not going to use
-	 * ORTC with Google Cloud Messaging.
+	 * Gets the store of the received messages
 	 * 
-	 * @param googleProjectId
-	 *            Project Id of your Google project
+	 * @return InboundMessageStore The store or null if it is not enabled
 	 */
-	public void setGoogleProjectId(String googleProjectId) {
-		this.googleProjectId = googleProjectId;
+	public InboundMessageStore getInboundMessageStore() {
+		return this.inboundStore;
 	}
 
 	/**
-	 * Sets the Registration ID in GCM. Not necessary if you are not going to use
+	 * Enables the inbound message store. The messages received with a
+	 * numeric seqId (subscribeWithBuffer) are kept on the device and can be
+	 * read with {@link InboundMessageStore#history(String, long, int)}. In
+	 * resume mode the subscriptions resume from the last stored seqId, also
+	 * after the process restarts.
+	 * 
+	 * <pre>
+	 * client.setInboundMessageStore(new File(context.getFilesDir(), &quot;ortc-inbound&quot;));
+	 * List&lt;StoredMessage&gt; messages = client.getInboundMessageStore().history(&quot;CHANNEL&quot;, -1, 50);
+	 * </pre>
+	 * 
+	 * @param directory
+	 *            Directory of the store segments, null to disable the store
+	 */
+	public void setInboundMessageStore(File directory) {
+		if (this.inboundStore != null) {
+			this.inboundStore.close();
+			this.inboundStore = null;
+		}
+		if (directory != null) {
+			try {
+				this.inboundStore = InboundMessageStore.open(directory, this);
+			} catch (IOException e) {
+				raiseOrtcEvent(EventEnum.OnException, this, e);
+			}
+		}
+	}
+
+	// NOTE: a client joining or leaving a channel changes its presence
+	private void invalidatePresence(String channel, String message) {
+		int domainChannelCharacterIndex = channel.indexOf(':');
+		String announcementChannel = domainChannelCharacterIndex > 0 ? channel
+				.substring(0, domainChannelCharacterIndex) : channel;
+		if (!AnnouncementChannels.ortcClientSubscribed.name().equals(announcementChannel)
+				&& !AnnouncementChannels.ortcClientUnsubscribed.name().equals(announcementChannel)) {
+			return;
+		}
+		Object json = JSONValue.parse(message);
+		if (json instanceof JSONObject) {
+			Object presenceChannel = ((JSONObject) json).get("ch");
+			if (presenceChannel instanceof String) {
+				PresenceCache.getInstance().invalidate(this.applicationKey,
+						(String) presenceChannel);
+			}
+		}
+	}
+
+	/**
+	 * Gets if the cached presence of a channel is invalidated when a client
+	 * subscribes or unsubscribes it
+	 * 
+	 * @return boolean True if the announcements invalidate the presence cache
+	 */
+	public boolean getInvalidatePresenceOnAnnouncement() {
+		return this.invalidatePresenceOnAnnouncement;
+	}
+
+	/**
+	 * Sets if the cached presence of a channel is invalidated when the
+	 * ortcClientSubscribed and ortcClientUnsubscribed announcements are
+	 * received, the client must be subscribed to the announcement channels
+	 * 
+	 * @param invalidatePresenceOnAnnouncement
+	 *            True to invalidate the presence cache (default false)
+	 */
+	public void setInvalidatePresenceOnAnnouncement(boolean invalidatePresenceOnAnnouncement) {
+		this.invalidatePresenceOnAnnouncement = invalidatePresenceOnAnnouncement;
+	}
+
+	/**
+	 * Gets the executor running the callbacks
+	 * 
+	 * @return Executor The executor given by the application or null if the
+	 *         callbacks run inline or on the built-in threads
+	 */
+	public Executor getDispatchExecutor() {
+		return dispatcher.getExecutor();
+	}
+
+	/**
+	 * Sets the executor running the callbacks instead of the thread reading
+	 * the socket, so a slow handler does not delay the other channels nor the
+	 * heartbeat. The callbacks of a channel run one at a time and in order,
+	 * the connection events (connected, disconnected, exception, reconnecting
+	 * and reconnected) run in order on their own lane.
+	 * 
+	 * <pre>
+	 * client.setDispatchExecutor(Executors.newFixedThreadPool(4));
+	 * </pre>
+	 * 
+	 * @param executor
+	 *            The executor, null to run the callbacks inline (default)
+	 */
+	public void setDispatchExecutor(Executor executor) {
+		dispatcher.setExecutor(executor);
+	}
+
+	/**
+	 * Gets the number of built-in threads running the callbacks
+	 * 
+	 * @return int Number of threads, 0 if the callbacks run inline or on the
+	 *         executor given by the application
+	 */
+	public int getDispatchThreads() {
+		return dispatcher.getThreads();
+	}
+
+	/**
+	 * Runs the callbacks on built-in threads, each channel always on the same
+	 * thread so its callbacks keep their order
+	 * 
+	 * @param threads
+	 *            Number of threads, 0 to run the callbacks inline (default 0)
+	 */
+	public void setDispatchThreads(int threads) {
+		if (threads < 0) {
+			raiseOrtcEvent(EventEnum.OnException, this, new Exception(
+					"Invalid dispatch threads " + threads));
+		} else {
+			dispatcher.setThreads(threads);
+		}
+	}
+
+	/**
+	 * Gets the number of callbacks of a channel waiting to run
+	 * 
+	 * @param channel
+	 *            Channel name, null for the connection events
+	 * @return int Number of pending callbacks
+	 */
+	public int getPendingCallbacks(String channel) {
+		return dispatcher.getPending(channel);
+	}
+
+	/**
+	 * Gets the number of received messages of a channel waiting for the
+	 * handler, bounded by the queue capacity of the subscription
+	 * 
+	 * @param channel
+	 *            Channel name
+	 * @return int Queue depth
+	 */
+	public int getQueueDepth(String channel) {
+		return dispatcher.getQueued(channel);
+	}
+
+	/**
+	 * Gets the number of received messages of a channel dropped because its
+	 * inbound queue was full
+	 * 
+	 * @param channel
+	 *            Channel name
+	 * @return long Number of dropped messages, 0 if the channel is not
+	 *         subscribed
+	 */
+	public long getDroppedMessages(String channel) {
+		ChannelSubscription subscription = subscribedChannels.get(channel);
+		return subscription == null ? 0 : subscription.getDroppedMessages();
+	}
+
+	/**
+	 * Gets the number of received messages of a conflated channel replaced
+	 * by a newer message before the handler ran
+	 * 
+	 * @param channel
+	 *            Channel name
+	 * @return long Number of conflated messages, 0 if the channel is not
+	 *         subscribed
+	 */
+	public long getConflatedMessages(String channel) {
+		ChannelSubscription subscription = subscribedChannels.get(channel);
+		return subscription == null ? 0 : subscription.getConflatedMessages();
+	}
+
+	/**
+	 * Filters locally the messages received in a subscribed channel, in
+	 * addition to the filter of the server (see subscribeWithFilter). The
+	 * filter runs before the message is queued for the handler, a rejected
+	 * message is still acknowledged.
+	 * 
+	 * <pre>
+	 * client.subscribe(&quot;orders&quot;, true, onMessage);
+	 * client.setMessageFilter(&quot;orders&quot;, MessageFilter.field(&quot;side&quot;, &quot;buy&quot;));
+	 * </pre>
+	 * 
+	 * @param channel
+	 *            Channel name, subscribed or being subscribed
+	 * @param messageFilter
+	 *            The filter, null to deliver every message
+	 */
+	public void setMessageFilter(String channel, MessageFilter messageFilter) {
+		ChannelSubscription subscription = subscribedChannels.get(channel);
+		if (subscription == null) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcNotSubscribedException(channel));
+		} else {
+			subscription.setMessageFilter(messageFilter);
+		}
+	}
+
+	/**
+	 * Gets the number of received messages of a channel rejected by its
+	 * local filter
+	 * 
+	 * @param channel
+	 *            Channel name
+	 * @return long Number of rejected messages, 0 if the channel is not
+	 *         subscribed
+	 */
+	public long getRejectedMessages(String channel) {
+		ChannelSubscription subscription = subscribedChannels.get(channel);
+		return subscription == null ? 0 : subscription.getRejectedMessages();
+	}
+
+	/**
+	 * Adds a local listener of the messages received in every subscribed
+	 * channel matching a pattern, along with the handler of the
+	 * subscription. The pattern is a channel name or ends with the '*'
+	 * segment as in the permissions, "orders:*" matches "orders:1" and
+	 * "orders:1:lines". The channels are still subscribed one by one.
+	 * 
+	 * <pre>
+	 * client.addPatternListener(&quot;room:42:*&quot;, new OnMessage() {
+	 * 	public void run(OrtcClient sender, String channel, String message) {
+	 * 		Log.i(TAG, channel + &quot;: &quot; + message);
+	 * 	}
+	 * });
+	 * </pre>
+	 * 
+	 * @param pattern
+	 *            The channel pattern
+	 * @param onMessage
+	 *            Event handler called for every message received in a
+	 *            matching channel, in order with the subscription handler
+	 */
+	public void addPatternListener(String pattern, OnMessage onMessage) {
+		if (!ChannelTrie.isValidPattern(pattern)) {
+			raiseOrtcEvent(EventEnum.OnException, this, new Exception(
+					String.format("Invalid channel pattern %s", pattern)));
+		} else if (onMessage == null) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcEmptyFieldException("onMessage"));
+		} else {
+			patternListeners.add(pattern, onMessage);
+		}
+	}
+
+	/**
+	 * Removes a local listener added with addPatternListener
+	 * 
+	 * @param pattern
+	 *            The channel pattern
+	 * @param onMessage
+	 *            The event handler
+	 * @return boolean True if the listener was removed
+	 */
+	public boolean removePatternListener(String pattern, OnMessage onMessage) {
+		return ChannelTrie.isValidPattern(pattern) && patternListeners.remove(pattern, onMessage);
+	}
+
+	/**
+	 * Gets the number of local pattern listeners
+	 * 
+	 * @return int Number of listeners
+	 */
+	public int getPatternListenersCount() {
+		return patternListeners.size();
+	}
+
+	/**
+	 * Gets the seqId of the last message delivered in a channel, the
+	 * subscription resumes from it after a reconnect
+	 * 
+	 * @param channel
+	 *            Channel name
+	 * @return String The seqId or null if the channel is not subscribed or no
+	 *         message with a seqId was delivered
+	 */
+	public String getLastSeqId(String channel) {
+		ChannelSubscription subscription = channel == null ? null : subscribedChannels.get(channel);
+		return subscription == null ? null : subscription.getLastSeqId();
+	}
+
+	/**
+	 * Gets the journal of the messages sent while not connected
+	 * 
+	 * @return OutboundJournal The journal or null if it is not enabled
+	 */
+	public OutboundJournal getOutboundJournal() {
+		return this.outboundJournal;
+	}
+
+	/**
+	 * Enables the outbound journal. While the client is not connected the
+	 * messages sent or published are appended to the journal file instead of
+	 * being rejected, and they are sent in order, through the normal publish
+	 * path, when the client connects or reconnects. Messages left in the file
+	 * by a previous run are sent too.
+	 * 
+	 * <pre>
+	 * client.setOutboundJournal(new File(context.getFilesDir(), &quot;ortc-outbound&quot;));
+	 * </pre>
+	 * 
+	 * @param file
+	 *            The journal file, null to disable the journal
+	 */
+	public void setOutboundJournal(File file) {
+		if (this.outboundJournal != null) {
+			this.outboundJournal.close();
+			this.outboundJournal = null;
+			// NOTE: the messages stay in the old file, their handles can not
+			// complete anymore
+			failJournaledPublishes("Outbound journal was replaced before the message was sent");
+		}
+		if (file != null) {
+			try {
+				this.outboundJournal = OutboundJournal.open(file, this);
+			} catch (IOException e) {
+				raiseOrtcEvent(EventEnum.OnException, this, e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the policy deciding the delay between reconnect attempts, it also
+	 * holds the reconnect counters and the time to reconnect histogram
+	 * 
+	 * @return ReconnectPolicy The reconnect policy
+	 */
+	public ReconnectPolicy getReconnectPolicy() {
+		return this.reconnectPolicy;
+	}
+
+	/**
+	 * Sets the policy deciding the delay between reconnect attempts
+	 * 
+	 * @param reconnectPolicy
+	 *            The reconnect policy
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		if (reconnectPolicy == null) {
+			raiseOrtcEvent(EventEnum.OnException, this, new Exception(
+					"Reconnect policy is null"));
+		} else {
+			this.reconnectPolicy = reconnectPolicy;
+		}
+	}
+
+	/**
+	 * Gets the time to wait for the server acknowledge of a published message
+	 * 
+	 * @return long Publish timeout in milliseconds
+	 */
+	public long getPublishTimeout() {
+		return this.publishTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for the server acknowledge of a published message
+	 * before failing the publish
+	 * 
+	 * @param publishTimeout
+	 *            Publish timeout in milliseconds
+	 */
+	public void setPublishTimeout(long publishTimeout) {
+		this.publishTimeout = publishTimeout;
+	}
+
+	/**
+	 * Gets the maximum number of publishes waiting for the server acknowledge
+	 * 
+	 * @return int Maximum of outstanding publishes, 0 if unlimited
+	 */
+	public int getMaxPendingPublishes() {
+		return this.pendingPublishes.getMaxPending();
+	}
+
+	/**
+	 * Sets the maximum number of publishes waiting for the server acknowledge.
+	 * Publishes over the limit fail immediately.
+	 * 
+	 * @param maxPendingPublishes
+	 *            Maximum of outstanding publishes, 0 for unlimited
+	 */
+	public void setMaxPendingPublishes(int maxPendingPublishes) {
+		this.pendingPublishes.setMaxPending(maxPendingPublishes);
+	}
+
+	/**
+	 * Gets the number of publishes waiting for the server acknowledge
+	 * 
+	 * @return int Number of outstanding publishes
+	 */
+	public int getPendingPublishesCount() {
+		return this.pendingPublishes.size();
+	}
+
+	/**
+	 * Gets the listener of the client metrics
+	 * 
+	 * @return ClientMetrics The listener, {@link ClientMetrics#NONE} if none
+	 *         was set
+	 */
+	public ClientMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Sets the listener updated from the hot paths of the client, null stops
+	 * the updates. The timings are only measured while a listener is set.
+	 * 
+	 * @param metrics
+	 *            The listener, for instance an {@link AtomicClientMetrics}
+	 */
+	public void setMetrics(ClientMetrics metrics) {
+		this.metrics = metrics == null ? ClientMetrics.NONE : metrics;
+	}
+
+	/**
+	 * Gets the publish to delivery latency tracing
+	 * 
+	 * @return LatencyTracer The tracing, null if it is disabled
+	 */
+	public LatencyTracer getTracer() {
+		return this.tracer;
+	}
+
+	/**
+	 * Enables the publish to delivery latency tracing (disabled by default).
+	 * The messages sent and published carry their send time in their id and
+	 * the latency of the traced messages received is recorded per channel,
+	 * see {@link LatencyTracer}. Disabling it drops the recorded latency.
+	 * 
+	 * @param tracing
+	 *            True to enable the tracing
+	 */
+	public void setTracing(boolean tracing) {
+		if (!tracing) {
+			this.tracer = null;
+		} else if (this.tracer == null) {
+			this.tracer = new LatencyTracer();
+		}
+	}
+
+	/**
+	 * Gets how many received message ids are remembered to drop duplicated
+	 * deliveries
+	 * 
+	 * @return int Number of message ids remembered
+	 */
+	public int getDeduplicationCapacity() {
+		return this.dispatchedMessages.getCapacity();
+	}
+
+	/**
+	 * Sets how many received message ids are remembered to drop duplicated
+	 * deliveries. The ids already remembered are discarded.
+	 * 
+	 * @param capacity
+	 *            Number of message ids remembered (default 1024)
+	 */
+	public void setDeduplicationCapacity(int capacity) {
+		this.dispatchedMessages = new DispatchedMessages(capacity,
+				this.dispatchedMessages.getWindow());
+	}
+
+	/**
+	 * Gets for how long a received message id is remembered to drop
+	 * duplicated deliveries
+	 * 
+	 * @return long Time in milliseconds, 0 if only bounded by the capacity
+	 */
+	public long getDeduplicationWindow() {
+		return this.dispatchedMessages.getWindow();
+	}
+
+	/**
+	 * Sets for how long a received message id is remembered to drop duplicated
+	 * deliveries. The ids already remembered are discarded.
+	 * 
+	 * @param window
+	 *            Time in milliseconds, 0 to only bound by the capacity
+	 */
+	public void setDeduplicationWindow(long window) {
+		this.dispatchedMessages = new DispatchedMessages(
+				this.dispatchedMessages.getCapacity(), window);
+	}
+
+	/**
+	 * Gets how the messages received with a seqId are acknowledged
+	 * 
+	 * @return AckMode The acknowledge mode
+	 */
+	public AckMode getAckMode() {
+		return this.ackAggregator.getMode();
+	}
+
+	/**
+	 * Sets how the messages received with a seqId (subscribeWithBuffer) are
+	 * acknowledged. Batched and cumulative acks fall back to per message acks
+	 * if the server does not support them, the acks it may have rejected are
+	 * sent again one by one.
+	 * 
+	 * @param ackMode
+	 *            The acknowledge mode (default PerMessage)
+	 */
+	public void setAckMode(AckMode ackMode) {
+		this.ackAggregator.setMode(ackMode);
+	}
+
+	/**
+	 * Gets for how long the acks of a channel are coalesced
+	 * 
+	 * @return int Ack window in milliseconds
+	 */
+	public int getAckWindow() {
+		return this.ackAggregator.getWindow();
+	}
+
+	/**
+	 * Sets for how long the acks of a channel are coalesced before being sent
+	 * when the ack mode is Batched or Cumulative
+	 * 
+	 * @param ackWindow
+	 *            Ack window in milliseconds (default 100)
+	 */
+	public void setAckWindow(int ackWindow) {
+		this.ackAggregator.setWindow(ackWindow);
+	}
+
+	/**
+	 * Gets how many acks of a channel are coalesced
+	 * 
+	 * @return int Maximum number of acks per frame
+	 */
+	public int getAckBatchSize() {
+		return this.ackAggregator.getBatchSize();
+	}
+
+	/**
+	 * Sets how many acks of a channel are coalesced before the window elapses
+	 * when the ack mode is Batched or Cumulative
+	 * 
+	 * @param ackBatchSize
+	 *            Maximum number of acks per frame (default 32)
+	 */
+	public void setAckBatchSize(int ackBatchSize) {
+		this.ackAggregator.setBatchSize(ackBatchSize);
+	}
+
+	/**
+	 * Gets Ortc client unique identifier
+	 * 
+	 * @return int Ortc client unique identifier
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Sets Ortc client unique identifier
+	 * 
+	 * @param id
+	 *            Ortc client unique identifier
+	 */
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Indicates if the ortc client is connected
+	 * 
+	 * @return boolean True if is connected otherwise false
+	 */
+	public boolean getIsConnected() {
+		return state.get() == ConnectionState.Connected;
+	}
+
+	/**
+	 * Gets the state of the connection, read without locking
+	 * 
+	 * @return ConnectionState The connection state
+	 */
+	public ConnectionState getConnectionState() {
+		return state.get();
+	}
+
+	// NOTE: used by the shared clients, whose connection is not their own
+	void setConnectionState(ConnectionState connectionState) {
+		state.set(connectionState);
+	}
+
+	boolean compareAndSetState(ConnectionState expect, ConnectionState update) {
+		return state.compareAndSet(expect, update);
+	}
+
+	/**
+	 * Passing your application context. Not necessary if you are not going to
+	 * use ORTC with Google Cloud Messaging.
+	 * 
+	 * @param context
+	 *            Your application context (can be obtained from your activity
+	 *            instance by 'getApplicationContext()')
+	 */
+	public void setApplicationContext(Context context) {
+		this.appContext = context;
+	}
+
+	/**
+	 * Sets the Google Project ID. Not necessary if you are not going to use
+	 * ORTC with Google Cloud Messaging.
+	 * 
+	 * @param googleProjectId
+	 *            Project Id of your Google project
+	 */
+	public void setGoogleProjectId(String googleProjectId) {
+		this.googleProjectId = googleProjectId;
+	}
+
+	/**
+	 * Sets the Registration ID in GCM. Not necessary if you are not going to use
 	 * ORTC with Google Cloud Messaging.
 	 *
 	 * @param registrationId
@@ -1378,59 +2587,116 @@ public abstract class OrtcClient {
 	}
 
 	private void raiseOnConnected(Object... args) {
-		this.isConnected = true;
-		this.isDisconnecting = false;
-		if (isReconnecting && !isConnecting) {
+		if (!state.compareAndSet(ConnectionState.Connecting, ConnectionState.Connected)) {
+			// NOTE: disconnected while the attempt was running, OnDisconnected
+			// was already raised
+			if (state.get() == ConnectionState.Disconnected) {
+				disconnectIntern();
+			}
+			return;
+		}
+		this.connectedSinceAttempt = true;
+		if (serverSelector != null) {
+			serverSelector.reportSuccess(url);
+		}
+		if (hasConnected) {
 			raiseOrtcEvent(EventEnum.OnReconnected, args);
 		} else {
-			this.isConnecting = false;
-			this.isReconnecting = false;
+			this.hasConnected = true;
+			this.reconnectPolicy.onConnected();
 			if (onConnected != null) {
-				OrtcClient sender = (OrtcClient) (args != null
+				final OrtcClient sender = (OrtcClient) (args != null
 						&& args.length == 1 ? args[0] : null);
+				final OnConnected handler = onConnected;
 
-				onConnected.run(sender);
+				dispatcher.dispatch(null, new Runnable() {
+					@Override
+					public void run() {
+						handler.run(sender);
+					}
+				});
 			}
 			startHeartBeatInterval();
+			replayOutboundJournal();
 		}
 
 	}
 
 	private void raiseOnDisconnected(Object... args) {
-		stopHeartBeatInterval();
-		OrtcClient sender = (OrtcClient) (args != null && args.length == 1 ? args[0]
+		if (adaptiveHeartbeat && heartbeatSender != null
+				&& state.get() == ConnectionState.Reconnecting) {
+			// NOTE: the connection was up, the idle interval may be too long
+			// for this network
+			heartbeatTuner.onConnectionLost(heartbeatMinTime);
+		}
+		closeSession();
+		final OrtcClient sender = (OrtcClient) (args != null && args.length == 1 ? args[0]
 				: null);
-		this.channelsPermissions = new Hashtable<String, String>(11);
-		if (isDisconnecting) {
-			this.isConnected = false;
-			this.isDisconnecting = false;
-			this.isConnecting = false;
-			this.isReconnecting = false;
-			this.subscribedChannels = new Hashtable<String, ChannelSubscription>(
-					11);
+		if (state.compareAndSet(ConnectionState.Disconnecting, ConnectionState.Disconnected)) {
+			endSession(sender);
+		} else if (state.get() == ConnectionState.Reconnecting) {
 			if (onDisconnected != null) {
-				onDisconnected.run(sender);
-			}
-		} else if(isReconnecting){			
-			if (onDisconnected != null) {
-				onDisconnected.run(sender);
+				final OnDisconnected handler = onDisconnected;
+				dispatcher.dispatch(null, new Runnable() {
+					@Override
+					public void run() {
+						handler.run(sender);
+					}
+				});
 			}
 			raiseOrtcEvent(EventEnum.OnReconnecting, args);
 		}
 	}
 
+	// NOTE: the connection is gone, the subscriptions are kept for a
+	// reconnect
+	private void closeSession() {
+		stopHeartBeatInterval();
+		pendingPublishes.failAll("Connection closed before the publish acknowledge");
+		ackAggregator.clear();
+		this.channelsPermissions = new Hashtable<String, String>(11);
+	}
+
+	// NOTE: the client is disconnected, the next connect raises OnConnected
+	private void endSession(final OrtcClient sender) {
+		this.hasConnected = false;
+		this.reconnectPolicy.reset();
+		this.subscribedChannels.clear();
+		if (onDisconnected != null) {
+			final OnDisconnected handler = onDisconnected;
+			dispatcher.dispatch(null, new Runnable() {
+				@Override
+				public void run() {
+					handler.run(sender);
+				}
+			});
+		}
+	}
+
 	private void raiseOnException(Object... args) {
 		if (onException != null) {
-			OrtcClient sender = (OrtcClient) (args != null && args.length == 2 ? args[0]
+			final OrtcClient sender = (OrtcClient) (args != null && args.length == 2 ? args[0]
 					: null);
-			Exception exception = args != null && args.length == 2 ? (Exception) args[1]
+			final Exception exception = args != null && args.length == 2 ? (Exception) args[1]
 					: null;
-			onException.run(sender, exception);
+			final OnException handler = onException;
+			dispatcher.dispatch(null, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handler.run(sender, exception);
+					} catch (RuntimeException e) {
+						// NOTE: not raised again, the handler would fail the
+						// same way
+						e.printStackTrace();
+					}
+				}
+			});
 		}
 	}
 
 	private void raiseOnReconnected(Object... args) {
-		this.isReconnecting = false;
+		this.reconnectPolicy.onConnected();
 
 		LinkedList<String> channelsToRemove = new LinkedList<String>();
 		Set<String> subscribedChannelsSet = this.subscribedChannels.keySet();
@@ -1453,7 +2719,8 @@ public abstract class OrtcClient {
                                 subscribedChannel.subscribeOnReconnected(),
                                 subscribedChannel.isWithNotification(),
                                 subscribedChannel.getFilter(),
-                                subscribedChannel.getSubscriberId());
+                                subscribedChannel.getSubscriberId(),
+                                getResumeSeqId(channelName, subscribedChannel));
 					}else{
 					    subscribe(channelName, channelPermission.second,
 						    	subscribedChannel.isWithNotification(), subscribedChannel.isWithFilter(), subscribedChannel.getFilter());
@@ -1471,42 +2738,61 @@ public abstract class OrtcClient {
 		}
 
 		if (onReconnected != null) {
-			OrtcClient sender = (OrtcClient) (args != null && args.length == 1 ? args[0]
+			final OrtcClient sender = (OrtcClient) (args != null && args.length == 1 ? args[0]
 					: null);
-			onReconnected.run(sender);
+			final OnReconnected handler = onReconnected;
+			dispatcher.dispatch(null, new Runnable() {
+				@Override
+				public void run() {
+					handler.run(sender);
+				}
+			});
 		}
 		startHeartBeatInterval();
+		replayOutboundJournal();
 	}
 
-	private void raiseOnReconnecting(Object... args) {
+	private void raiseOnReconnecting(final Object... args) {
 		stopHeartBeatInterval();
-		if (this.isReconnecting) {
-			try {
-				Thread.sleep(this.connectionTimeout);
-			} catch (InterruptedException e) {
-				raiseOrtcEvent(EventEnum.OnException, this, e);
+		if (state.get() == ConnectionState.Reconnecting) {
+			HashedWheelTimer.Timeout lReconnect = this.reconnectTimeout;
+			if (lReconnect != null) {
+				lReconnect.cancel();
 			}
 
-			if (this.isReconnecting) {
-				this.isConnected = false;
-				this.isDisconnecting = false;
-
-				if (onReconnecting != null) {
-					OrtcClient sender = (OrtcClient) (args != null
-							&& args.length == 1 ? args[0] : null);
-					onReconnecting.run(sender);
+			this.reconnectTimeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
+				@Override
+				public void run() {
+					reconnect(args);
 				}
+			}, this.reconnectPolicy.nextDelay(this.connectionTimeout), this);
+		}
+	}
 
-				this.connect(this.applicationKey, this.authenticationToken);
+	private void reconnect(Object... args) {
+		if (state.get() == ConnectionState.Reconnecting) {
+			if (onReconnecting != null) {
+				final OrtcClient sender = (OrtcClient) (args != null
+						&& args.length == 1 ? args[0] : null);
+				final OnReconnecting handler = onReconnecting;
+				dispatcher.dispatch(null, new Runnable() {
+					@Override
+					public void run() {
+						handler.run(sender);
+					}
+				});
 			}
+
+			metrics.onReconnectAttempt(lostCause);
+			this.connect(this.applicationKey, this.authenticationToken);
 		}
 	}
 
 	private void raiseOnSubscribed(Object... args) {
 
-		OrtcClient sender = (OrtcClient) (args != null && args.length == 2 ? args[0]
+		final OrtcClient sender = (OrtcClient) (args != null && args.length == 2 ? args[0]
 				: null);
-		String channel = args != null && args.length == 2 ? (String) args[1]
+		final String channel = args != null && args.length == 2 ? (String) args[1]
 				: null;
 
 		ChannelSubscription subscribeChannel = subscribedChannels.get(channel);
@@ -1514,15 +2800,21 @@ public abstract class OrtcClient {
 		subscribeChannel.setSubscribing(false);
 
 		if (onSubscribed != null) {
-			onSubscribed.run(sender, channel);
+			final OnSubscribed handler = onSubscribed;
+			dispatcher.dispatch(channel, new Runnable() {
+				@Override
+				public void run() {
+					handler.run(sender, channel);
+				}
+			});
 		}
 
 	}
 
 	private void raiseOnUnsubscribed(Object... args) {
-		OrtcClient sender = (OrtcClient) (args != null && args.length == 2 ? args[0]
+		final OrtcClient sender = (OrtcClient) (args != null && args.length == 2 ? args[0]
 				: null);
-		String channel = args != null && args.length == 2 ? (String) args[1]
+		final String channel = args != null && args.length == 2 ? (String) args[1]
 				: null;
 
 		ChannelSubscription subscribeChannel = subscribedChannels.get(channel);
@@ -1530,12 +2822,94 @@ public abstract class OrtcClient {
 		subscribeChannel.setSubscribing(false);
 
 		if (onUnsubscribed != null) {
-			onUnsubscribed.run(sender, channel);
+			final OnUnsubscribed handler = onUnsubscribed;
+			dispatcher.dispatch(channel, new Runnable() {
+				@Override
+				public void run() {
+					handler.run(sender, channel);
+				}
+			});
 		}
 
 		subscribedChannels.remove(channel);
+		dispatcher.remove(channel);
 	}
 
+    // NOTE: only the handler runs on the dispatcher, the seqId and the
+    // acknowledge are recorded once the message is handed off
+    private boolean dispatchMessage(ChannelSubscription subscription, String channel,
+            String messageId, String message, Object filtered, Object payload) {
+        if (subscription.isOverflowed()) {
+            // NOTE: dropped until the server confirms the unsubscribe
+            subscription.onDropped();
+            return false;
+        }
+        if (!dispatcher.dispatchMessage(channel, new InboundMessage(subscription, this,
+                channel, messageId, message, filtered, payload))) {
+            subscription.setOverflowed(true);
+            raiseOrtcEvent(EventEnum.OnException, this, new OrtcQueueOverflowException(
+                    channel, subscription.getQueueCapacity()));
+            unsubscribe(channel);
+            return false;
+        }
+        return true;
+    }
+
+    // NOTE: a filter reading only the channel and the seqId rejects a
+    // multipart message on its first part, the other parts are then dropped
+    // on arrival instead of being buffered and joined
+    private boolean dropPart(String channel, String messageId, Integer messageTotalParts,
+            Object payload) {
+        Integer remaining = droppedParts.get(messageId);
+        if (remaining != null) {
+            if (remaining <= 1) {
+                droppedParts.remove(messageId);
+            } else {
+                droppedParts.put(messageId, remaining - 1);
+            }
+            return true;
+        }
+        if (multiPartMessagesBuffer.containsKey(messageId)) {
+            return false;
+        }
+        ChannelSubscription subscription = subscribedChannels.get(channel);
+        MessageFilter filter = subscription == null ? null : subscription.getMessageFilter();
+        if (filter == null || filter.readsMessage()) {
+            return false;
+        }
+        String seqId = payload instanceof String ? (String) payload : null;
+        if (subscription.accepts(channel, seqId, null)) {
+            return false;
+        }
+
+        // NOTE: rejected locally, still recorded and acknowledged
+        if (seqId != null) {
+            if (resumeSubscriptions) {
+                subscription.acceptSeqId(seqId, resumeWindow);
+            }
+            subscription.setLastSeqId(seqId);
+            ackAggregator.add(channel, messageId, seqId, true);
+        }
+        if (messageTotalParts != null && messageTotalParts > 1) {
+            droppedParts.put(messageId, messageTotalParts - 1);
+        }
+        return true;
+    }
+
+    private void dispatchPatternListeners(final String channel, final String message) {
+        List<OnMessage> matches = new ArrayList<OnMessage>(4);
+        patternListeners.match(channel, matches);
+        final OrtcClient sender = this;
+        for (final OnMessage listener : matches) {
+            dispatcher.dispatch(channel, new Runnable() {
+                @Override
+                public void run() {
+                    listener.run(sender, channel, message);
+                }
+            });
+        }
+    }
+
     private void raiseOnReceived(Object... args) {
         String channel = args != null && args.length >= 5 ? (String) args[0]
                 : null;
@@ -1564,25 +2938,57 @@ public abstract class OrtcClient {
             if (subscription != null) {
                 boolean isAlreadyDispatched = false;
                 if (messageId != null) {
-                    isAlreadyDispatched = dispatchedMessages
-                            .checkIfDispatched(messageId);
+                    isAlreadyDispatched = !dispatchedMessages
+                            .addIfAbsent(messageId);
+                    if (isAlreadyDispatched) {
+                        metrics.onDuplicate();
+                    }
                 }
-                if (!isAlreadyDispatched) {
-                    if (messageId != null)
-                        dispatchedMessages.addMessageId(messageId);
+                if (!isAlreadyDispatched && resumeSubscriptions && payload instanceof String) {
+                    // NOTE: messages replayed after a resume are delivered once
+                    isAlreadyDispatched = !subscription.acceptSeqId((String) payload, resumeWindow);
+                    if (isAlreadyDispatched) {
+                        ackAggregator.add(channel, messageId, (String) payload, true);
+                    }
+                }
+                if (!isAlreadyDispatched && !subscription.accepts(channel,
+                        payload instanceof String ? (String) payload : null, message)) {
+                    // NOTE: rejected locally, still recorded and acknowledged
+                    if (messageId != null) {
+                        multiPartMessagesBuffer.remove(messageId);
+                        if (payload instanceof String) {
+                            subscription.setLastSeqId((String) payload);
+                            ackAggregator.add(channel, messageId, (String) payload, true);
+                        }
+                    }
+                } else if (!isAlreadyDispatched) {
+                    if (invalidatePresenceOnAnnouncement) {
+                        invalidatePresence(channel, message);
+                    }
                     //OnMessage onMessageEventHandler = subscription.getOnMessage();
                     //if (onMessageEventHandler != null) {
                     //message = CharEscaper.removeEsc(message);
                     //onMessageEventHandler.run(this, channel, message);
-                    subscription.runHandler(this, channel, message, filtered, payload);
+                    // NOTE: the pattern listeners do not get the messages of an
+                    // overflowed subscription either
+                    if (dispatchMessage(subscription, channel, messageId, message, filtered, payload)
+                            && !patternListeners.isEmpty()) {
+                        dispatchPatternListeners(channel, message);
+                    }
                     if (messageId != null && payload != null && payload instanceof String){
-                        sendAck(channel, messageId, (String) payload, "1");
+                        subscription.setLastSeqId((String) payload);
+                        InboundMessageStore lStore = this.inboundStore;
+                        if (lStore != null) {
+                            lStore.append(channel, (String) payload, message);
+                        }
+                        ackAggregator.add(channel, messageId, (String) payload, true);
                     }
                     try {
                         if (messageId != null
                                 && multiPartMessagesBuffer
                                 .containsKey(messageId)) {
                             multiPartMessagesBuffer.remove(messageId);
+                            metrics.onMultipartBuffers(multiPartMessagesBuffer.size());
                         }
                     } catch (Exception e) {
                         raiseOrtcEvent(EventEnum.OnException, this, e);
@@ -1590,10 +2996,11 @@ public abstract class OrtcClient {
                     //}
                 }
             }
-        } else {
+        } else if (!dropPart(channel, messageId, messageTotalParts, payload)) {
             if (!multiPartMessagesBuffer.containsKey(messageId)) {
                 multiPartMessagesBuffer.put(messageId,
                         new LinkedList<BufferedMessage>());
+                metrics.onMultipartBuffers(multiPartMessagesBuffer.size());
             }
 
             // CAUSE: Possible null pointer dereference
@@ -1608,17 +3015,20 @@ public abstract class OrtcClient {
             if (messageParts != null
                     && messageParts.size() == messageTotalParts) {
                 Collections.sort(messageParts);
-                String fullMessage = "";
+                int length = 0;
                 for (BufferedMessage part : messageParts) {
-                    fullMessage = String.format("%s%s", fullMessage,
-                            part.getContent());
+                    length += part.getContent().length();
+                }
+                StringBuilder fullMessage = new StringBuilder(length);
+                for (BufferedMessage part : messageParts) {
+                    fullMessage.append(part.getContent());
                 }
 
-                raiseOnReceived(channel, fullMessage, messageId, -1, -1, filtered, payload);
+                raiseOnReceived(channel, fullMessage.toString(), messageId, -1, -1, filtered, payload);
             }
         }
         if (messageId != null && payload != null && payload instanceof String){
-            sendAck(channel, messageId, (String) payload, "0");
+            ackAggregator.add(channel, messageId, (String) payload, false);
         }
     }
 
@@ -1703,6 +3113,109 @@ public abstract class OrtcClient {
 		}
 	}
 
+	/**
+	 * Get if the adaptive heartbeat is active.
+	 * 
+	 * @return if the adaptive heartbeat is active.
+	 */
+	public boolean getAdaptiveHeartbeat() {
+		return adaptiveHeartbeat;
+	}
+
+	/**
+	 * Set adaptive heartbeat. Heartbeats are only sent when no other message
+	 * was sent for the heartbeat interval, and the interval is probed between
+	 * the minimum and the maximum heartbeat time to find the longest idle
+	 * period the current network keeps alive. The maximum heartbeat time is
+	 * announced to the server instead of the heartbeat time. Activates the
+	 * heartbeat.
+	 * 
+	 * @param adaptive
+	 * 		true to activate the adaptive heartbeat and false to send a heartbeat every heartbeat time.
+	 */
+	public void setAdaptiveHeartbeat(boolean adaptive) {
+		this.adaptiveHeartbeat = adaptive;
+		if (adaptive) {
+			this.heartbeatActive = true;
+		}
+	}
+
+	/**
+	 * Get the key of the network the adaptive heartbeat intervals are learned for.
+	 * 
+	 * @return the network key.
+	 */
+	public String getNetworkKey() {
+		return heartbeatTuner.getNetworkKey();
+	}
+
+	/**
+	 * Set the key of the current network (for instance the wifi SSID or the
+	 * mobile operator). The adaptive heartbeat keeps the interval learned for
+	 * each network, call it when the connectivity changes.
+	 * 
+	 * @param networkKey
+	 */
+	public void setNetworkKey(String networkKey) {
+		heartbeatTuner.setNetworkKey(networkKey);
+	}
+
+	/**
+	 * Get the interval used between heartbeats on the current network.
+	 * 
+	 * @return interval in seconds, the heartbeat time unless the adaptive heartbeat is active.
+	 */
+	public int getHeartbeatInterval() {
+		if (!adaptiveHeartbeat) {
+			return heartbeatTime;
+		}
+		return heartbeatTuner.getInterval(heartbeatMinTime, heartbeatMaxTime);
+	}
+
+	/**
+	 * Get the liveness timeout.
+	 * 
+	 * @return seconds without receiving data before the connection is considered dead.
+	 */
+	public int getLivenessTimeout() {
+		return livenessTimeout;
+	}
+
+	/**
+	 * Set the liveness timeout. When nothing is received from the server for
+	 * this time the connection is closed and the client reconnects, so a dead
+	 * connection is detected at most one second after the timeout.
+	 * 
+	 * @param newLivenessTimeout
+	 * 		timeout in seconds (default 30).
+	 */
+	public void setLivenessTimeout(int newLivenessTimeout) {
+		if (newLivenessTimeout > 0) {
+			livenessTimeout = newLivenessTimeout;
+		} else {
+			raiseOrtcEvent(EventEnum.OnException, this, new Exception(
+					"Invalid liveness timeout " + newLivenessTimeout));
+		}
+	}
+
+	/**
+	 * Called by the protocol implementation when data is received
+	 */
+	protected void onInboundTraffic() {
+		lastInbound = System.currentTimeMillis();
+	}
+
+	/**
+	 * Called by the protocol implementation when data is sent
+	 */
+	protected void onOutboundTraffic() {
+		lastOutbound = System.currentTimeMillis();
+	}
+
+	void onHeartbeatIdleSurvived() {
+		heartbeatTuner.onIdleSurvived(heartbeatMinTime, heartbeatMaxTime);
+	}
+
 	public void startHeartBeatInterval() {
 		if (heartbeatSender == null && heartbeatActive) {
 			heartbeatSender = new HeartbeatSender(this);
@@ -1718,5 +3231,14 @@ public abstract class OrtcClient {
 
 	protected abstract void sendHeartbeat();
 
+	boolean isClusterUrl() {
+		return isCluster;
+	}
+
+	// NOTE: runs on the lane of the connection events
+	void dispatchEvent(Runnable task) {
+		dispatcher.dispatch(null, task);
+	}
+
 	// ========== Raise of events ==========
 }
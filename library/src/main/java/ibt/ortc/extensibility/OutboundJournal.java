@@ -0,0 +1,597 @@
+/**
+ * @fileoverview This file contains the journal of the messages sent while offline
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append only file holding the messages sent or published while the client
+ * is not connected.
+ *
+ * Each record is framed by its length and CRC32, a torn record at the end of
+ * the file (the process died while writing) is discarded when the journal
+ * is opened. Records are appended to a buffer and committed to the disk in
+ * groups, one flush and sync per commit interval instead of one per message.
+ * Replayed messages are marked as done with a small record and the file is
+ * rewritten with the pending records only once it is mostly done records.
+ *
+ * The journal is bounded by the size of its pending records, appends above
+ * the maximum size are rejected, and by age, pending records older than the
+ * maximum age are dropped instead of replayed.
+ *
+ * The I/O errors are raised on the OnException handler of the client. After
+ * a failed write or sync the content of the file is unknown: the journal
+ * stops writing to it and rejects the next appends, the pending records are
+ * kept in memory and still replayed while the client runs.
+ */
+public class OutboundJournal {
+	public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+	public static final int DEFAULT_COMMIT_INTERVAL = 50;
+
+	private static final byte RECORD_ENTRY = 1;
+	private static final byte RECORD_DONE = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final long COMPACT_MIN_SIZE = 64 * 1024;
+
+	private static final ExecutorService io = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ortc-journal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * A message waiting to be sent
+	 */
+	static final class Entry {
+		final long id;
+		final long timestamp;
+		final boolean publish;
+		final int ttl;
+		final String channel;
+		final String message;
+		final int size;
+
+		Entry(long id, long timestamp, boolean publish, int ttl,
+				String channel, String message, int size) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.publish = publish;
+			this.ttl = ttl;
+			this.channel = channel;
+			this.message = message;
+			this.size = size;
+		}
+	}
+
+	private final File file;
+	private final OrtcClient client;
+	private final LinkedHashMap<Long, Entry> pending;
+	private final CRC32 crc;
+
+	private FileOutputStream fileStream;
+	private DataOutputStream out;
+	private long nextId;
+	private long fileSize;
+	private long pendingSize;
+	// NOTE: records appended since the last commit, not durable yet
+	private int unsynced;
+	private boolean commitScheduled;
+	private boolean compactScheduled;
+	private boolean closed;
+
+	private volatile long maxSize;
+	private volatile long maxAge;
+	private volatile int commitInterval;
+
+	private final Runnable commitTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (OutboundJournal.this) {
+				commitScheduled = false;
+			}
+			commit();
+		}
+	};
+
+	private final Runnable compactTask = new Runnable() {
+		@Override
+		public void run() {
+			compact();
+		}
+	};
+
+	private OutboundJournal(File file, OrtcClient client) {
+		this.file = file;
+		this.client = client;
+		this.pending = new LinkedHashMap<Long, Entry>(16);
+		this.crc = new CRC32();
+		this.maxSize = DEFAULT_MAX_SIZE;
+		this.maxAge = DEFAULT_MAX_AGE;
+		this.commitInterval = DEFAULT_COMMIT_INTERVAL;
+	}
+
+	/**
+	 * Opens the journal, loading the pending records of a previous run
+	 *
+	 * @param file
+	 *            The journal file, created if it does not exist
+	 * @param client
+	 *            Client the errors are reported to, null to ignore them
+	 * @return OutboundJournal The opened journal
+	 * @throws IOException
+	 *             If the file can not be read or written
+	 */
+	static OutboundJournal open(File file, OrtcClient client) throws IOException {
+		OutboundJournal journal = new OutboundJournal(file, client);
+		journal.load();
+		return journal;
+	}
+
+	private void report(String operation, Exception error) {
+		if (client != null) {
+			client.raiseOrtcEvent(EventEnum.OnException, client, new Exception(String.format(
+					"Outbound journal %s failed in %s: %s", operation, file,
+					error.getMessage()), error));
+		}
+	}
+
+	// NOTE: a failed write may have left part of a record in the buffer or
+	// in the file, nothing more is written after it
+	private void stopWriting() {
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// NOTE: the stream already failed
+		}
+	}
+
+	private void load() throws IOException {
+		long validSize = 0;
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				while (true) {
+					int length = in.readInt();
+					int checksum = in.readInt();
+					if (length <= 0 || length > file.length()) {
+						break;
+					}
+					byte[] body = new byte[length];
+					in.readFully(body);
+					crc.reset();
+					crc.update(body, 0, length);
+					if ((int) crc.getValue() != checksum) {
+						break;
+					}
+					apply(body, HEADER_SIZE + length);
+					validSize += HEADER_SIZE + length;
+				}
+			} catch (EOFException e) {
+				// NOTE: end of the file or torn record
+			} finally {
+				in.close();
+			}
+
+			if (validSize < file.length()) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(validSize);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+
+		this.fileSize = validSize;
+		openStream();
+	}
+
+	private void apply(byte[] body, int size) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		long id = in.readLong();
+		nextId = Math.max(nextId, id + 1);
+		if (type == RECORD_ENTRY) {
+			long timestamp = in.readLong();
+			boolean publish = in.readBoolean();
+			int ttl = in.readInt();
+			String channel = readString(in);
+			String message = readString(in);
+			pending.put(id, new Entry(id, timestamp, publish, ttl, channel,
+					message, size));
+			pendingSize += size;
+		} else if (type == RECORD_DONE) {
+			Entry entry = pending.remove(id);
+			if (entry != null) {
+				pendingSize -= entry.size;
+			}
+		}
+	}
+
+	private void openStream() throws IOException {
+		fileStream = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(fileStream, 8192));
+	}
+
+	/**
+	 * Appends a message
+	 *
+	 * @return Entry The journal entry or null if the journal is full
+	 */
+	synchronized Entry append(boolean publish, String channel,
+			String message, int ttl) throws IOException {
+		if (closed) {
+			throw new IOException("Outbound journal is closed");
+		}
+
+		long id = nextId;
+		long timestamp = System.currentTimeMillis();
+		byte[] body = encode(id, timestamp, publish, ttl, channel, message);
+		int size = HEADER_SIZE + body.length;
+		if (pendingSize + size > maxSize) {
+			return null;
+		}
+		nextId++;
+		try {
+			writeRecord(body);
+		} catch (IOException e) {
+			stopWriting();
+			throw e;
+		}
+		unsynced++;
+
+		Entry entry = new Entry(id, timestamp, publish, ttl, channel, message,
+				size);
+		pending.put(id, entry);
+		pendingSize += size;
+		return entry;
+	}
+
+	/**
+	 * Marks a message as sent
+	 */
+	synchronized void remove(long id) {
+		Entry entry = pending.remove(id);
+		if (entry == null || closed) {
+			return;
+		}
+		pendingSize -= entry.size;
+
+		byte[] body = new byte[9];
+		body[0] = RECORD_DONE;
+		for (int idx = 0; idx < 8; idx++) {
+			body[1 + idx] = (byte) (id >>> (56 - idx * 8));
+		}
+		try {
+			writeRecord(body);
+		} catch (IOException e) {
+			stopWriting();
+			report("mark as sent (the message is replayed again when the journal is opened)", e);
+			return;
+		}
+
+		if (!compactScheduled && fileSize > COMPACT_MIN_SIZE
+				&& fileSize > pendingSize * 2) {
+			compactScheduled = true;
+			io.execute(compactTask);
+		}
+	}
+
+	/**
+	 * Gets the messages to replay, in the order they were appended. Messages
+	 * older than the maximum age are dropped.
+	 *
+	 * @param expired
+	 *            Receives the ids of the dropped messages
+	 */
+	synchronized List<Entry> getPending(List<Long> expired) {
+		long limit = System.currentTimeMillis() - maxAge;
+		ArrayList<Entry> result = new ArrayList<Entry>(pending.size());
+		for (Entry entry : pending.values()) {
+			if (entry.timestamp < limit) {
+				expired.add(entry.id);
+			} else {
+				result.add(entry);
+			}
+		}
+		for (Long id : expired) {
+			remove(id);
+		}
+		return result;
+	}
+
+	synchronized boolean contains(long id) {
+		return pending.containsKey(id);
+	}
+
+	private void writeRecord(byte[] body) throws IOException {
+		fileSize += writeFrame(out, body);
+
+		if (!commitScheduled) {
+			commitScheduled = true;
+			HashedWheelTimer.getInstance().schedule(new Runnable() {
+				@Override
+				public void run() {
+					io.execute(commitTask);
+				}
+			}, commitInterval, client);
+		}
+	}
+
+	/**
+	 * Writes the buffered records and syncs the file
+	 */
+	void commit() {
+		FileOutputStream lStream;
+		int lUnsynced;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			lUnsynced = unsynced;
+			unsynced = 0;
+			try {
+				out.flush();
+			} catch (IOException e) {
+				failCommit(lUnsynced, e);
+				return;
+			}
+			lStream = fileStream;
+		}
+		try {
+			// NOTE: outside the lock, appends go on while the disk syncs. The
+			// stream is only replaced by the compaction, on this same thread
+			lStream.getFD().sync();
+		} catch (IOException e) {
+			synchronized (this) {
+				failCommit(lUnsynced, e);
+			}
+		}
+	}
+
+	// NOTE: the messages of the failed commit are not failed, they stay
+	// pending in memory and are replayed on the next connection, but they do
+	// not survive the process
+	private void failCommit(int lUnsynced, IOException e) {
+		if (closed) {
+			// NOTE: closed meanwhile, the sync error comes from the close
+			return;
+		}
+		stopWriting();
+		report(String.format("commit (%s messages are only kept in memory)",
+				lUnsynced + unsynced), e);
+	}
+
+	private void compact() {
+		File temp = new File(file.getPath() + ".tmp");
+		synchronized (this) {
+			compactScheduled = false;
+			if (closed || fileSize <= pendingSize * 2) {
+				return;
+			}
+			try {
+				out.flush();
+				fileStream.getFD().sync();
+
+				FileOutputStream tempStream = new FileOutputStream(temp, false);
+				DataOutputStream tempOut = new DataOutputStream(
+						new BufferedOutputStream(tempStream, 8192));
+				long tempSize = 0;
+				try {
+					for (Entry entry : pending.values()) {
+						tempSize += writeFrame(tempOut, encode(entry.id,
+								entry.timestamp, entry.publish, entry.ttl,
+								entry.channel, entry.message));
+					}
+					tempOut.flush();
+					tempStream.getFD().sync();
+				} finally {
+					tempOut.close();
+				}
+				out.close();
+
+				if (!temp.renameTo(file)) {
+					throw new IOException("Could not replace the outbound journal");
+				}
+				fileSize = tempSize;
+				unsynced = 0;
+				openStream();
+			} catch (IOException e) {
+				temp.delete();
+				try {
+					// NOTE: the old file is kept, with its done records
+					openStream();
+					fileSize = file.length();
+					report("compaction", e);
+				} catch (IOException ex) {
+					closed = true;
+					report(String.format("compaction (%s messages are only kept in memory)",
+							pending.size()), ex);
+				}
+			}
+		}
+	}
+
+	private byte[] encode(long id, long timestamp, boolean publish, int ttl,
+			String channel, String message) throws IOException {
+		byte[] channelBytes = channel.getBytes("UTF-8");
+		byte[] messageBytes = message.getBytes("UTF-8");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				30 + channelBytes.length + messageBytes.length);
+		DataOutputStream body = new DataOutputStream(buffer);
+		body.writeByte(RECORD_ENTRY);
+		body.writeLong(id);
+		body.writeLong(timestamp);
+		body.writeBoolean(publish);
+		body.writeInt(ttl);
+		body.writeInt(channelBytes.length);
+		body.write(channelBytes);
+		body.writeInt(messageBytes.length);
+		body.write(messageBytes);
+		return buffer.toByteArray();
+	}
+
+	private int writeFrame(DataOutputStream target, byte[] body)
+			throws IOException {
+		crc.reset();
+		crc.update(body, 0, body.length);
+		target.writeInt(body.length);
+		target.writeInt((int) crc.getValue());
+		target.write(body);
+		return HEADER_SIZE + body.length;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Commits the pending records and closes the file
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			out.flush();
+			fileStream.getFD().sync();
+		} catch (IOException e) {
+			report(String.format("close (%s messages were not synced)", unsynced), e);
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// NOTE: reported by the flush
+			}
+		}
+	}
+
+	/**
+	 * Gets the journal file
+	 *
+	 * @return File The journal file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the number of messages waiting to be sent
+	 *
+	 * @return int Number of messages
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the size of the messages waiting to be sent
+	 *
+	 * @return long Size in bytes
+	 */
+	public synchronized long getPendingSize() {
+		return pendingSize;
+	}
+
+	/**
+	 * Gets the size of the journal file, including the done records not
+	 * compacted yet
+	 *
+	 * @return long Size in bytes
+	 */
+	public synchronized long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Gets the maximum size of the messages waiting to be sent
+	 *
+	 * @return long Size in bytes
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum size of the messages waiting to be sent, messages above
+	 * it are rejected
+	 *
+	 * @param maxSize
+	 *            Size in bytes (default 1 MB)
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets how long a message waits to be sent before being dropped
+	 *
+	 * @return long Age in milliseconds
+	 */
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Sets how long a message waits to be sent before being dropped
+	 *
+	 * @param maxAge
+	 *            Age in milliseconds (default 24 hours)
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Gets how long the appended records are buffered before being synced
+	 *
+	 * @return int Interval in milliseconds
+	 */
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Sets how long the appended records are buffered before being synced
+	 * to the disk. A longer interval syncs more records at once but more
+	 * records are lost if the process dies.
+	 *
+	 * @param commitInterval
+	 *            Interval in milliseconds (default 50)
+	 */
+	public void setCommitInterval(int commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * @fileoverview This file contains the policies of the full inbound queues
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Enumerates what happens to a message received in a channel whose inbound
+ * queue is full.
+ */
+public enum OverflowPolicy {
+	/**
+	 * The thread reading the socket waits until the handler takes a message
+	 * from the queue, delaying every channel and the heartbeat (default)
+	 */
+	Block,
+	/**
+	 * The received message is dropped, the queued messages are kept
+	 */
+	DropNewest,
+	/**
+	 * The oldest queued message is dropped to make room for the received one
+	 */
+	DropOldest,
+	/**
+	 * The received message is dropped, the channel is unsubscribed and an
+	 * OrtcQueueOverflowException is raised
+	 */
+	Fail
+}
@@ -0,0 +1,224 @@
+/**
+ * @fileoverview This file contains the completion handle of a published message
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Completion handle of a message published with
+ * {@link OrtcClient#publishAsync(String, String, int)}.
+ *
+ * The handle completes with the message sequence identifier (seqId) when the
+ * server acknowledges every part of the message, or with an error when the
+ * publish times out, is rejected or the connection drops before the ack.
+ *
+ * How to use:
+ *
+ * <pre>
+ * PublishFuture result = client.publishAsync(&quot;CHANNEL&quot;, &quot;message&quot;, 0);
+ * String seqId = result.get(); // blocks, do not call on the UI thread
+ * </pre>
+ */
+public class PublishFuture implements Future<String> {
+	private final String messageId;
+	private final String channel;
+	private final int totalParts;
+	private final long startTime;
+
+	private final CountDownLatch done;
+	private final AtomicBoolean completed;
+
+	private volatile String seqId;
+	private volatile String error;
+	private volatile long ackLatency;
+	private final OnPublishResult callback;
+	private final MessageDispatcher dispatcher;
+
+	HashedWheelTimer.Timeout ackTimeout;
+
+	PublishFuture(String messageId, String channel, int totalParts,
+			OnPublishResult callback, MessageDispatcher dispatcher) {
+		this.messageId = messageId;
+		this.channel = channel;
+		this.totalParts = totalParts;
+		this.startTime = System.nanoTime();
+		this.done = new CountDownLatch(1);
+		this.completed = new AtomicBoolean(false);
+		this.ackLatency = -1;
+		this.callback = callback;
+		this.dispatcher = dispatcher;
+	}
+
+	static PublishFuture failed(String channel, String error) {
+		PublishFuture result = new PublishFuture(null, channel, 0, null, null);
+		result.fail(error);
+		return result;
+	}
+
+	/**
+	 * Completes the handle with the seqId returned by the server.
+	 *
+	 * @return boolean True if this call completed the handle, false if it was
+	 *         already completed (for instance by a timeout)
+	 */
+	boolean complete(String seqId) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.ackLatency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- startTime);
+		this.seqId = seqId;
+		finish();
+		return true;
+	}
+
+	/**
+	 * Completes the handle with an error.
+	 *
+	 * @return boolean True if this call completed the handle, false if it was
+	 *         already completed
+	 */
+	boolean fail(String error) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.error = error;
+		finish();
+		return true;
+	}
+
+	private void finish() {
+		if (ackTimeout != null) {
+			ackTimeout.cancel();
+		}
+		done.countDown();
+		if (callback != null) {
+			// NOTE: completed on the timer or on the socket reader, the
+			// callback runs on the lane of the connection events
+			final String lError = error;
+			final String lSeqId = seqId;
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					callback.run(lError, lSeqId);
+				}
+			};
+			if (dispatcher == null) {
+				task.run();
+			} else {
+				dispatcher.dispatch(null, task);
+			}
+		}
+	}
+
+	/**
+	 * A publish can not be recalled once it was written to the socket
+	 *
+	 * @return boolean Always false
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the publish acknowledge.
+	 *
+	 * @return String The message seqId
+	 * @throws ExecutionException
+	 *             If the publish failed, the cause message holds the error
+	 */
+	@Override
+	public String get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public String get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException(String.format(
+					"Message %s was not acknowledged yet", messageId));
+		}
+		return getResult();
+	}
+
+	private String getResult() throws ExecutionException {
+		if (error != null) {
+			throw new ExecutionException(new Exception(error));
+		}
+		return seqId;
+	}
+
+	/**
+	 * Gets the error that failed the publish
+	 *
+	 * @return String The error description or null if the publish did not fail
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Gets the sequence identifier assigned by the server to the message
+	 *
+	 * @return String The seqId or null if the publish was not acknowledged
+	 */
+	public String getSeqId() {
+		return seqId;
+	}
+
+	/**
+	 * Gets the time between the publish and the server acknowledge
+	 *
+	 * @return long Ack latency in milliseconds or -1 if not acknowledged
+	 */
+	public long getAckLatency() {
+		return ackLatency;
+	}
+
+	/**
+	 * Gets the identifier of the published message
+	 *
+	 * @return String The message identifier
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * Gets the channel the message was published to
+	 *
+	 * @return String Channel name
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Gets the number of parts the message was split into
+	 *
+	 * @return int Number of parts
+	 */
+	public int getTotalParts() {
+		return totalParts;
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * @fileoverview This file contains the policy deciding when to reconnect
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how long the client waits before each reconnect attempt.
+ *
+ * The first attempt after a connection loss is immediate. The following
+ * attempts use an exponential backoff with decorrelated jitter, each delay
+ * is a random value between the base delay (the client connection timeout)
+ * and three times the previous delay, capped by the maximum delay. The
+ * jitter spreads the reconnects of many clients after a server restart.
+ * The backoff only goes back to the first attempt once a connection stayed
+ * up for the stable period, so a flapping connection keeps backing off.
+ *
+ * How to use:
+ *
+ * <pre>
+ * ReconnectPolicy policy = client.getReconnectPolicy();
+ * policy.setMaxDelay(30000);
+ * System.out.println(policy.getTimeToReconnect().getPercentile(99));
+ * </pre>
+ */
+public class ReconnectPolicy {
+	public static final int DEFAULT_MAX_DELAY = 60000;
+	public static final int DEFAULT_STABLE_PERIOD = 60000;
+
+	private volatile boolean fastFirstRetry;
+	private volatile int maxDelay;
+	private volatile int stablePeriod;
+
+	private final Random random;
+	private int attempt;
+	private long previousDelay;
+	private long outageStart;
+	private long connectedAt;
+
+	private final AtomicLong totalAttempts;
+	private final AtomicLong reconnects;
+	private final LatencyHistogram timeToReconnect;
+
+	public ReconnectPolicy() {
+		this.fastFirstRetry = true;
+		this.maxDelay = DEFAULT_MAX_DELAY;
+		this.stablePeriod = DEFAULT_STABLE_PERIOD;
+		this.random = new Random();
+		this.totalAttempts = new AtomicLong(0);
+		this.reconnects = new AtomicLong(0);
+		this.timeToReconnect = new LatencyHistogram();
+	}
+
+	/**
+	 * Gets the delay before the next reconnect attempt
+	 *
+	 * @param baseDelay
+	 *            Minimum delay in milliseconds between attempts after the
+	 *            first one
+	 * @return long Delay in milliseconds
+	 */
+	synchronized long nextDelay(long baseDelay) {
+		long now = System.currentTimeMillis();
+		if (outageStart == 0) {
+			outageStart = now;
+			if (connectedAt > 0 && now - connectedAt >= stablePeriod) {
+				attempt = 0;
+				previousDelay = 0;
+			}
+		}
+
+		attempt++;
+		totalAttempts.incrementAndGet();
+		if (attempt == 1 && fastFirstRetry) {
+			return 0;
+		}
+
+		long base = Math.max(0, baseDelay);
+		long upper = Math.max(base, previousDelay) * 3;
+		long delay = base + (long) (random.nextDouble() * (upper - base));
+		delay = Math.min(delay, maxDelay);
+		previousDelay = delay;
+		return delay;
+	}
+
+	/**
+	 * Records the end of an outage
+	 */
+	synchronized void onConnected() {
+		long now = System.currentTimeMillis();
+		if (outageStart > 0) {
+			timeToReconnect.record(now - outageStart);
+			reconnects.incrementAndGet();
+			outageStart = 0;
+		}
+		connectedAt = now;
+	}
+
+	/**
+	 * Forgets the current outage, used when the user disconnects
+	 */
+	synchronized void reset() {
+		attempt = 0;
+		previousDelay = 0;
+		outageStart = 0;
+		connectedAt = 0;
+	}
+
+	/**
+	 * Gets if the first attempt after a connection loss is immediate
+	 *
+	 * @return boolean True if the first retry has no delay
+	 */
+	public boolean getFastFirstRetry() {
+		return fastFirstRetry;
+	}
+
+	/**
+	 * Sets if the first attempt after a connection loss is immediate
+	 *
+	 * @param fastFirstRetry
+	 *            True for an immediate first retry (default true)
+	 */
+	public void setFastFirstRetry(boolean fastFirstRetry) {
+		this.fastFirstRetry = fastFirstRetry;
+	}
+
+	/**
+	 * Gets the maximum delay between reconnect attempts
+	 *
+	 * @return int Delay in milliseconds
+	 */
+	public int getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Sets the maximum delay between reconnect attempts
+	 *
+	 * @param maxDelay
+	 *            Delay in milliseconds (default 60000)
+	 */
+	public void setMaxDelay(int maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Gets how long a connection must stay up before the backoff is reset
+	 *
+	 * @return int Period in milliseconds
+	 */
+	public int getStablePeriod() {
+		return stablePeriod;
+	}
+
+	/**
+	 * Sets how long a connection must stay up before the backoff is reset
+	 *
+	 * @param stablePeriod
+	 *            Period in milliseconds (default 60000)
+	 */
+	public void setStablePeriod(int stablePeriod) {
+		this.stablePeriod = stablePeriod;
+	}
+
+	/**
+	 * Gets the number of attempts since the backoff was last reset
+	 *
+	 * @return int Number of attempts
+	 */
+	public synchronized int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * Gets the number of reconnect attempts since the client was created
+	 *
+	 * @return long Number of attempts
+	 */
+	public long getTotalAttempts() {
+		return totalAttempts.get();
+	}
+
+	/**
+	 * Gets the number of successful reconnects
+	 *
+	 * @return long Number of reconnects
+	 */
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	/**
+	 * Gets the histogram of the time between a connection loss and the
+	 * successful reconnect, in milliseconds
+	 *
+	 * @return LatencyHistogram Time to reconnect
+	 */
+	public LatencyHistogram getTimeToReconnect() {
+		return timeToReconnect;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * @fileoverview This file contains a server the client can connect to
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Ortc server ranked by the {@link ServerSelector}, with the latency
+ * measured to it and its connection failures
+ */
+public final class ServerCandidate {
+	private final String url;
+	private final String clusterUrl;
+
+	// NOTE: guarded by the selector
+	long rtt;
+	int probes;
+	int failures;
+	long demotedUntil;
+
+	ServerCandidate(String url, String clusterUrl) {
+		this.url = url;
+		this.clusterUrl = clusterUrl;
+		this.rtt = -1;
+	}
+
+	ServerCandidate(ServerCandidate candidate) {
+		this.url = candidate.url;
+		this.clusterUrl = candidate.clusterUrl;
+		this.rtt = candidate.rtt;
+		this.probes = candidate.probes;
+		this.failures = candidate.failures;
+		this.demotedUntil = candidate.demotedUntil;
+	}
+
+	/**
+	 * Gets the server url
+	 *
+	 * @return String Ortc server url
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Gets the cluster that returned the server
+	 *
+	 * @return String Cluster url or null if the server was configured directly
+	 */
+	public String getClusterUrl() {
+		return clusterUrl;
+	}
+
+	/**
+	 * Gets the smoothed TCP connect time to the server
+	 *
+	 * @return long Round trip time in milliseconds or -1 if not measured
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * Gets the number of latency probes done
+	 *
+	 * @return int Number of probes
+	 */
+	public int getProbes() {
+		return probes;
+	}
+
+	/**
+	 * Gets the consecutive connection and probe failures
+	 *
+	 * @return int Number of failures since the last success
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Gets if the server is demoted after failing repeatedly, demoted servers
+	 * are only used when every server is demoted
+	 *
+	 * @return boolean True if the server is demoted
+	 */
+	public boolean isDemoted() {
+		return demotedUntil > System.currentTimeMillis();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s rtt=%sms failures=%s%s", url, rtt, failures,
+				isDemoted() ? " demoted" : "");
+	}
+}
@@ -0,0 +1,460 @@
+/**
+ * @fileoverview This file contains the selection of the server to connect to
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ibt.ortc.api.BalancerCache;
+import ibt.ortc.api.Strings;
+
+/**
+ * Chooses the Ortc server to connect to among several clusters or servers.
+ *
+ * The servers of each cluster are resolved through the balancer cache and
+ * the TCP connect time to every server is measured in the background, once
+ * when the selection starts and then every probe interval. The probe stops
+ * after the TCP connect, the TLS and WebSocket handshakes are not part of the
+ * measure, so it ranks the network distance to the servers rather than their
+ * load. The selected server is the healthy server with the lowest smoothed
+ * round trip time, the others form a ranked fallback list for the reconnects.
+ * The server that failed the last connection is skipped by the next
+ * selection and a server failing several times in a row is demoted for a
+ * while.
+ *
+ * How to use:
+ *
+ * <pre>
+ * client.setClusterUrls(&quot;https://cluster-eu/server/ssl/2.1/&quot;, &quot;https://cluster-us/server/ssl/2.1/&quot;);
+ * client.connect(appKey, token);
+ * ...
+ * for (ServerCandidate candidate : client.getServerSelector().getRanking()) {
+ * 	System.out.println(candidate);
+ * }
+ * </pre>
+ */
+public class ServerSelector {
+	public static final int DEFAULT_PROBE_INTERVAL = 5 * 60 * 1000;
+	public static final int DEFAULT_PROBE_TIMEOUT = 3000;
+	public static final int DEFAULT_DEMOTE_AFTER = 3;
+	public static final int DEFAULT_DEMOTE_TIME = 5 * 60 * 1000;
+
+	// NOTE: weight of a new probe in the smoothed round trip time
+	private static final double RTT_WEIGHT = 0.3;
+
+	private static final ExecutorService prober = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ortc-server-probe");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final List<String> clusterUrls;
+	private final LinkedHashMap<String, ServerCandidate> candidates;
+
+	private volatile int probeInterval;
+	private volatile int probeTimeout;
+	private volatile int demoteAfter;
+	private volatile int demoteTime;
+
+	private String applicationKey;
+	// NOTE: the client the errors of the probe schedule are raised on
+	private OrtcClient client;
+	private boolean probing;
+	// NOTE: a probe chain only goes on while its generation is the current
+	// one, a stop followed by a start does not run two chains
+	private int probeGeneration;
+	private HashedWheelTimer.Timeout nextProbe;
+	private ServerCandidate lastSelection;
+	private ServerCandidate lastFailure;
+	private final AtomicLong selections;
+
+	/**
+	 * Creates a selector for the given clusters
+	 *
+	 * @param clusterUrls
+	 *            The Ortc cluster (balancer) urls
+	 */
+	public ServerSelector(String... clusterUrls) {
+		this.clusterUrls = new ArrayList<String>(clusterUrls.length);
+		for (String clusterUrl : clusterUrls) {
+			if (!Strings.isNullOrEmpty(clusterUrl)) {
+				this.clusterUrls.add(Strings.treatUrl(clusterUrl));
+			}
+		}
+		this.candidates = new LinkedHashMap<String, ServerCandidate>(16);
+		this.probeInterval = DEFAULT_PROBE_INTERVAL;
+		this.probeTimeout = DEFAULT_PROBE_TIMEOUT;
+		this.demoteAfter = DEFAULT_DEMOTE_AFTER;
+		this.demoteTime = DEFAULT_DEMOTE_TIME;
+		this.selections = new AtomicLong(0);
+	}
+
+	/**
+	 * Adds a server to the candidates, for instance another answer of a
+	 * balancer or a server without cluster
+	 *
+	 * @param url
+	 *            The Ortc server url
+	 */
+	public synchronized void addServer(String url) {
+		addCandidate(Strings.treatUrl(url), null);
+	}
+
+	private ServerCandidate addCandidate(String url, String clusterUrl) {
+		ServerCandidate candidate = candidates.get(url);
+		if (candidate == null) {
+			candidate = new ServerCandidate(url, clusterUrl);
+			candidates.put(url, candidate);
+		}
+		return candidate;
+	}
+
+	/**
+	 * Starts resolving and probing the servers in the background
+	 */
+	synchronized void start(String applicationKey, OrtcClient client) {
+		this.applicationKey = applicationKey;
+		this.client = client;
+		if (!probing) {
+			probing = true;
+			prober.execute(probeTask(++probeGeneration));
+		}
+	}
+
+	private Runnable probeTask(final int generation) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				probeAll(generation);
+			}
+		};
+	}
+
+	/**
+	 * Stops the periodic probes
+	 */
+	public synchronized void stop() {
+		probing = false;
+		probeGeneration++;
+		if (nextProbe != null) {
+			nextProbe.cancel();
+			nextProbe = null;
+		}
+	}
+
+	/**
+	 * Selects the server to connect to. Servers are resolved synchronously
+	 * only when none is known yet.
+	 *
+	 * @return String The Ortc server url
+	 * @throws IOException
+	 *             If no cluster could resolve a server
+	 */
+	String select(String applicationKey) throws IOException {
+		boolean empty;
+		synchronized (this) {
+			this.applicationKey = applicationKey;
+			empty = candidates.isEmpty();
+		}
+		if (empty) {
+			resolve(applicationKey);
+		}
+
+		synchronized (this) {
+			List<ServerCandidate> ranking = rank();
+			if (ranking.isEmpty()) {
+				throw new IOException("No Ortc server available in the configured clusters");
+			}
+			// NOTE: the server that failed the last connection is tried after
+			// the next one, even while it is not demoted yet
+			int index = ranking.size() > 1 && ranking.get(0) == lastFailure ? 1 : 0;
+			lastSelection = ranking.get(index);
+			selections.incrementAndGet();
+			return lastSelection.getUrl();
+		}
+	}
+
+	private void resolve(String applicationKey) {
+		for (String clusterUrl : clusterUrls) {
+			try {
+				String server = BalancerCache.getInstance().getServer(clusterUrl, applicationKey);
+				if (!Strings.isNullOrEmpty(server)) {
+					synchronized (this) {
+						addCandidate(Strings.treatUrl(server), clusterUrl);
+					}
+				}
+			} catch (Exception e) {
+				// NOTE: the other clusters may answer
+			}
+		}
+	}
+
+	// NOTE: healthy servers first, then by round trip time, servers not
+	// probed yet after the probed ones, in configuration order
+	private List<ServerCandidate> rank() {
+		ArrayList<ServerCandidate> ranking = new ArrayList<ServerCandidate>(candidates.values());
+		final long now = System.currentTimeMillis();
+		Collections.sort(ranking, new Comparator<ServerCandidate>() {
+			@Override
+			public int compare(ServerCandidate first, ServerCandidate second) {
+				boolean firstDemoted = first.demotedUntil > now;
+				boolean secondDemoted = second.demotedUntil > now;
+				if (firstDemoted != secondDemoted) {
+					return firstDemoted ? 1 : -1;
+				}
+				long firstRtt = first.rtt < 0 ? Long.MAX_VALUE : first.rtt;
+				long secondRtt = second.rtt < 0 ? Long.MAX_VALUE : second.rtt;
+				return firstRtt < secondRtt ? -1 : (firstRtt == secondRtt ? 0 : 1);
+			}
+		});
+		return ranking;
+	}
+
+	private void probeAll(int generation) {
+		String lApplicationKey;
+		synchronized (this) {
+			if (!probing || generation != probeGeneration) {
+				return;
+			}
+			lApplicationKey = applicationKey;
+		}
+		resolve(lApplicationKey);
+
+		List<ServerCandidate> lCandidates;
+		synchronized (this) {
+			lCandidates = new ArrayList<ServerCandidate>(candidates.values());
+		}
+		for (ServerCandidate candidate : lCandidates) {
+			long rtt = probe(candidate.getUrl());
+			synchronized (this) {
+				if (rtt < 0) {
+					fail(candidate);
+				} else {
+					candidate.rtt = candidate.rtt < 0 ? rtt
+							: Math.round(candidate.rtt * (1 - RTT_WEIGHT) + rtt * RTT_WEIGHT);
+					candidate.probes++;
+					candidate.failures = 0;
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (probing && generation == probeGeneration) {
+				final Runnable probeTask = probeTask(generation);
+				nextProbe = HashedWheelTimer.getInstance().schedule(new Runnable() {
+					@Override
+					public void run() {
+						prober.execute(probeTask);
+					}
+				}, probeInterval, client);
+			}
+		}
+	}
+
+	private long probe(String url) {
+		Socket socket = null;
+		try {
+			URI uri = new URI(url);
+			int port = uri.getPort();
+			if (port == -1) {
+				port = "https".equals(uri.getScheme()) ? 443 : 80;
+			}
+			// NOTE: resolved first so the name lookup is not measured, only
+			// the TCP connect is, no TLS or WebSocket handshake is made
+			InetAddress address = InetAddress.getByName(uri.getHost());
+
+			socket = new Socket();
+			long start = System.nanoTime();
+			socket.connect(new InetSocketAddress(address, port), probeTimeout);
+			return (System.nanoTime() - start) / 1000000;
+		} catch (URISyntaxException e) {
+			return -1;
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void fail(ServerCandidate candidate) {
+		candidate.failures++;
+		if (candidate.failures >= demoteAfter) {
+			candidate.demotedUntil = System.currentTimeMillis() + demoteTime;
+		}
+	}
+
+	/**
+	 * Records a failed connection to a server, the next selection skips it and
+	 * the balancer is asked again for the servers of its cluster
+	 */
+	synchronized void reportFailure(String url, String applicationKey) {
+		ServerCandidate candidate = url == null ? null : candidates.get(Strings.treatUrl(url));
+		if (candidate != null) {
+			fail(candidate);
+			lastFailure = candidate;
+			if (candidate.getClusterUrl() != null) {
+				BalancerCache.getInstance().markFailed(candidate.getClusterUrl(),
+						applicationKey, url);
+			}
+		}
+	}
+
+	/**
+	 * Records a successful connection to a server
+	 */
+	synchronized void reportSuccess(String url) {
+		ServerCandidate candidate = url == null ? null : candidates.get(Strings.treatUrl(url));
+		if (candidate != null) {
+			candidate.failures = 0;
+			candidate.demotedUntil = 0;
+			if (lastFailure == candidate) {
+				lastFailure = null;
+			}
+		}
+	}
+
+	/**
+	 * Gets the servers in the order of their health and round trip time, the
+	 * first one is used for the next connection unless it failed the last
+	 * one, the others are the fallbacks
+	 *
+	 * @return List Copies of the ranked candidates
+	 */
+	public synchronized List<ServerCandidate> getRanking() {
+		List<ServerCandidate> ranking = rank();
+		ArrayList<ServerCandidate> result = new ArrayList<ServerCandidate>(ranking.size());
+		for (ServerCandidate candidate : ranking) {
+			result.add(new ServerCandidate(candidate));
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the server selected for the last connection
+	 *
+	 * @return ServerCandidate Copy of the selected candidate or null if no
+	 *         server was selected yet
+	 */
+	public synchronized ServerCandidate getLastSelection() {
+		return lastSelection == null ? null : new ServerCandidate(lastSelection);
+	}
+
+	/**
+	 * Gets the number of selections made
+	 *
+	 * @return long Number of selections
+	 */
+	public long getSelections() {
+		return selections.get();
+	}
+
+	/**
+	 * Gets the configured cluster urls
+	 *
+	 * @return List The cluster urls
+	 */
+	public List<String> getClusterUrls() {
+		return Collections.unmodifiableList(clusterUrls);
+	}
+
+	/**
+	 * Gets the interval between latency probes
+	 *
+	 * @return int Interval in milliseconds
+	 */
+	public int getProbeInterval() {
+		return probeInterval;
+	}
+
+	/**
+	 * Sets the interval between latency probes
+	 *
+	 * @param probeInterval
+	 *            Interval in milliseconds (default 5 minutes)
+	 */
+	public void setProbeInterval(int probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Gets the connect timeout of a latency probe
+	 *
+	 * @return int Timeout in milliseconds
+	 */
+	public int getProbeTimeout() {
+		return probeTimeout;
+	}
+
+	/**
+	 * Sets the connect timeout of a latency probe, a server not answering in
+	 * time counts as a failure
+	 *
+	 * @param probeTimeout
+	 *            Timeout in milliseconds (default 3000)
+	 */
+	public void setProbeTimeout(int probeTimeout) {
+		this.probeTimeout = probeTimeout;
+	}
+
+	/**
+	 * Gets the number of consecutive failures that demote a server
+	 *
+	 * @return int Number of failures
+	 */
+	public int getDemoteAfter() {
+		return demoteAfter;
+	}
+
+	/**
+	 * Sets the number of consecutive failures that demote a server
+	 *
+	 * @param demoteAfter
+	 *            Number of failures (default 3)
+	 */
+	public void setDemoteAfter(int demoteAfter) {
+		this.demoteAfter = demoteAfter;
+	}
+
+	/**
+	 * Gets how long a server stays demoted
+	 *
+	 * @return int Time in milliseconds
+	 */
+	public int getDemoteTime() {
+		return demoteTime;
+	}
+
+	/**
+	 * Sets how long a server stays demoted
+	 *
+	 * @param demoteTime
+	 *            Time in milliseconds (default 5 minutes)
+	 */
+	public void setDemoteTime(int demoteTime) {
+		this.demoteTime = demoteTime;
+	}
+}
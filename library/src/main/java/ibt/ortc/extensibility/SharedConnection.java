@@ -0,0 +1,354 @@
+/**
+ * @fileoverview This file contains the physical connection of the shared clients
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One physical client multiplexed by the shared clients with the same
+ * server, application key, authentication token, metadata and announcement
+ * sub channel.
+ *
+ * The physical client is connected by the first shared client and
+ * disconnected when the last one disconnects. A channel is subscribed once,
+ * while at least one shared client subscribes it, and its messages are
+ * handed to each of them. The events of the physical client are raised on
+ * every shared client, which runs them on its own dispatcher.
+ */
+final class SharedConnection {
+	private static final HashMap<String, SharedConnection> connections = new HashMap<String, SharedConnection>(4);
+
+	/**
+	 * Handler of the physical subscriptions, gets the message id so the
+	 * shared clients filter the duplicates like the physical client
+	 */
+	interface Receiver {
+		void receive(String channel, String messageId, String message, Object filtered);
+	}
+
+	private abstract class FilteredReceiver implements OnMessageWithFilter, Receiver {
+	}
+
+	private abstract class PlainReceiver implements OnMessage, Receiver {
+	}
+
+	private static final class SharedChannel {
+		final CopyOnWriteArrayList<SharedOrtcClient> subscribers = new CopyOnWriteArrayList<SharedOrtcClient>();
+		final boolean withFilter;
+		final String filter;
+
+		SharedChannel(boolean withFilter, String filter) {
+			this.withFilter = withFilter;
+			this.filter = withFilter ? filter : null;
+		}
+
+		boolean isCompatible(boolean withFilter, String filter) {
+			return this.withFilter == withFilter
+					&& (!withFilter || (filter == null ? this.filter == null : filter.equals(this.filter)));
+		}
+	}
+
+	private final String key;
+	final OrtcClient physical;
+	private final CopyOnWriteArrayList<SharedOrtcClient> clients;
+	private final HashMap<String, SharedChannel> channels;
+
+	private SharedConnection(String key, OrtcClient physical) {
+		this.key = key;
+		this.physical = physical;
+		this.clients = new CopyOnWriteArrayList<SharedOrtcClient>();
+		this.channels = new HashMap<String, SharedChannel>(16);
+	}
+
+	private static String keyOf(OrtcFactory factory, SharedOrtcClient client) {
+		return String.format("%s|%s|%s|%s|%s|%s", factory.getClass().getName(),
+				client.isClusterUrl() ? client.clusterUrl : client.url,
+				client.applicationKey, client.authenticationToken,
+				client.connectionMetadata, client.announcementSubChannel);
+	}
+
+	/**
+	 * Attaches a client to the physical connection of its parameters,
+	 * connecting it when the client is the first one
+	 */
+	static SharedConnection attach(OrtcFactory factory, SharedOrtcClient client) {
+		String key = keyOf(factory, client);
+		SharedConnection connection;
+		boolean isFirst = false;
+		synchronized (connections) {
+			connection = connections.get(key);
+			if (connection == null) {
+				OrtcClient physical = factory.createClient();
+				if (client.isClusterUrl()) {
+					physical.setClusterUrl(client.clusterUrl);
+				} else {
+					physical.setUrl(client.url);
+				}
+				physical.setConnectionMetadata(client.connectionMetadata);
+				physical.setAnnouncementSubChannel(client.announcementSubChannel);
+				physical.setConnectionTimeout(client.connectionTimeout);
+				connection = new SharedConnection(key, physical);
+				connection.listen();
+				connections.put(key, connection);
+				isFirst = true;
+			}
+			connection.clients.add(client);
+		}
+
+		if (isFirst) {
+			connection.physical.connect(client.applicationKey, client.authenticationToken);
+		} else if (connection.physical.getIsConnected()) {
+			client.onSharedConnected(connection.physical, false);
+		}
+		return connection;
+	}
+
+	/**
+	 * Detaches a client, releasing its channels, and disconnects the physical
+	 * client when no client is left
+	 */
+	void detach(SharedOrtcClient client) {
+		boolean isLast;
+		synchronized (connections) {
+			clients.remove(client);
+			isLast = clients.isEmpty();
+			if (isLast) {
+				connections.remove(key);
+			}
+		}
+
+		ArrayList<String> released = new ArrayList<String>(4);
+		synchronized (this) {
+			for (Map.Entry<String, SharedChannel> entry : channels.entrySet()) {
+				if (entry.getValue().subscribers.remove(client) && entry.getValue().subscribers.isEmpty()) {
+					released.add(entry.getKey());
+				}
+			}
+			for (String channel : released) {
+				channels.remove(channel);
+			}
+		}
+
+		if (isLast) {
+			physical.sharedConnection = null;
+			ConnectionState current = physical.getConnectionState();
+			if (current != ConnectionState.Disconnected && current != ConnectionState.Disconnecting) {
+				physical.disconnect();
+			}
+		} else {
+			for (String channel : released) {
+				unsubscribePhysical(channel);
+			}
+		}
+	}
+
+	/**
+	 * Adds a subscriber to a channel, subscribing it on the physical client
+	 * for the first subscriber
+	 *
+	 * @return boolean False if the channel is shared with another filter
+	 */
+	boolean subscribe(SharedOrtcClient client, String channel, boolean withFilter, String filter) {
+		SharedChannel shared;
+		boolean isFirst = false;
+		synchronized (this) {
+			shared = channels.get(channel);
+			if (shared == null) {
+				shared = new SharedChannel(withFilter, filter);
+				channels.put(channel, shared);
+				isFirst = true;
+			} else if (!shared.isCompatible(withFilter, filter)) {
+				return false;
+			}
+			shared.subscribers.addIfAbsent(client);
+		}
+
+		ChannelSubscription subscription = physical.subscribedChannels.get(channel);
+		if (isFirst && subscription == null) {
+			subscribePhysical(channel, shared);
+		} else if (subscription != null && subscription.isSubscribed()) {
+			client.raiseOrtcEvent(EventEnum.OnSubscribed, client, channel);
+		}
+		// NOTE: otherwise subscribed when the pending subscribe or
+		// unsubscribe of the physical client completes
+		return true;
+	}
+
+	/**
+	 * Removes a subscriber of a channel, unsubscribing it on the physical
+	 * client after the last subscriber
+	 */
+	void unsubscribe(SharedOrtcClient client, String channel) {
+		boolean isLast = false;
+		synchronized (this) {
+			SharedChannel shared = channels.get(channel);
+			if (shared != null && shared.subscribers.remove(client) && shared.subscribers.isEmpty()) {
+				channels.remove(channel);
+				isLast = true;
+			}
+		}
+		if (isLast) {
+			unsubscribePhysical(channel);
+		}
+	}
+
+	private void unsubscribePhysical(String channel) {
+		ChannelSubscription subscription = physical.subscribedChannels.get(channel);
+		if (subscription != null && subscription.isSubscribed()) {
+			physical.unsubscribe(channel);
+		}
+	}
+
+	private void subscribePhysical(final String channel, SharedChannel shared) {
+		if (shared.withFilter) {
+			physical.subscribeWithFilter(channel, true, shared.filter, new FilteredReceiver() {
+				@Override
+				public void run(OrtcClient sender, String channel, boolean filtered, String message) {
+					deliver(channel, null, message, filtered);
+				}
+
+				@Override
+				public void receive(String channel, String messageId, String message, Object filtered) {
+					deliver(channel, messageId, message, filtered == null ? Boolean.FALSE : filtered);
+				}
+			});
+		} else {
+			physical.subscribe(channel, true, new PlainReceiver() {
+				@Override
+				public void run(OrtcClient sender, String channel, String message) {
+					deliver(channel, null, message, null);
+				}
+
+				@Override
+				public void receive(String channel, String messageId, String message, Object filtered) {
+					deliver(channel, messageId, message, null);
+				}
+			});
+		}
+	}
+
+	private void deliver(String channel, String messageId, String message, Object filtered) {
+		SharedChannel shared;
+		synchronized (this) {
+			shared = channels.get(channel);
+		}
+		if (shared == null) {
+			return;
+		}
+		for (SharedOrtcClient client : shared.subscribers) {
+			if (filtered == null) {
+				client.raiseOrtcEvent(EventEnum.OnReceived, channel, message, messageId, -1, -1);
+			} else {
+				client.raiseOrtcEvent(EventEnum.OnReceived, channel, message, messageId, -1, -1, filtered);
+			}
+		}
+	}
+
+	void onPublishAck(String messageId, String seqId) {
+		for (SharedOrtcClient client : clients) {
+			client.onPublishAck(messageId, seqId);
+		}
+	}
+
+	int getClientsCount() {
+		return clients.size();
+	}
+
+	synchronized int getSubscribersCount(String channel) {
+		SharedChannel shared = channels.get(channel);
+		return shared == null ? 0 : shared.subscribers.size();
+	}
+
+	private List<SharedOrtcClient> subscribersOf(String channel) {
+		SharedChannel shared;
+		synchronized (this) {
+			shared = channels.get(channel);
+		}
+		return shared == null ? new ArrayList<SharedOrtcClient>(0) : shared.subscribers;
+	}
+
+	// NOTE: the handlers of the physical client run inline on its reader
+	private void listen() {
+		physical.sharedConnection = this;
+		physical.onConnected = new OnConnected() {
+			@Override
+			public void run(OrtcClient sender) {
+				for (SharedOrtcClient client : clients) {
+					client.onSharedConnected(physical, false);
+				}
+			}
+		};
+		physical.onReconnected = new OnReconnected() {
+			@Override
+			public void run(OrtcClient sender) {
+				for (SharedOrtcClient client : clients) {
+					client.onSharedConnected(physical, true);
+				}
+			}
+		};
+		physical.onDisconnected = new OnDisconnected() {
+			@Override
+			public void run(OrtcClient sender) {
+				for (SharedOrtcClient client : clients) {
+					client.onSharedDisconnected();
+				}
+			}
+		};
+		physical.onReconnecting = new OnReconnecting() {
+			@Override
+			public void run(OrtcClient sender) {
+				for (SharedOrtcClient client : clients) {
+					client.onSharedReconnecting();
+				}
+			}
+		};
+		physical.onException = new OnException() {
+			@Override
+			public void run(OrtcClient sender, Exception error) {
+				for (SharedOrtcClient client : clients) {
+					client.raiseOrtcEvent(EventEnum.OnException, client, error);
+				}
+			}
+		};
+		physical.onSubscribed = new OnSubscribed() {
+			@Override
+			public void run(OrtcClient sender, String channel) {
+				List<SharedOrtcClient> subscribers = subscribersOf(channel);
+				if (subscribers.isEmpty()) {
+					// NOTE: every subscriber left while the subscribe was pending
+					physical.unsubscribe(channel);
+				}
+				for (SharedOrtcClient client : subscribers) {
+					if (client.subscribedChannels.containsKey(channel)) {
+						client.raiseOrtcEvent(EventEnum.OnSubscribed, client, channel);
+					}
+				}
+			}
+		};
+		physical.onUnsubscribed = new OnUnsubscribed() {
+			@Override
+			public void run(OrtcClient sender, final String channel) {
+				final SharedChannel shared;
+				synchronized (SharedConnection.this) {
+					shared = channels.get(channel);
+				}
+				if (shared != null && !shared.subscribers.isEmpty()) {
+					// NOTE: subscribed again while the unsubscribe was pending,
+					// once the physical client removed the old subscription
+					HashedWheelTimer.getInstance().schedule(new Runnable() {
+						@Override
+						public void run() {
+							subscribePhysical(channel, shared);
+						}
+					}, 0, physical);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * @fileoverview This file contains the client sharing a physical connection
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ibt.ortc.api.Strings;
+import ibt.ortc.extensibility.exception.OrtcAlreadyConnectedException;
+import ibt.ortc.extensibility.exception.OrtcEmptyFieldException;
+import ibt.ortc.extensibility.exception.OrtcNotConnectedException;
+
+/**
+ * Logical Ortc client multiplexed with the other shared clients of the same
+ * connection parameters over a single physical client, created by a
+ * {@link SharedOrtcFactory}.
+ *
+ * N shared clients cost one socket and one set of threads. Each shared
+ * client keeps its own handlers, subscriptions, filters and dispatcher, a
+ * channel subscribed by several of them is subscribed once on the server.
+ * The physical client reconnects for all of them, the connection settings
+ * (url, metadata, announcement sub channel, connection timeout) are the
+ * ones of the first shared client. Push notifications and buffered
+ * subscriptions (with a subscriberId) are not supported.
+ */
+public class SharedOrtcClient extends OrtcClient {
+	private final OrtcFactory factory;
+	private volatile SharedConnection connection;
+	// NOTE: the physical client and the attach can both report the same
+	// connection, only the first report raises OnConnected
+	private final AtomicBoolean isConnected;
+
+	/**
+	 * Creates a shared client
+	 * @param factory Factory of the physical clients
+	 */
+	public SharedOrtcClient(OrtcFactory factory) {
+		super();
+		this.factory = factory;
+		this.isConnected = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Attaches the client to the physical client of its connection
+	 * parameters, connecting it if this is the first shared client
+	 *
+	 * @param applicationKey
+	 *            Application Key provided by the Ortc Services
+	 * @param authenticationToken
+	 *            Authentication Token representing the connection
+	 */
+	@Override
+	public void connect(String applicationKey, String authenticationToken) {
+		if (connection != null) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcAlreadyConnectedException());
+		} else if (Strings.isNullOrEmpty(clusterUrl) && Strings.isNullOrEmpty(url)) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcEmptyFieldException("URL"));
+		} else if (Strings.isNullOrEmpty(applicationKey)) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcEmptyFieldException("Application Key"));
+		} else if (Strings.isNullOrEmpty(authenticationToken)) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcEmptyFieldException("Authentication Token"));
+		} else if (!beginConnectAttempt()) {
+			raiseOrtcEvent(EventEnum.OnException, this,
+					new OrtcNotConnectedException("Already trying to connect"));
+		} else {
+			this.applicationKey = applicationKey;
+			this.authenticationToken = authenticationToken;
+			this.connection = SharedConnection.attach(factory, this);
+		}
+	}
+
+	/**
+	 * Detaches the client, the physical client is disconnected with the last
+	 * shared client
+	 */
+	@Override
+	public void disconnect() {
+		SharedConnection lConnection = connection;
+		if (lConnection == null) {
+			raiseOrtcEvent(EventEnum.OnException, this, new OrtcNotConnectedException());
+			return;
+		}
+		connection = null;
+		isConnected.set(false);
+		lConnection.detach(this);
+		stopHeartBeatInterval();
+		setConnectionState(ConnectionState.Disconnecting);
+		raiseOrtcEvent(EventEnum.OnDisconnected, this);
+	}
+
+	/**
+	 * Gets the number of shared clients attached to the physical client of
+	 * this client
+	 *
+	 * @return int Number of shared clients, 0 if this client is not connected
+	 */
+	public int getSharedClientsCount() {
+		SharedConnection lConnection = connection;
+		return lConnection == null ? 0 : lConnection.getClientsCount();
+	}
+
+	@Override
+	protected void raiseOrtcEvent(EventEnum eventToRaise, Object... args) {
+		if (eventToRaise == EventEnum.OnReconnecting) {
+			// NOTE: the physical client reconnects, its attempts raise the
+			// reconnecting handler (see onSharedReconnecting)
+			stopHeartBeatInterval();
+			return;
+		}
+		super.raiseOrtcEvent(eventToRaise, args);
+	}
+
+	void onSharedConnected(OrtcClient physical, boolean isReconnected) {
+		if (!isConnected.compareAndSet(false, true)) {
+			return;
+		}
+		// NOTE: a reconnect of the physical client is an attempt of this client
+		if (!compareAndSetState(ConnectionState.Reconnecting, ConnectionState.Connecting)
+				&& getConnectionState() != ConnectionState.Connecting) {
+			isConnected.set(false);
+			return;
+		}
+		this.url = physical.url;
+		this.channelsPermissions = physical.channelsPermissions;
+		raiseOrtcEvent(EventEnum.OnConnected, this);
+	}
+
+	void onSharedDisconnected() {
+		isConnected.set(false);
+		if (onConnectionLost()) {
+			raiseOrtcEvent(EventEnum.OnDisconnected, this);
+		}
+	}
+
+	void onSharedReconnecting() {
+		final OnReconnecting handler = onReconnecting;
+		if (handler != null && getConnectionState() == ConnectionState.Reconnecting) {
+			final OrtcClient sender = this;
+			dispatchEvent(new Runnable() {
+				@Override
+				public void run() {
+					handler.run(sender);
+				}
+			});
+		}
+	}
+
+	private void rejectSubscription(String channel, String error) {
+		subscribedChannels.remove(channel);
+		raiseOrtcEvent(EventEnum.OnException, this, new Exception(error));
+	}
+
+	@Override
+	protected void connect() {
+		// NOTE: connected by the shared connection
+	}
+
+	@Override
+	protected void disconnectIntern() {
+		// NOTE: disconnected by the shared connection
+	}
+
+	@Override
+	protected void publish(String channel, String message, int ttl,
+			String messagePartIdentifier, String permission) {
+		SharedConnection lConnection = connection;
+		if (lConnection != null) {
+			lConnection.physical.publish(channel, message, ttl, messagePartIdentifier, permission);
+		}
+	}
+
+	@Override
+	protected void send(String channel, String message,
+			String messagePartIdentifier, String permission) {
+		SharedConnection lConnection = connection;
+		if (lConnection != null) {
+			lConnection.physical.send(channel, message, messagePartIdentifier, permission);
+		}
+	}
+
+	@Override
+	protected void subscribe(String channel, String permission,
+			boolean withNotification, boolean withFilter, String filter) {
+		SharedConnection lConnection = connection;
+		if (lConnection == null) {
+			subscribedChannels.remove(channel);
+		} else if (withNotification) {
+			rejectSubscription(channel, String.format(
+					"Push notifications are not supported by a shared client (channel %s)", channel));
+		} else if (!lConnection.subscribe(this, channel, withFilter, filter)) {
+			rejectSubscription(channel, String.format(
+					"The channel %s is shared with another filter", channel));
+		}
+	}
+
+	@Override
+	protected void _subscribeWithOptions(String channel, String permission,
+			boolean subscribeOnReconnected, boolean withNotifications,
+			String filter, String subscriberId) {
+		if (subscriberId != null) {
+			rejectSubscription(channel, String.format(
+					"Buffered subscriptions are not supported by a shared client (channel %s)", channel));
+		} else {
+			subscribe(channel, permission, withNotifications, !Strings.isNullOrEmpty(filter), filter);
+		}
+	}
+
+	@Override
+	protected void sendAck(String channel, String messageId, String seqId, String asAllParts) {
+		// NOTE: the messages handed by the shared connection have no seqId
+	}
+
+	@Override
+	protected void unsubscribe(String channel, boolean isValid,
+			boolean isWithNotification) {
+		SharedConnection lConnection = connection;
+		if (lConnection != null) {
+			lConnection.unsubscribe(this, channel);
+		}
+		raiseOrtcEvent(EventEnum.OnUnsubscribed, this, channel);
+	}
+
+	@Override
+	protected void sendHeartbeat() {
+		// NOTE: the physical client sends the heartbeats
+	}
+}
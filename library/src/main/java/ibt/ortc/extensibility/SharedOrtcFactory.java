@@ -0,0 +1,40 @@
+/**
+ * @fileoverview This file contains the factory of the shared clients
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Factory of clients sharing one physical connection per server,
+ * application key, authentication token, metadata and announcement sub
+ * channel (see {@link SharedOrtcClient}).
+ *
+ * How to use:
+ * <pre>
+ * OrtcFactory factory = new SharedOrtcFactory(new Ortc().loadOrtcFactory("IbtRealtimeSJ"));
+ * OrtcClient chat = factory.createClient();
+ * OrtcClient feed = factory.createClient();
+ * // chat and feed connected with the same parameters use one socket
+ * </pre>
+ */
+public class SharedOrtcFactory implements OrtcFactory {
+	private final OrtcFactory factory;
+
+	/**
+	 * Creates a factory of shared clients
+	 * @param factory Factory of the physical clients, EX: the IbtRealtimeSJ factory
+	 */
+	public SharedOrtcFactory(OrtcFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Creates a new shared client, connected through the physical client of
+	 * its connection parameters
+	 * @return OrtcClient Shared client instance
+	 */
+	@Override
+	public OrtcClient createClient() {
+		return new SharedOrtcClient(factory);
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * @fileoverview This file contains a message read from the inbound message store
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+/**
+ * Message received in a channel and kept by the {@link InboundMessageStore}
+ */
+public final class StoredMessage {
+	private final String channel;
+	private final long seqId;
+	private final long timestamp;
+	private final String message;
+
+	StoredMessage(String channel, long seqId, long timestamp, String message) {
+		this.channel = channel;
+		this.seqId = seqId;
+		this.timestamp = timestamp;
+		this.message = message;
+	}
+
+	/**
+	 * Gets the channel the message was received in
+	 *
+	 * @return String Channel name
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Gets the sequence identifier of the message
+	 *
+	 * @return long The seqId
+	 */
+	public long getSeqId() {
+		return seqId;
+	}
+
+	/**
+	 * Gets when the message was received
+	 *
+	 * @return long Time in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Gets the content of the message
+	 *
+	 * @return String The message
+	 */
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * @fileoverview This file contains the implementation of the inbound queue overflow exception
+ * @author ORTC team members (ortc@ibt.pt) 
+ */
+package ibt.ortc.extensibility.exception;
+
+public class OrtcQueueOverflowException extends Exception {	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4211385064727903512L;
+
+	public OrtcQueueOverflowException(String channel, int capacity){
+		super(String.format("The inbound queue of the channel %s is full (%s messages)", channel, capacity));
+	}
+}
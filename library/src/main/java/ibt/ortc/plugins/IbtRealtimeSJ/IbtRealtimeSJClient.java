@@ -1,21 +1,21 @@
 package ibt.ortc.plugins.IbtRealtimeSJ;
 
-import android.os.CountDownTimer;
-
 import org.json.JSONException;
 import org.json.simple.JSONValue;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import ibt.ortc.api.Strings;
+import ibt.ortc.extensibility.ClientMetrics;
+import ibt.ortc.extensibility.ConnectionState;
 import ibt.ortc.extensibility.EventEnum;
-import ibt.ortc.extensibility.OnPublishResult;
+import ibt.ortc.extensibility.HashedWheelTimer;
+import ibt.ortc.extensibility.MessageAck;
 import ibt.ortc.extensibility.OrtcClient;
 import ibt.ortc.extensibility.exception.OrtcNotConnectedException;
 import ibt.ortc.plugins.IbtRealtimeSJ.OrtcServerErrorException.OrtcServerErrorOperation;
@@ -25,12 +25,10 @@ import ibt.ortc.plugins.websocket.WebSocketException;
 import ibt.ortc.plugins.websocket.WebSocketMessage;
 
 public final class IbtRealtimeSJClient extends OrtcClient {
-  private static final Integer HEARTBEAT_TIMEOUT = 30;
-  
 	private WebSocket socket;
 	
-	private Thread heartBeatThread;	
-	private Date lastHeartBeat;
+	private HashedWheelTimer.Timeout heartBeatTimeout;
+	private volatile ClientMetrics.ReconnectCause closeCause;
 	private String sessionId = "";
 	private long sessionIdTimesamp = 0;
 	private final int SESSION_TIME = 30;
@@ -66,8 +64,7 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 						(OrtcClient) this,
 						new OrtcNotConnectedException(
 								"Could not connect. Check if the server is running correctly."));
-				if (isConnecting || isReconnecting) {
-					isReconnecting = true;
+				if (onConnectionLost(ClientMetrics.ReconnectCause.ConnectFailed)) {
 					raiseOrtcEvent(EventEnum.OnReconnecting, (OrtcClient) this);
 				}
 			}
@@ -75,28 +72,33 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 	}
 	
 	private void initializeHeartBeatThread(){
-	  if(heartBeatThread != null){
-	    heartBeatThread.interrupt();
+	  if(heartBeatTimeout != null){
+	    heartBeatTimeout.cancel();
 	  }
-	  
-	  heartBeatThread = new Thread(new Runnable() {      
+	  scheduleLivenessCheck(livenessTimeout * 1000L);
+	}
+
+	// NOTE: checks when the liveness timeout of the last received data
+	// elapses, a dead connection is closed within one timer tick
+	private void scheduleLivenessCheck(long delay){
+	  heartBeatTimeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
       @Override
       public void run() {
-        while(isConnected){
-          try {
-            Thread.sleep(HEARTBEAT_TIMEOUT*1000);
-            Date currentDate = new Date();
-            if(lastHeartBeat == null || ((currentDate.getTime() - lastHeartBeat.getTime())/1000 > HEARTBEAT_TIMEOUT)){
-              try {
-                socket.close(true);
-              } catch (WebSocketException e) {}
-            }            
-          } catch (InterruptedException e) { }
+        if(getIsConnected()){
+          long timeout = livenessTimeout * 1000L;
+          long silence = System.currentTimeMillis() - lastInbound;
+          if(silence >= timeout){
+            getMetrics().onHeartbeatMissed();
+            closeCause = ClientMetrics.ReconnectCause.HeartbeatMissed;
+            try {
+              socket.close(true);
+            } catch (WebSocketException e) {}
+          } else {
+            scheduleLivenessCheck(timeout - silence);
+          }
         }
       }
-    });
-	  
-	  heartBeatThread.start();
+    }, delay, this);
 	}
 
 	private void opAck(String message){
@@ -104,14 +106,7 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 
         if (json != null && json.has("m") && json.has("seq")){
             try {
-                HashMap pendingMsg = (HashMap)pendingPublishMessages.get((String)json.get("m"));
-                CountDownTimer timeout = (CountDownTimer)pendingMsg.get("timeout");
-                timeout.cancel();
-
-                OnPublishResult callback = (OnPublishResult)pendingMsg.get("callback");
-                callback.run(null, (String)json.get("seq"));
-
-                pendingPublishMessages.remove((String)json.get("m"));
+                onPublishAck((String)json.get("m"), (String)json.get("seq"));
             } catch (JSONException e) {
                 e.printStackTrace();
             }
@@ -131,16 +126,23 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 				try {
 					String message = socketMessage.getText();
 					//message = message.replace("\\\"", "\"");
-					lastHeartBeat = new Date();
+					onInboundTraffic();
+					ClientMetrics metrics = getMetrics();
+					metrics.onFrameReceived(socketMessage.getLength());
 					if ("h".equals(message)) {
-						//lastHeartBeat = new Date();
+						// NOTE: server heartbeat, only refreshes the liveness
 					} else {
 						if ("o".equals(message)) {
 							performValidate();
 						} else {
 
+							boolean timed = metrics != ClientMetrics.NONE;
+							long start = timed ? System.nanoTime() : 0;
 							OrtcMessage ortcMessage = OrtcMessage
 									.parseMessage(message);
+							if (timed) {
+								metrics.onParsed(System.nanoTime() - start);
+							}
 							OrtcOperation operation = ortcMessage
 									.getOperation();
 
@@ -179,18 +181,21 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 
 			@Override
 			public void onClose() {
-				if (heartBeatThread != null)
-					heartBeatThread.interrupt();
-				isReconnecting = false;
-				raiseOrtcEvent(EventEnum.OnDisconnected, sender);
+				if (heartBeatTimeout != null)
+					heartBeatTimeout.cancel();
+				// NOTE: a close not asked by the client is a lost connection
+				if (getConnectionState() == ConnectionState.Disconnecting || onConnectionLost()) {
+					raiseOrtcEvent(EventEnum.OnDisconnected, sender);
+				}
 			}
 
 			@Override
 			public void onForcedClose() {
-				if (heartBeatThread != null)
-					heartBeatThread.interrupt();
-				if (!isReconnecting) {
-					isReconnecting = true;
+				if (heartBeatTimeout != null)
+					heartBeatTimeout.cancel();
+				ClientMetrics.ReconnectCause cause = closeCause;
+				closeCause = null;
+				if (onConnectionLost(cause == null ? ClientMetrics.ReconnectCause.ConnectionLost : cause)) {
 					raiseOrtcEvent(EventEnum.OnDisconnected, sender);
 				}
 			}
@@ -205,6 +210,12 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 
 			}
 
+			@Override
+			public void onFrameSent(int bytes) {
+				// NOTE: the UTF-8 length of the payload, as the received frames
+				getMetrics().onFrameSent(bytes);
+			}
+
 			@Override
 			public void onException(Exception error) {
 				raiseOrtcEvent(EventEnum.OnException, sender, error);
@@ -217,7 +228,9 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 				.isNullOrEmpty(this.announcementSubChannel) ? ""
 				: this.announcementSubChannel;
 		String lSessionId = this.getSessionId();
-		String heartbeatDetails = heartbeatActive ? ";" + heartbeatTime + ";" + heartbeatFails + ";" : "";
+		// NOTE: the adaptive heartbeat may stay idle up to the maximum time
+		int lHeartbeatTime = getAdaptiveHeartbeat() ? heartbeatMaxTime : heartbeatTime;
+		String heartbeatDetails = heartbeatActive ? ";" + lHeartbeatTime + ";" + heartbeatFails + ";" : "";
 		String validateMessage = String.format("validate;%s;%s;%s;%s;%s%s",
 				this.applicationKey, this.authenticationToken,
 				lAnnouncementSubChannel, lSessionId,
@@ -242,6 +255,11 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 		long now = System.currentTimeMillis();
 
 		long minutes = TimeUnit.MILLISECONDS.toMinutes(now - this.sessionIdTimesamp);
+		if (!this.sessionId.equals("") && isReconnectAttempt() && getResumeSubscriptions()) {
+			// NOTE: the resumed subscriptions belong to the current session
+			this.sessionIdTimesamp = now;
+			return this.sessionId;
+		}
 		if (this.sessionId.equals("") || minutes >= SESSION_TIME)
 			return this.generateSessionId();
 
@@ -311,6 +329,9 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 			case Send_MaxSize:
 				messageMaxSize();
 				break;
+			case Ack:
+				fallbackToPerMessageAcks();
+				break;
 			}
 			} else {
 				//System.out.println("ser err: " + serverError.getMessage());
@@ -353,9 +374,6 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 
 	@Override
 	protected void disconnectIntern() {
-		this.isConnecting = false;
-		this.isDisconnecting = true;			
-		this.isReconnecting = false;
 		try {
 			socket.close(false);
 		} catch (WebSocketException e) {
@@ -394,14 +412,43 @@ public final class IbtRealtimeSJClient extends OrtcClient {
         sendMessage(subscribeMessage);
     }
 
+    @Override
+    protected void sendAcks(String channel, List<MessageAck> acks){
+        StringBuilder entries = new StringBuilder(acks.size() * 24);
+        for (MessageAck ack : acks) {
+            if (entries.length() > 0) {
+                entries.append(',');
+            }
+            entries.append(ack.getMessageId()).append(':').append(ack.getSeqId())
+                    .append(':').append(ack.isAllParts() ? '1' : '0');
+        }
+        String acksMessage = String.format("acks;%s;%s;%s",
+                this.applicationKey, channel, entries);
+        sendMessage(acksMessage);
+    }
+
+    @Override
+    protected void sendCumulativeAck(String channel, MessageAck ack){
+        String ackMessage = String.format("ackc;%s;%s;%s;%s",
+                this.applicationKey, channel, ack.getMessageId(), ack.getSeqId());
+        sendMessage(ackMessage);
+    }
+
 	@Override
 	protected void _subscribeWithOptions(String channel, String permission, boolean subscribeOnReconnected, boolean withNotifications,
                                          String filter, String subscriberId){
-        String subscribeMessage = String.format("subscribeoptions;%s;%s;%s;%s;%s;%s;%s",
+        _subscribeWithOptions(channel, permission, subscribeOnReconnected, withNotifications, filter, subscriberId, null);
+	}
+
+	@Override
+	protected void _subscribeWithOptions(String channel, String permission, boolean subscribeOnReconnected, boolean withNotifications,
+                                         String filter, String subscriberId, String fromSeqId){
+        String subscribeMessage = String.format("subscribeoptions;%s;%s;%s;%s;%s;%s;%s%s",
                 this.applicationKey, this.authenticationToken, channel, subscriberId,
                 (withNotifications ? String.format("%s;GCM", this.registrationId) : ""),
                 permission,
-                String.format("%s", (filter == null?"":filter)));
+                String.format("%s", (filter == null?"":filter)),
+                (fromSeqId == null ? "" : String.format(";%s", fromSeqId)));
         sendMessage(subscribeMessage);
 	}
 
@@ -418,7 +465,10 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 
 	private void sendMessage(String message) {
 		try {
-			socket.send(String.format("\"%s\"", message));
+			String frame = String.format("\"%s\"", message);
+			socket.send(frame);
+			onOutboundTraffic();
+			reportOutboundQueue();
 		} catch (WebSocketException e) {
 			raiseOrtcEvent(EventEnum.OnException, (OrtcClient) this, e);
 		}
@@ -446,6 +496,12 @@ public final class IbtRealtimeSJClient extends OrtcClient {
 		return lMessage.replace("\\", "\\\\").replace("\"", "\\\"");
 	}
 
+	@Override
+	protected int getSendQueueDepth() {
+		WebSocket lSocket = socket;
+		return lSocket == null ? 0 : lSocket.getSendQueueDepth();
+	}
+
 	@Override
 	protected void sendHeartbeat() {
 		if(heartbeatActive){
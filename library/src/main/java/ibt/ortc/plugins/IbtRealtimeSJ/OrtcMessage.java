@@ -78,6 +78,8 @@ public class OrtcMessage {
         errorOperationIndex.put("subscribe_maxsize", OrtcServerErrorException.OrtcServerErrorOperation.Subscribe_MaxSize);
         errorOperationIndex.put("unsubscribe_maxsize", OrtcServerErrorException.OrtcServerErrorOperation.Unsubscribe_MaxSize);
         errorOperationIndex.put("send_maxsize", OrtcServerErrorException.OrtcServerErrorOperation.Send_MaxSize);
+        errorOperationIndex.put("acks", OrtcServerErrorException.OrtcServerErrorOperation.Ack);
+        errorOperationIndex.put("ackc", OrtcServerErrorException.OrtcServerErrorOperation.Ack);
     }
 
     public OrtcMessage(OrtcOperation operation, String message, String messageChannel, String messageId, int messagePart, int messageTotalParts, boolean isfiltered, String seqId) {
@@ -16,7 +16,8 @@ public class OrtcServerErrorException extends Exception {
         Subscribe,
         Subscribe_MaxSize,
         Unsubscribe_MaxSize,
-        Send_MaxSize
+        Send_MaxSize,
+        Ack
     }
 
     private OrtcServerErrorOperation operation;
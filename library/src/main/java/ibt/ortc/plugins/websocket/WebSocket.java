@@ -21,6 +21,7 @@ import android.util.Log;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.URI;
 import java.net.UnknownHostException;
@@ -153,10 +154,24 @@ public class WebSocket
 		}
 	}
 
+	/**
+	 * Gets the number of frames waiting to be written to the socket
+	 * 
+	 * @return int Number of frames
+	 */
+	public int getSendQueueDepth() {
+		WebSocketSender lSender = sender;
+		return lSender == null ? 0 : lSender.getQueueDepth();
+	}
+
 	public synchronized void send(String data) throws WebSocketException
 	{
         if(sender != null && data != null){
-            sender.send(OPCODE_TEXT,true,data.getBytes());
+            try {
+                sender.send(OPCODE_TEXT,true,data.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException uee) {
+                throw new WebSocketException("error while sending text data: unsupported encoding", uee);
+            }
         }
 
 		/*if (!connected) {
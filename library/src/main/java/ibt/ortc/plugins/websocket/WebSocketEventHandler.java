@@ -37,5 +37,8 @@ public interface WebSocketEventHandler
 	
 	public void onPong();
 
+
+	public void onFrameSent(int bytes);
+
     public void onException(Exception error);
 }
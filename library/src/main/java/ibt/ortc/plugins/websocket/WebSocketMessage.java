@@ -30,6 +30,12 @@ public class WebSocketMessage
 	}
 
 
+	public int getLength()
+	{
+		return message.length;
+	}
+
+
 	public String getText()
 	{
 		byte[] message = new byte[this.message.length];
@@ -11,6 +11,7 @@ import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WebSocketSender {
 
@@ -18,10 +19,12 @@ public class WebSocketSender {
 		private WebSocket connection;
 		private PrintStream output;
         private final Random random = new SecureRandom();
+        private final AtomicInteger queued = new AtomicInteger(0);
 		
 		public Queue<Object> q = new LinkedBlockingQueue<Object>();
 				
 		public Sender send(byte opcode, boolean masking, byte[] data){
+			queued.incrementAndGet();
 			q.add(data);
             q.add(opcode);
             q.add(masking);
@@ -42,6 +45,8 @@ public class WebSocketSender {
 					sendAsync(opcode,masking,data);
 				} catch (WebSocketException e) {
 					
+				} finally {
+					queued.decrementAndGet();
 				}
 			}
 		}
@@ -103,6 +108,11 @@ public class WebSocketSender {
                 frame.write(data);
                 output.write(frame.toByteArray());
                 output.flush();
+
+                WebSocketEventHandler handler = connection.getEventHandler();
+                if (handler != null) {
+                    handler.onFrameSent(data.length);
+                }
 			} catch (UnsupportedEncodingException uee) {
 				throw new WebSocketException("error while sending text data: unsupported encoding", uee);
 			} catch (IOException ioe) {
@@ -140,6 +150,15 @@ public class WebSocketSender {
 		}
 	}
 	
+	/**
+	 * Gets the number of frames waiting to be written to the socket
+	 * 
+	 * @return int Number of frames
+	 */
+	public int getQueueDepth() {
+		return sender == null ? 0 : sender.queued.get();
+	}
+	
 	public void send(byte opcode, boolean masking, byte[] data) throws WebSocketException {
 		if(exec != null && !exec.isShutdown() && !exec.isTerminated() && sender != null && data != null){
 			exec.execute(sender.send(opcode, masking, data));
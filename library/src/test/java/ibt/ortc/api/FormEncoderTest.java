@@ -0,0 +1,88 @@
+/**
+ * @fileoverview This file contains the tests of the encoder of the form request bodies
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class FormEncoderTest {
+	private static final String[] VALUES = { "", "abc", "a b+c&d=e", "-_.*~!'()",
+			"caf\u00e9", "\u20ac100", "\u4e2d\u6587", "\ud83d\ude00", "x\ud83d\ude00y",
+			"\ud83d", "\ude00", "a\ud83db", "line\r\nbreak", "%41" };
+
+	private static String expected(String name, String value) throws IOException {
+		return URLEncoder.encode(name, "UTF-8") + "=" + URLEncoder.encode(value, "UTF-8");
+	}
+
+	@Test
+	public void encodesLikeUrlEncoder() throws IOException {
+		for (String value : VALUES) {
+			FormEncoder body = new FormEncoder(1).add("f", value);
+			assertEquals(value, expected("f", value), new String(body.toByteArray(), "US-ASCII"));
+		}
+	}
+
+	@Test
+	public void contentLengthIsTheWrittenLength() throws IOException {
+		for (String value : VALUES) {
+			FormEncoder body = new FormEncoder(2).add(value, value).add("AT", value);
+			assertEquals(value, body.toByteArray().length, body.getContentLength());
+		}
+	}
+
+	@Test
+	public void joinsFieldsAndRepeatsNames() throws IOException {
+		FormEncoder body = new FormEncoder(3).add("channels", "a,b").add("channels", "c").add("PK", null);
+		String encoded = "channels=a%2Cb&channels=c&PK=";
+		assertEquals(encoded, body.toString());
+		assertEquals(encoded.length(), body.getContentLength());
+		assertEquals(3, body.size());
+	}
+
+	@Test
+	public void largeBodyCrossesTheBuffer() throws IOException {
+		StringBuilder value = new StringBuilder(30000);
+		for (int i = 0; i < 10000; i++) {
+			value.append(i % 3 == 0 ? "\u00e9" : i % 3 == 1 ? "\ud83d\ude00" : "a");
+		}
+		FormEncoder body = new FormEncoder(1).add("v", value.toString());
+		byte[] bytes = body.toByteArray();
+		assertEquals(bytes.length, body.getContentLength());
+		assertEquals(expected("v", value.toString()), new String(bytes, "US-ASCII"));
+	}
+
+	@Test
+	public void gzipBodyInflatesToThePlainBody() throws IOException {
+		FormEncoder body = new FormEncoder(2).add("AT", "token").add("channel:1", "rw\u00e9");
+		byte[] plain = body.toByteArray();
+		byte[] compressed = body.setGzip(true).toByteArray();
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream(plain.length);
+		byte[] buffer = new byte[256];
+		int read = in.read(buffer);
+		while (read != -1) {
+			inflated.write(buffer, 0, read);
+			read = in.read(buffer);
+		}
+		assertArrayEquals(plain, inflated.toByteArray());
+		assertEquals(plain.length, body.getContentLength());
+	}
+
+	@Test
+	public void encodedBodyIsSentAsIs() throws IOException {
+		FormEncoder body = new FormEncoder("a=%C3%A9&b=\u00e9");
+		assertEquals("a=%C3%A9&b=\u00e9", body.toString());
+		assertEquals(body.toByteArray().length, body.getContentLength());
+	}
+}
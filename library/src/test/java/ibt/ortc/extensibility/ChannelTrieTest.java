@@ -0,0 +1,76 @@
+/**
+ * @fileoverview This file contains the tests of the trie of the channel patterns
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChannelTrieTest {
+	private static List<String> match(ChannelTrie<String> trie, String channel) {
+		List<String> matches = new ArrayList<String>(4);
+		trie.match(channel, matches);
+		Collections.sort(matches);
+		return matches;
+	}
+
+	private static ChannelTrie<String> trieOf(String... patterns) {
+		ChannelTrie<String> trie = new ChannelTrie<String>();
+		for (String pattern : patterns) {
+			trie.add(pattern, pattern);
+		}
+		return trie;
+	}
+
+	@Test
+	public void exactAndWildcardPatterns() {
+		ChannelTrie<String> trie = trieOf("orders", "orders:", "orders:*");
+		assertEquals(Arrays.asList("orders"), match(trie, "orders"));
+		assertEquals(Arrays.asList("orders:", "orders:*"), match(trie, "orders:"));
+		assertEquals(Arrays.asList("orders:*"), match(trie, "orders:1"));
+		assertEquals(Arrays.asList("orders:*"), match(trie, "orders:1:lines"));
+		assertEquals(Collections.<String>emptyList(), match(trie, "ordersx"));
+		assertEquals(Collections.<String>emptyList(), match(trie, "order"));
+	}
+
+	@Test
+	public void nestedWildcards() {
+		ChannelTrie<String> trie = trieOf("*", "room:*", "room:42:*", "room:42");
+		assertEquals(Arrays.asList("*", "room:*", "room:42"), match(trie, "room:42"));
+		assertEquals(Arrays.asList("*", "room:*", "room:42:*"), match(trie, "room:42:chat"));
+		assertEquals(Arrays.asList("*"), match(trie, "room"));
+		assertEquals(Arrays.asList("*"), match(trie, "lobby:1"));
+	}
+
+	@Test
+	public void removeOnlyThatPattern() {
+		ChannelTrie<String> trie = trieOf("orders", "orders:*");
+		assertFalse(trie.remove("orders:", "orders"));
+		assertTrue(trie.remove("orders:*", "orders:*"));
+		assertEquals(Arrays.asList("orders"), match(trie, "orders"));
+		assertEquals(Collections.<String>emptyList(), match(trie, "orders:1"));
+		assertEquals(1, trie.size());
+		assertTrue(trie.remove("orders", "orders"));
+		assertTrue(trie.isEmpty());
+	}
+
+	@Test
+	public void validPatterns() {
+		assertTrue(ChannelTrie.isValidPattern("orders"));
+		assertTrue(ChannelTrie.isValidPattern("orders:*"));
+		assertTrue(ChannelTrie.isValidPattern("*"));
+		assertFalse(ChannelTrie.isValidPattern("orders*"));
+		assertFalse(ChannelTrie.isValidPattern("orders:*:lines"));
+		assertFalse(ChannelTrie.isValidPattern(""));
+		assertFalse(ChannelTrie.isValidPattern(null));
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * @fileoverview This file contains the tests of the local message filters
+ * @author ORTC team members (ortc@ibt.pt)
+ */
+package ibt.ortc.extensibility;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageFilterTest {
+	private static boolean matches(MessageFilter filter, String message) {
+		return filter.matches("orders", null, message);
+	}
+
+	@Test
+	public void fieldComparesStringsAndLiterals() {
+		String message = "{\"side\":\"buy\",\"qty\":10,\"open\":true,\"note\":null}";
+		assertTrue(matches(MessageFilter.field("side", "buy"), message));
+		assertFalse(matches(MessageFilter.field("side", "sell"), message));
+		assertTrue(matches(MessageFilter.field("qty", "10"), message));
+		assertFalse(matches(MessageFilter.field("qty", "1"), message));
+		assertTrue(matches(MessageFilter.field("open", "true"), message));
+		assertTrue(matches(MessageFilter.field("note", null), message));
+		assertFalse(matches(MessageFilter.field("side", null), message));
+		assertFalse(matches(MessageFilter.field("missing", "buy"), message));
+	}
+
+	@Test
+	public void fieldAllowsSpaces() {
+		String message = " { \"side\" : \"buy\" , \"qty\" : 10 } ";
+		assertTrue(matches(MessageFilter.field("side", "buy"), message));
+		assertTrue(matches(MessageFilter.field("qty", "10"), message));
+	}
+
+	@Test
+	public void fieldUnescapesNamesAndValues() {
+		assertTrue(matches(MessageFilter.field("side", "b\"u\\y"), "{\"side\":\"b\\\"u\\\\y\"}"));
+		assertTrue(matches(MessageFilter.field("line", "a\nb\tc"), "{\"line\":\"a\\nb\\tc\"}"));
+		assertTrue(matches(MessageFilter.field("name", "caf\u00e9"), "{\"name\":\"caf\\u00e9\"}"));
+		assertTrue(matches(MessageFilter.field("name", "caf\u00e9"), "{\"name\":\"caf\u00e9\"}"));
+		assertTrue(matches(MessageFilter.field("a\"b", "1"), "{\"a\\\"b\":1}"));
+		assertFalse(matches(MessageFilter.field("side", "buy"), "{\"side\":\"buyer\"}"));
+		assertFalse(matches(MessageFilter.field("side", "buyer"), "{\"side\":\"buy\"}"));
+	}
+
+	@Test
+	public void fieldFollowsNestedPaths() {
+		String message = "{\"id\":1,\"order\":{\"lines\":[{\"side\":\"sell\"}],\"side\":\"buy\"}}";
+		assertTrue(matches(MessageFilter.field("order.side", "buy"), message));
+		assertFalse(matches(MessageFilter.field("order.side", "sell"), message));
+		assertFalse(matches(MessageFilter.field("side", "buy"), message));
+		assertTrue(matches(MessageFilter.hasField("order.lines"), message));
+		assertFalse(matches(MessageFilter.hasField("order.lines.side"), message));
+		assertFalse(matches(MessageFilter.hasField("id.side"), message));
+	}
+
+	@Test
+	public void fieldSkipsStringsWithBraces() {
+		String message = "{\"text\":\"} {\\\"side\\\":\\\"sell\\\"\",\"meta\":{\"a\":\"]}\"},\"side\":\"buy\"}";
+		assertTrue(matches(MessageFilter.field("side", "buy"), message));
+		assertFalse(matches(MessageFilter.field("side", "sell"), message));
+	}
+
+	@Test
+	public void fieldRejectsTruncatedAndInvalidJson() {
+		assertFalse(matches(MessageFilter.field("side", "buy"), "{\"side\":\"bu"));
+		assertFalse(matches(MessageFilter.field("side", "buy"), "{\"side\""));
+		assertFalse(matches(MessageFilter.field("side", "buy"), "{\"text\":\"x\",\"si"));
+		assertFalse(matches(MessageFilter.field("order.side", "buy"), "{\"order\":{"));
+		assertFalse(matches(MessageFilter.field("name", "x"), "{\"name\":\"\\u00\"}"));
+		assertFalse(matches(MessageFilter.field("side", "buy"), "{"));
+		assertFalse(matches(MessageFilter.field("side", "buy"), ""));
+		assertFalse(matches(MessageFilter.field("side", "buy"), "[\"side\",\"buy\"]"));
+		assertFalse(matches(MessageFilter.field("side", "buy"), "side=buy"));
+		assertFalse(matches(MessageFilter.field("side", "buy"), null));
+	}
+
+	@Test
+	public void combinationsAndNegation() {
+		MessageFilter filter = MessageFilter.startsWith("{")
+				.and(MessageFilter.field("side", "buy"))
+				.and(MessageFilter.contains("urgent").negate());
+		assertTrue(matches(filter, "{\"side\":\"buy\"}"));
+		assertFalse(matches(filter, "{\"side\":\"buy\",\"urgent\":1}"));
+		assertFalse(matches(filter, "{\"side\":\"sell\"}"));
+
+		MessageFilter any = MessageFilter.field("side", "buy").or(MessageFilter.field("side", "sell"));
+		assertTrue(matches(any, "{\"side\":\"sell\"}"));
+		assertFalse(matches(any, "{\"side\":\"hold\"}"));
+		assertTrue(matches(any.negate().negate(), "{\"side\":\"buy\"}"));
+	}
+
+	@Test
+	public void readsMessageOnlyForContentProbes() {
+		assertFalse(MessageFilter.channelStartsWith("orders").readsMessage());
+		assertFalse(MessageFilter.hasSeqId().negate().readsMessage());
+		assertFalse(MessageFilter.channelStartsWith("orders").and(MessageFilter.hasSeqId()).readsMessage());
+		assertTrue(MessageFilter.channelStartsWith("orders").or(MessageFilter.contains("x")).readsMessage());
+		assertTrue(MessageFilter.field("side", "buy").readsMessage());
+	}
+}